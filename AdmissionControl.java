@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Keeps the server answering when it gets more than it can handle. Limits on connections, groups,
+// uploads and file sizes, and rate limits per client and per group (see Session.admitRequest and
+// admitMessage), refuse work with an error reply instead of queueing it. On top of that the server
+// sheds load while the frames waiting in outbound queues or the heap in use pass a threshold: new
+// connections are turned away and requests that create work are refused, while members can still
+// leave, quit and receive what is already queued.
+public class AdmissionControl {
+    static final String BUSY = "Error: Server busy; try again later.";
+    static final String SLOW_DOWN = "Error: Too many requests; slow down.";
+    private static final long SAMPLE_MILLIS = 100;
+
+    static final LongAdder connectionsRefused = new LongAdder();
+    static final LongAdder requestsLimited = new LongAdder(); // Over a client or group rate limit
+    static final LongAdder requestsShed = new LongAdder(); // Refused while shedding load
+    private static final AtomicInteger uploads = new AtomicInteger(); // Streamed uploads and unfinished offers
+    private static volatile String overload; // Why the server is shedding load, or null; set by sample()
+
+    // Start checking the shedding thresholds, if any are set
+    static void start(ServerConfig config) {
+        if (config.shedQueuedFrames > 0 || config.shedHeapPercent > 0) {
+            GroupChatServer.timer.scheduleAtFixedRate(() -> sample(config), SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void sample(ServerConfig config) {
+        String reason = null;
+        if (config.shedQueuedFrames > 0) {
+            long queued = ServerMetrics.Sessions.read().queuedFrames;
+            if (queued >= config.shedQueuedFrames) {
+                reason = queued + " frames queued";
+            }
+        }
+        if (reason == null && config.shedHeapPercent > 0) {
+            Runtime runtime = Runtime.getRuntime();
+            long percent = (runtime.totalMemory() - runtime.freeMemory()) * 100 / runtime.maxMemory();
+            if (percent >= config.shedHeapPercent) {
+                reason = "heap " + percent + "% in use";
+            }
+        }
+        if ((reason == null) != (overload == null)) {
+            System.out.println(reason != null ? "Shedding load: " + reason + "." : "No longer shedding load.");
+        }
+        overload = reason;
+    }
+
+    // True while requests that create work should be refused
+    static boolean shedding() {
+        return overload != null;
+    }
+
+    // A rate limit of ratePerSecond, or null for none
+    static TokenBucket bucket(long ratePerSecond) {
+        return ratePerSecond > 0 ? new TokenBucket(ratePerSecond) : null;
+    }
+
+    // Answer a connection the server cannot take with an error frame and close it; returns false,
+    // leaving the channel alone, if the connection may go ahead. Called before the channel is made
+    // non-blocking, so the write of one small frame cannot come up short
+    static boolean refuse(SocketChannel channel, int sessions, int maxConnections) {
+        if (overload == null && (maxConnections <= 0 || sessions < maxConnections)) {
+            return false;
+        }
+        connectionsRefused.increment();
+        try {
+            channel.write(ByteBuffer.wrap(Frames.encode(overload != null ? BUSY : "Error: Server full; try again later.")));
+            channel.shutdownOutput(); // The error goes out ahead of the close
+        } catch (IOException e) {
+            // The client is gone already
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    // Count an upload in progress unless maxUploads are running already
+    static boolean startUpload(int maxUploads) {
+        while (true) {
+            int current = uploads.get();
+            if (maxUploads > 0 && current >= maxUploads) {
+                return false;
+            }
+            if (uploads.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    static void uploadsDone(int count) {
+        uploads.addAndGet(-count);
+    }
+
+    static int uploads() {
+        return uploads.get();
+    }
+
+    // Bytes of a message in UTF-8, as counted against byte rate limits
+    static int utf8Length(String text) {
+        int length = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                length += c >= 0x800 && !Character.isSurrogate(c) ? 2 : 1;
+            }
+        }
+        return length;
+    }
+}
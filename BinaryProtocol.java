@@ -0,0 +1,204 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Version 1 of the binary command protocol, shared by the server and the client.
+//
+// A client opts in by prefixing its nickname frame with HELLO; the server answers with HELLO_ACK
+// (both as ordinary writeUTF frames) and from then on both sides exchange binary frames:
+//
+//   int length | byte opcode | int requestId | body
+//
+// where length counts everything after itself. Strings are an int byte count followed by UTF-8,
+// so payloads are not limited to writeUTF's 64 KB. Groups are referred to by the numeric id the
+// server hands out in AddGroup/JoinGroup replies, or by NO_GROUP followed by the group name.
+//
+// Files shared with OfferFile are kept in the server's BlobStore under the SHA-256 of their
+// contents. The client lists the hash of every FILE_CHUNK-sized chunk, uploads only the chunks the
+// server answers with in CHUNKS_NEEDED, and members fetch the file by hash in ranges, so an
+// interrupted download resumes from the bytes already on disk.
+//
+// File data travels as ordinary frames of at most a chunk or a fetch range, so chat frames are
+// interleaved with it on the same connection. Each side bounds what it has in flight: an uploader
+// keeps a few PutChunks unacknowledged by CHUNK_STORED, a downloader a few FetchFiles unanswered,
+// and the server queues FILE_DATA behind every other frame for the member.
+//
+// A client may also ask for compression by following HELLO with DEFLATE; a server that agrees
+// answers with HELLO_ACK followed by DEFLATE. Either side may then send any frame compressed: the
+// opcode has COMPRESSED set and the body is the original body's int length followed by the body in
+// raw DEFLATE (see Compression). Senders only compress frames that get smaller, so file data that
+// is already compressed goes as it is.
+public class BinaryProtocol {
+    static final String HELLO = "\u0000BIN/1\u0000"; // Prefix of the nickname frame from a binary client
+    static final String HELLO_ACK = HELLO + "OK"; // Server's reply when it switches to binary frames
+    static final String DEFLATE = "\u0000DEFLATE/1\u0000"; // Follows HELLO in the nickname frame, and HELLO_ACK if accepted
+
+    // Resumable sessions, for clients of either protocol. A nickname frame prefixed with SESSION (before
+    // any HELLO) is answered with SESSION followed by a token, or by SESSION alone if the server does
+    // not keep sessions. If the connection drops, the server keeps the session's groups and queues its
+    // frames for a grace period. A reconnecting client sends RESUME, the token, a space and the number
+    // of frames it received since the handshake, and gets RESUMED followed by the number of frames it
+    // missed for good (0 unless the server's buffers overflowed); the frames it had not received follow.
+    // A count of -1 means the server restarted and restored the session from its saved state: the
+    // client is still in its groups, but what was sent while the server was down is only in History,
+    // and frames are counted from 0 again.
+    // After RESUME_FAILED the client starts over with a new nickname frame on the same connection.
+    // Handshake frames are not counted.
+    static final String SESSION = "\u0000SESSION/1\u0000";
+    static final String RESUME = "\u0000RESUME/1\u0000";
+    static final String RESUMED = RESUME + "OK ";
+    static final String RESUME_FAILED = RESUME + "FAILED";
+
+    static final int HEADER = 1 + 4; // Opcode and request id
+    static final byte COMPRESSED = (byte) 0x80; // Opcode flag of a compressed frame
+    static final int NO_GROUP = -1; // Group reference carried by name instead of id
+    static final int HASH = 32; // Bytes in a SHA-256 file or chunk hash
+    static final int FILE_CHUNK = 256 * 1024; // Chunk size files are hashed and uploaded in
+    static final int MAX_BULK = 1024; // Most groups named by one JoinGroups or LeaveGroups
+    static final int MAX_FETCH = 1024 * 1024; // Most file bytes the server returns for one FetchFile; bounds how long a reply holds up chat
+
+    // Client to server
+    static final byte ADD_GROUP = 1; // string name
+    static final byte JOIN_GROUP = 2; // group reference
+    static final byte SEND_MESSAGE = 3; // group reference, string text
+    static final byte LEAVE_GROUP = 4; // group reference
+    static final byte REMOVE_GROUP = 5; // group reference
+    static final byte SEND_FILE = 6; // group reference, string file name, long size; the raw contents follow the frame
+    static final byte QUIT = 7; // no body
+    static final byte OFFER_FILE = 8; // group reference, string file name, long size, file hash, int chunk count, chunk hashes
+    static final byte PUT_CHUNK = 9; // file hash, int chunk index, the chunk's bytes to the end of the frame
+    static final byte FETCH_FILE = 10; // file hash, long offset, long length
+    static final byte GET_HISTORY = 11; // group reference, long after sequence number (-1 for the latest), int limit
+    // Bulk requests: int count, then that many group references, at most MAX_BULK. The server answers
+    // each group in turn with a REPLY carrying the request's id, as if they were separate requests
+    static final byte JOIN_GROUPS = 12;
+    static final byte LEAVE_GROUPS = 13;
+
+    // Server to client
+    static final byte REPLY = 0x41; // byte status, int group id, string text; requestId matches the request
+    static final byte MESSAGE = 0x42; // int group id, string sender, string text, long sequence number (0 if not logged)
+    static final byte NOTICE = 0x43; // int group id, string text (joins, leaves, removals, files)
+    static final byte CHUNKS_NEEDED = 0x44; // file hash, int count, chunk indices; requestId matches the OfferFile
+    static final byte FILE_AVAILABLE = 0x45; // int group id, string sender, string file name, long size, file hash
+    static final byte FILE_DATA = 0x46; // file hash, long offset, file bytes to the end of the frame; requestId matches the FetchFile
+    static final byte CHUNK_STORED = 0x47; // file hash, int chunk index; requestId matches the PutChunk
+    static final byte HISTORY = 0x48; // int group id, int count, MessageLog records; requestId matches the GetHistory
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+
+    // Builds one binary frame in a BufferPool buffer; the length prefix is filled in by finish() or
+    // detach(), after which the writer must not be used again
+    static class Writer {
+        private ByteBuffer buffer = BufferPool.acquire(256).clear(); // The whole size class is usable
+
+        Writer(byte opcode, int requestId) {
+            buffer.putInt(0).put(opcode).putInt(requestId);
+        }
+
+        Writer putByte(byte value) {
+            ensure(1).put(value);
+            return this;
+        }
+
+        Writer putInt(int value) {
+            ensure(4).putInt(value);
+            return this;
+        }
+
+        Writer putLong(long value) {
+            ensure(8).putLong(value);
+            return this;
+        }
+
+        Writer putString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensure(4 + bytes.length).putInt(bytes.length).put(bytes);
+            return this;
+        }
+
+        Writer putBytes(byte[] value) {
+            ensure(value.length).put(value);
+            return this;
+        }
+
+        // The remaining bytes of value, which is left at its limit
+        Writer putBytes(ByteBuffer value) {
+            ensure(value.remaining()).put(value);
+            return this;
+        }
+
+        // Refer to a group by id when it is known, otherwise by name
+        Writer putGroup(int groupId, String groupName) {
+            putInt(groupId);
+            if (groupId == NO_GROUP) {
+                putString(groupName);
+            }
+            return this;
+        }
+
+        // Complete frame bytes, length prefix included
+        byte[] finish() {
+            ByteBuffer frame = detach(0);
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            BufferPool.release(frame);
+            return bytes;
+        }
+
+        // The complete frame without copying it, from position 0 to the limit, e.g. for Frame.wrap;
+        // whoever ends up holding the buffer releases it to the pool
+        ByteBuffer detach() {
+            return detach(0);
+        }
+
+        // A frame whose last trailing bytes are written separately, e.g. streamed from a file
+        ByteBuffer detach(int trailing) {
+            ByteBuffer frame = buffer;
+            buffer = null;
+            frame.putInt(0, frame.position() - 4 + trailing);
+            return frame.flip();
+        }
+
+        private ByteBuffer ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer larger = BufferPool.acquire(Math.max(buffer.capacity() * 2, buffer.position() + bytes)).clear();
+                buffer.flip();
+                larger.put(buffer);
+                BufferPool.release(buffer);
+                buffer = larger;
+            }
+            return buffer;
+        }
+    }
+
+    static String getString(ByteBuffer body) throws IOException {
+        int length = body.getInt();
+        if (length < 0 || length > body.remaining()) {
+            throw new IOException("Malformed string in binary frame");
+        }
+        if (!body.hasArray()) {
+            return new String(getBytes(body, length), StandardCharsets.UTF_8); // A pooled direct buffer
+        }
+        String value = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+        body.position(body.position() + length);
+        return value;
+    }
+
+    static byte[] getBytes(ByteBuffer body, int length) {
+        byte[] value = new byte[length];
+        body.get(value);
+        return value;
+    }
+
+    // Read one frame body (opcode, request id and fields) from a blocking stream
+    static ByteBuffer readFrame(DataInputStream in, int maxFrame) throws IOException {
+        int length = in.readInt();
+        if (length < HEADER || length > maxFrame) {
+            throw new IOException("Invalid binary frame length " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return ByteBuffer.wrap(body);
+    }
+}
@@ -0,0 +1,383 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Files shared with OfferFile, stored once per SHA-256 of their contents. Each file is split into
+// BinaryProtocol.FILE_CHUNK chunks and has a manifest listing the hash of every chunk and which of
+// them have arrived, so a repeated or resumed upload only transfers the chunks that are missing.
+// Hashing a whole file and compressing chunks run on worker threads of their own, since the
+// connection asking for them may be an event loop serving many others.
+//
+//   <dir>/<hash>            complete file, served to members by FetchFile
+//   <dir>/<hash>.part       file still being uploaded, written chunk by chunk
+//   <dir>/<hash>.manifest   long size, int chunk count, chunk hashes, int length and bytes of the arrived-chunk bitmap
+//   <dir>/<hash>.<n>.deflate FILE_DATA body of chunk n compressed for members that negotiated it; empty if it does not shrink
+public class BlobStore {
+    private static final int SAVE_INTERVAL = 64; // Chunks stored between manifest saves during an upload
+
+    private final Path dir;
+    private final ConcurrentHashMap<String, Manifest> manifests = new ConcurrentHashMap<>(); // Loaded manifests by hex hash
+    // Chunks being compressed, by file name, so members asking for the same chunk at once share the work
+    private final ConcurrentHashMap<Path, CompletableFuture<Path>> compressing = new ConcurrentHashMap<>();
+    private final ExecutorService worker = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), task -> {
+                Thread thread = new Thread(task, "blob-store");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // One stored or partly stored file
+    static class Manifest {
+        final String hash; // Hex SHA-256 of the whole file
+        final long size;
+        private final byte[][] chunks; // SHA-256 of each chunk
+        private final ReentrantLock lock = new ReentrantLock();
+        private final BitSet present; // Chunks written to the part file; guarded by lock
+        private boolean complete; // The file has been verified and moved into place; guarded by lock
+        private int unsaved; // Chunks stored since the manifest was last saved; guarded by lock
+        private FileChannel data; // Part file, open while chunks are arriving; guarded by lock
+        // Completes once the file is verified and in place; made when its last chunk arrives, guarded by lock
+        private CompletableFuture<Void> stored;
+
+        private Manifest(String hash, long size, byte[][] chunks, BitSet present, boolean complete) {
+            this.hash = hash;
+            this.size = size;
+            this.chunks = chunks;
+            this.present = present;
+            this.complete = complete;
+            this.stored = complete ? CompletableFuture.completedFuture(null) : null;
+        }
+
+        boolean complete() {
+            lock.lock();
+            try {
+                return complete;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Indices of the chunks the store still needs
+        int[] missing() {
+            lock.lock();
+            try {
+                int[] indices = new int[complete ? 0 : chunks.length - present.cardinality()];
+                int count = 0;
+                for (int i = present.nextClearBit(0); count < indices.length; i = present.nextClearBit(i + 1)) {
+                    indices[count++] = i;
+                }
+                return indices;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int chunkLength(int index) {
+            return (int) Math.min(BinaryProtocol.FILE_CHUNK, size - (long) index * BinaryProtocol.FILE_CHUNK);
+        }
+    }
+
+    BlobStore(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+    }
+
+    static String hex(byte[] hash) {
+        StringBuilder builder = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // Every JDK is required to provide it
+        }
+    }
+
+    // Register a file a client is about to upload, or find the copy already stored under its hash
+    Manifest offer(byte[] hash, long size, byte[][] chunks) throws IOException {
+        if (size < 0 || chunks.length != (size + BinaryProtocol.FILE_CHUNK - 1) / BinaryProtocol.FILE_CHUNK) {
+            throw new IOException("Chunk list does not match the file size");
+        }
+        Manifest manifest = get(hash);
+        if (manifest != null) {
+            if (manifest.size != size) {
+                throw new IOException("File size does not match the stored copy");
+            }
+            return manifest;
+        }
+        manifest = new Manifest(hex(hash), size, chunks, new BitSet(chunks.length), false);
+        Manifest existing = manifests.putIfAbsent(manifest.hash, manifest);
+        if (existing != null) {
+            return existing; // Another client offered the same file at the same time
+        }
+        manifest.lock.lock();
+        try {
+            save(manifest);
+            if (chunks.length == 0) {
+                manifest.stored = new CompletableFuture<>();
+                finish(manifest); // Nothing to upload or hash, so it is done at once
+            }
+        } finally {
+            manifest.lock.unlock();
+        }
+        return manifest;
+    }
+
+    // The manifest for a hash, loading it from disk if needed; null if the store has never seen the file
+    Manifest get(byte[] hash) throws IOException {
+        String name = hex(hash);
+        Manifest manifest = manifests.get(name);
+        if (manifest != null) {
+            return manifest;
+        }
+        Path path = dir.resolve(name + ".manifest");
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            long size = in.readLong();
+            byte[][] chunks = new byte[in.readInt()][BinaryProtocol.HASH];
+            for (byte[] chunk : chunks) {
+                in.readFully(chunk);
+            }
+            byte[] bitmap = new byte[in.readInt()];
+            in.readFully(bitmap);
+            boolean complete = Files.exists(dir.resolve(name));
+            manifest = new Manifest(name, size, chunks, BitSet.valueOf(bitmap), complete);
+        }
+        Manifest existing = manifests.putIfAbsent(name, manifest);
+        return existing != null ? existing : manifest;
+    }
+
+    // Store one uploaded chunk after checking it against the manifest. Returns null while chunks are
+    // still missing; once every chunk is in, a future that completes when the whole file has been
+    // verified on a worker thread and moved into place, or fails if it does not match its hash
+    CompletableFuture<Void> put(Manifest manifest, int index, ByteBuffer chunk) throws IOException {
+        if (index < 0 || index >= manifest.chunks.length) {
+            throw new IOException("Chunk " + index + " is not part of the file");
+        }
+        if (chunk.remaining() != manifest.chunkLength(index)) {
+            throw new IOException("Chunk " + index + " has the wrong size");
+        }
+        MessageDigest digest = sha256();
+        digest.update(chunk.duplicate()); // Hash outside the lock so uploads of different chunks overlap
+        if (!MessageDigest.isEqual(digest.digest(), manifest.chunks[index])) {
+            throw new IOException("Chunk " + index + " does not match its hash");
+        }
+
+        manifest.lock.lock();
+        try {
+            if (manifest.complete || manifest.present.get(index)) {
+                return manifest.stored; // Already stored, e.g. by another client sharing the same file
+            }
+            if (manifest.data == null) {
+                manifest.data = FileChannel.open(dir.resolve(manifest.hash + ".part"),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            long position = (long) index * BinaryProtocol.FILE_CHUNK;
+            while (chunk.hasRemaining()) {
+                position += manifest.data.write(chunk, position);
+            }
+            manifest.present.set(index);
+            if (manifest.present.cardinality() == manifest.chunks.length) {
+                manifest.stored = new CompletableFuture<>();
+                worker.execute(() -> finish(manifest));
+            } else if (++manifest.unsaved >= SAVE_INTERVAL) {
+                // The manifest must never list a chunk that is not on disk yet
+                manifest.data.force(false);
+                save(manifest);
+            }
+            return manifest.stored;
+        } finally {
+            manifest.lock.unlock();
+        }
+    }
+
+    // Null while chunks of the file are missing; then a future that completes once it is verified and
+    // in place, as returned by the put that stored the last chunk
+    CompletableFuture<Void> stored(Manifest manifest) {
+        manifest.lock.lock();
+        try {
+            return manifest.stored;
+        } finally {
+            manifest.lock.unlock();
+        }
+    }
+
+    // Location of a complete file
+    Path path(Manifest manifest) {
+        return dir.resolve(manifest.hash);
+    }
+
+    // The FILE_DATA body (file hash, offset, chunk bytes) of one chunk of a complete file, compressed
+    // for members that negotiated it. It is made on a worker thread the first time a member asks for
+    // it and kept next to the file, so each chunk is compressed once however many members download
+    // it. Completes with null if the chunk does not get smaller, e.g. because the file is compressed already
+    CompletableFuture<Path> compressedChunk(Manifest manifest, int index) {
+        Path path = dir.resolve(manifest.hash + "." + index + ".deflate");
+        if (Files.exists(path)) {
+            try {
+                return CompletableFuture.completedFuture(Files.size(path) > 0 ? path : null);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        CompletableFuture<Path> made = new CompletableFuture<>();
+        CompletableFuture<Path> running = compressing.putIfAbsent(path, made);
+        if (running != null) {
+            return running;
+        }
+        worker.execute(() -> {
+            try {
+                compress(manifest, index, path);
+                made.complete(Files.size(path) > 0 ? path : null);
+            } catch (IOException | RuntimeException e) {
+                made.completeExceptionally(e);
+            } finally {
+                compressing.remove(path);
+            }
+        });
+        return made;
+    }
+
+    // Write the compressed FILE_DATA body of a chunk to path, or an empty file if it does not shrink
+    private void compress(Manifest manifest, int index, Path path) throws IOException {
+        if (Files.exists(path)) {
+            return; // Made by a request that finished just before this one was queued
+        }
+        int length = manifest.chunkLength(index);
+        long offset = (long) index * BinaryProtocol.FILE_CHUNK;
+        ByteBuffer body = BufferPool.acquire(BinaryProtocol.HASH + 8 + length);
+        ByteBuffer deflated = BufferPool.acquire(body.limit());
+        try (FileChannel file = FileChannel.open(path(manifest), StandardOpenOption.READ)) {
+            body.put(hexBytes(manifest.hash)).putLong(offset);
+            while (body.hasRemaining() && file.read(body, offset + body.position() - BinaryProtocol.HASH - 8) >= 0) {
+                // Keep reading until the chunk is complete
+            }
+            body.flip();
+            if (!Compression.deflate(body, deflated) || deflated.position() >= body.limit()) {
+                deflated.clear().limit(0); // Stored empty, so the chunk is not tried again
+            } else {
+                deflated.flip();
+            }
+            // Made under a name of its own and moved into place, so a member never reads half of it
+            Path temp = Files.createTempFile(dir, manifest.hash + "." + index + "-", ".tmp");
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (deflated.hasRemaining()) {
+                    out.write(deflated);
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            BufferPool.release(body);
+            BufferPool.release(deflated);
+        }
+    }
+
+    private static byte[] hexBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    // Check the assembled file against its hash, move it into place and complete manifest.stored.
+    // Runs on a worker thread once the last chunk is in; the lock is only taken to publish the
+    // outcome, since no chunk is written to a file that has them all
+    private void finish(Manifest manifest) {
+        CompletableFuture<Void> stored;
+        FileChannel data;
+        manifest.lock.lock();
+        try {
+            stored = manifest.stored;
+            data = manifest.data;
+            manifest.data = null;
+        } finally {
+            manifest.lock.unlock();
+        }
+        Path part = dir.resolve(manifest.hash + ".part");
+        try {
+            if (data == null) {
+                data = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            try {
+                data.force(true);
+                MessageDigest digest = sha256();
+                ByteBuffer buffer = BufferPool.acquire(BinaryProtocol.FILE_CHUNK); // Direct, so the channel reads into it without a copy
+                try {
+                    long position = 0;
+                    int count;
+                    while ((count = data.read(buffer, position)) > 0) {
+                        position += count;
+                        buffer.flip();
+                        digest.update(buffer);
+                        buffer.clear();
+                    }
+                } finally {
+                    BufferPool.release(buffer);
+                }
+                if (!hex(digest.digest()).equals(manifest.hash)) {
+                    throw new IOException("File contents do not match their hash");
+                }
+            } finally {
+                data.close();
+            }
+            manifest.lock.lock();
+            try {
+                Files.move(part, path(manifest), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                manifest.complete = true;
+                save(manifest);
+            } finally {
+                manifest.lock.unlock();
+            }
+            stored.complete(null);
+        } catch (IOException | RuntimeException e) {
+            // E.g. the chunk list did not describe this file; start over rather than serve the wrong bytes
+            manifest.lock.lock();
+            try {
+                if (!manifest.complete) {
+                    manifest.present.clear();
+                    manifest.stored = null;
+                    save(manifest);
+                }
+            } catch (IOException saveFailure) {
+                e.addSuppressed(saveFailure);
+            } finally {
+                manifest.lock.unlock();
+            }
+            stored.completeExceptionally(e);
+        }
+    }
+
+    // Write the manifest next to the file, replacing the previous copy atomically; caller holds the lock
+    private void save(Manifest manifest) throws IOException {
+        Path path = dir.resolve(manifest.hash + ".manifest");
+        Path temp = dir.resolve(manifest.hash + ".manifest.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeLong(manifest.size);
+            out.writeInt(manifest.chunks.length);
+            for (byte[] chunk : manifest.chunks) {
+                out.write(chunk);
+            }
+            byte[] bitmap = manifest.present.toByteArray();
+            out.writeInt(bitmap.length);
+            out.write(bitmap);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        manifest.unsaved = 0;
+    }
+}
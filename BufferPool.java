@@ -0,0 +1,216 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+// Direct ByteBuffers in power-of-two size classes, handed out and taken back so that frames, read
+// buffers and file chunks stop turning into garbage. Direct buffers also let channels read and
+// write without the JDK copying through a temporary buffer of its own.
+//
+// Idle buffers of each class wait in a few stripes, picked by thread id so that threads rarely
+// queue on the same lock; an empty stripe borrows from the others. Threads that allocate and release constantly, such as the NIO loops,
+// can ask for a cache of their own in front of the stripes. Buffers larger than the biggest class
+// come from the heap and are never pooled.
+//
+// With debug on, the pool keeps track of every buffer it has handed out and rejects one released
+// twice, and Frame reports frames collected without being released, with where they were created.
+public class BufferPool {
+    private static final int MIN_SHIFT = 6; // Smallest class: 64 bytes
+    private static final int MAX_SHIFT = 20; // Largest class: 1 MB
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+    private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) * 2;
+    private static final int THREAD_CACHE_BYTES = 256 * 1024; // Most idle bytes a thread cache keeps per class
+
+    static volatile boolean enabled = true; // False: plain heap buffers, as before the pool, for comparisons
+    static volatile long maxIdleBytes = 64L * 1024 * 1024; // Idle bytes kept in the stripes; the rest is left to the GC
+    static volatile boolean debug; // Track outstanding buffers
+
+    // Statistics for ServerMetrics
+    static final LongAdder allocations = new LongAdder(); // Direct buffers created because none was idle
+    static final LongAdder acquisitions = new LongAdder();
+    static final AtomicLong idleBytes = new AtomicLong(); // Held in the stripes, not counting thread caches
+    static final LongAdder leaks = new LongAdder(); // Owners collected without releasing their buffer; debug only
+
+    private static final Stripe[][] stripes = new Stripe[CLASSES][STRIPES];
+    private static final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCache = new ThreadLocal<>();
+    private static final ReentrantLock debugLock = new ReentrantLock();
+    private static final Set<ByteBuffer> outstanding = Collections.newSetFromMap(new IdentityHashMap<>()); // Guarded by debugLock
+    private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+
+    static {
+        for (int c = 0; c < CLASSES; c++) {
+            for (int s = 0; s < STRIPES; s++) {
+                stripes[c][s] = new Stripe();
+            }
+        }
+    }
+
+    // Idle buffers of one class; the lock is only held to push or pop
+    private static class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+
+        ByteBuffer poll() {
+            lock.lock();
+            try {
+                return buffers.poll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void push(ByteBuffer buffer) {
+            lock.lock();
+            try {
+                buffers.push(buffer);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // A cleared buffer with at least this capacity, its limit set to the capacity asked for. The
+    // caller owns it until release; it must not keep a view of it afterwards
+    static ByteBuffer acquire(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        if (!enabled || sizeClass < 0) {
+            return ByteBuffer.allocate(capacity);
+        }
+        acquisitions.increment();
+        ByteBuffer buffer = null;
+        ArrayDeque<ByteBuffer>[] cache = threadCache.get();
+        if (cache != null) {
+            buffer = cache[sizeClass].poll();
+        }
+        // Buffers are often released by another thread than the one that acquired them, e.g. by a
+        // client's writer, so look in the other stripes before allocating
+        for (int i = 0, first = stripe(); buffer == null && i < STRIPES; i++) {
+            buffer = stripes[sizeClass][(first + i) & (STRIPES - 1)].poll();
+            if (buffer != null) {
+                idleBytes.addAndGet(-buffer.capacity());
+            }
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+            allocations.increment();
+        }
+        buffer.clear().limit(capacity);
+        if (debug) {
+            debugLock.lock();
+            try {
+                outstanding.add(buffer);
+            } finally {
+                debugLock.unlock();
+            }
+        }
+        return buffer;
+    }
+
+    // Give a buffer back; heap buffers and buffers that did not come from acquire are ignored
+    static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || !enabled) {
+            return;
+        }
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass < 0 || buffer.capacity() != 1 << (sizeClass + MIN_SHIFT)) {
+            return;
+        }
+        if (debug) {
+            debugLock.lock();
+            try {
+                if (!outstanding.remove(buffer)) {
+                    throw new IllegalStateException("Buffer released twice, or not acquired from the pool");
+                }
+            } finally {
+                debugLock.unlock();
+            }
+        }
+        ArrayDeque<ByteBuffer>[] cache = threadCache.get();
+        if (cache != null && cache[sizeClass].size() * buffer.capacity() < THREAD_CACHE_BYTES) {
+            cache[sizeClass].push(buffer);
+            return;
+        }
+        if (idleBytes.addAndGet(buffer.capacity()) > maxIdleBytes) {
+            idleBytes.addAndGet(-buffer.capacity()); // Over budget: let the GC free it
+            return;
+        }
+        stripes[sizeClass][stripe()].push(buffer);
+    }
+
+    // Give the calling thread a cache of idle buffers in front of the stripes. Meant for long-lived
+    // threads that acquire and release all the time; the cache is lost when the thread ends
+    static void cacheThreadBuffers() {
+        if (threadCache.get() == null && !isVirtual()) {
+            @SuppressWarnings({"unchecked", "rawtypes"}) // Generic arrays cannot be created directly
+            ArrayDeque<ByteBuffer>[] cache = new ArrayDeque[CLASSES];
+            for (int c = 0; c < CLASSES; c++) {
+                cache[c] = new ArrayDeque<>();
+            }
+            threadCache.set(cache);
+        }
+    }
+
+    // Buffers acquired but not yet released; 0 unless debug is on
+    static int outstanding() {
+        debugLock.lock();
+        try {
+            return outstanding.size();
+        } finally {
+            debugLock.unlock();
+        }
+    }
+
+    // Debug: report owner, with where it was created, if it is collected before released() is true.
+    // The check must not refer to owner itself, or owner would never become unreachable
+    static void watch(Object owner, String what, BooleanSupplier released) {
+        Throwable origin = new Throwable(what + " created here");
+        Leaks.cleaner.register(owner, () -> {
+            if (!released.getAsBoolean()) {
+                leaks.increment();
+                System.out.println("Leak: " + what + " was never released");
+                origin.printStackTrace(System.out);
+            }
+        });
+    }
+
+    // Started on first use, so the cleaner thread only exists in debug mode
+    private static class Leaks {
+        static final Cleaner cleaner = Cleaner.create();
+    }
+
+    // Index of the smallest class that holds capacity, or -1 if it is larger than every class
+    private static int sizeClass(int capacity) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity) - 1));
+        return shift <= MAX_SHIFT ? shift - MIN_SHIFT : -1;
+    }
+
+    private static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    // Thread.isVirtual() is looked up reflectively so the pool still works on JDKs before 21
+    private static MethodHandle isVirtualHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static boolean isVirtual() {
+        try {
+            return IS_VIRTUAL != null && (boolean) IS_VIRTUAL.invoke(Thread.currentThread());
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,644 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Several GroupChatServer processes sharing one set of groups. Every node is started with the same
+// --cluster list of bus addresses, and each group is owned by the node its name hashes to on a
+// consistent-hash ring, so adding a node moves only the groups that land on its share of the ring.
+// The owner creates and removes the group, numbers and logs its messages and answers History for
+// it; every node knows every group and keeps its own clients as members.
+//
+// Nodes talk over persistent links, one outgoing connection from each node to each other node,
+// carrying BinaryProtocol-style frames (int length | byte opcode | int requestId | body):
+//
+//   - a SendMessage is forwarded to the group's owner, which logs it and sends it back out to
+//     every node with members in the group, including the one it came from;
+//   - joins and leaves are replicated to every node with the number of members the sending node
+//     now has in the group, so the owner knows where to fan out and every member sees the notice;
+//   - AddGroup, RemoveGroup, History and fetches of files stored on another node are requests
+//     answered with RESPONSE frames that carry the same request id.
+//
+// A link that comes back up starts by re-announcing the groups owned by the node that opened it and
+// that node's memberships, so a restarted node relearns the cluster's state. Only a group's owner
+// announces it, and the node at the other end drops any group of that owner it did not hear about:
+// a node that missed a RemoveGroup while its link was down loses the group when the owner resyncs,
+// rather than bringing it back. Groups owned by a node that is down stay listed, but their commands
+// fail until it returns; ownership is not moved to another node.
+public class ClusterNode {
+    // Bus frames; requests carry a request id that their RESPONSE echoes, the rest use 0
+    static final byte HELLO = 1; // string node address, first frame on every link
+    static final byte GROUP_ADDED = 2; // string group
+    static final byte GROUP_REMOVED = 3; // string group
+    static final byte MEMBERSHIP = 4; // string group, int members on the sending node, string notice (may be empty)
+    static final byte PUBLISH = 5; // string group, string sender, string text; sent to the owner
+    static final byte CHAT = 6; // string group, string sender, string text, long sequence number; sent by the owner
+    static final byte NOTICE = 7; // string group, string text
+    static final byte FILE_SHARED = 8; // string group, string sender, string file name, long size, file hash
+    static final byte CREATE_GROUP = 9; // string group; request to the owner
+    static final byte DELETE_GROUP = 10; // string group; request to the owner
+    static final byte GET_HISTORY = 11; // string group, long after sequence number, int limit; request to the owner
+    static final byte FETCH_BLOB = 12; // file hash, long offset, int length; request to the node storing the file
+    static final byte RESPONSE = 13; // byte status, string message, then the payload of the request
+    static final byte RESYNC_DONE = 14; // no body; ends the GROUP_ADDED frames that open a link
+
+    private static final int VIRTUAL_NODES = 160; // Ring points per node; more points spread groups more evenly
+    private static final int LINK_QUEUE = 65536; // Frames waiting for a peer before its link is reset
+    private static final int MAX_BATCH = 256; // Most frames gathered into one write call
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final long REQUEST_TIMEOUT_MILLIS = 5000;
+
+    final String self; // This node's bus address
+    private final String[] nodes; // Bus addresses of every node, sorted so all nodes agree on the numbering
+    private final int selfIndex;
+    private final long[] ring; // Sorted ring points
+    private final int[] ringNodes; // Node owning each ring point
+    private final Peer[] peers; // Outgoing link to each node; null for this node
+    private final int maxFrame;
+    private final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<>(); // Requests awaiting a RESPONSE
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final ReentrantLock membershipLock = new ReentrantLock(); // Keeps member counts sent to peers in order
+    private final ConcurrentHashMap<String, Integer> remoteFiles = new ConcurrentHashMap<>(); // Hex hash -> node storing the file
+    // Groups announced so far by each node whose link is still resyncing
+    private final ConcurrentHashMap<Integer, Set<String>> resyncing = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "cluster-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // A request sent to another node and the callback that receives its response, or null if it fails
+    private static class Pending {
+        final int node;
+        final Consumer<ByteBuffer> callback;
+
+        Pending(int node, Consumer<ByteBuffer> callback) {
+            this.node = node;
+            this.callback = callback;
+        }
+    }
+
+    ClusterNode(ServerConfig config) {
+        nodes = config.clusterNodes.split(",");
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = nodes[i].trim();
+        }
+        Arrays.sort(nodes);
+        self = config.node;
+        selfIndex = Arrays.asList(nodes).indexOf(self);
+        maxFrame = Math.max(config.maxFrame, BinaryProtocol.MAX_FETCH) + 64 * 1024;
+
+        TreeMap<Long, Integer> points = new TreeMap<>();
+        for (int i = 0; i < nodes.length; i++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                points.put(hash(nodes[i] + "#" + v), i);
+            }
+        }
+        ring = new long[points.size()];
+        ringNodes = new int[points.size()];
+        int next = 0;
+        for (Map.Entry<Long, Integer> point : points.entrySet()) {
+            ring[next] = point.getKey();
+            ringNodes[next++] = point.getValue();
+        }
+
+        peers = new Peer[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            if (i != selfIndex) {
+                peers[i] = new Peer(i);
+            }
+        }
+    }
+
+    // Listen for links from the other nodes and start connecting to them
+    void start() throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(address(self));
+        daemon("cluster-accept", () -> {
+            while (true) {
+                try {
+                    SocketChannel channel = listener.accept();
+                    daemon("cluster-in", () -> readLink(channel));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        });
+        for (Peer peer : peers) {
+            if (peer != null) {
+                daemon("cluster-out-" + nodes[peer.index], peer::run);
+            }
+        }
+        System.out.println("Cluster node " + self + " of " + nodes.length + " started");
+    }
+
+    // Address of the node owning a group
+    String owner(String group) {
+        return nodes[ownerIndex(group)];
+    }
+
+    boolean owns(String group) {
+        return ownerIndex(group) == selfIndex;
+    }
+
+    private int ownerIndex(String group) {
+        int point = Arrays.binarySearch(ring, hash(group));
+        if (point < 0) {
+            point = -point - 1;
+        }
+        return ringNodes[point == ring.length ? 0 : point];
+    }
+
+    // 64-bit FNV-1a with a final mix, so similar names land far apart on the ring
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe51a85b3L;
+        return h ^ (h >>> 33);
+    }
+
+    // The owner created a group; every other node adds it too
+    void groupAdded(String group) {
+        sendAll(new BinaryProtocol.Writer(GROUP_ADDED, 0).putString(group));
+    }
+
+    // The owner removed a group; every other node removes it and tells its members
+    void groupRemoved(String group) {
+        sendAll(new BinaryProtocol.Writer(GROUP_REMOVED, 0).putString(group));
+    }
+
+    // A local client joined or left a group: tell every node how many members this node now has
+    // in it, and show the notice to their members
+    void membershipChanged(GroupRegistry.Group group, String notice) {
+        membershipLock.lock();
+        try {
+            sendAll(new BinaryProtocol.Writer(MEMBERSHIP, 0)
+                    .putString(group.name).putInt(group.memberCount()).putString(notice));
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    // Hand a message to the group's owner for logging and delivery; false if the owner is unreachable
+    boolean publish(GroupRegistry.Group group, String sender, String text) {
+        return send(ownerIndex(group.name), new BinaryProtocol.Writer(PUBLISH, 0)
+                .putString(group.name).putString(sender).putString(text));
+    }
+
+    // Deliver a message this node has numbered to the members on other nodes
+    void forwardChat(GroupRegistry.Group group, String sender, String text, long seq) {
+        sendInterested(group, new BinaryProtocol.Writer(CHAT, 0)
+                .putString(group.name).putString(sender).putString(text).putLong(seq));
+    }
+
+    void forwardNotice(GroupRegistry.Group group, String text) {
+        sendInterested(group, new BinaryProtocol.Writer(NOTICE, 0).putString(group.name).putString(text));
+    }
+
+    // Announce a file in this node's store to members on other nodes; they fetch it through this node
+    void forwardFile(GroupRegistry.Group group, String sender, String fileName, long size, byte[] hash) {
+        sendInterested(group, new BinaryProtocol.Writer(FILE_SHARED, 0).putString(group.name)
+                .putString(sender).putString(fileName).putLong(size).putBytes(hash));
+    }
+
+    // The node storing a file announced by another node, or null
+    Integer fileNode(String hash) {
+        return remoteFiles.get(hash);
+    }
+
+    // Requests to the owner of a group; each returns false if the request could not be sent
+    boolean createGroup(String group, Consumer<ByteBuffer> callback) {
+        int id = nextRequestId.incrementAndGet();
+        return request(ownerIndex(group), id, new BinaryProtocol.Writer(CREATE_GROUP, id).putString(group), callback);
+    }
+
+    boolean removeGroup(String group, Consumer<ByteBuffer> callback) {
+        int id = nextRequestId.incrementAndGet();
+        return request(ownerIndex(group), id, new BinaryProtocol.Writer(DELETE_GROUP, id).putString(group), callback);
+    }
+
+    boolean history(String group, long afterSeq, int limit, Consumer<ByteBuffer> callback) {
+        int id = nextRequestId.incrementAndGet();
+        return request(ownerIndex(group), id, new BinaryProtocol.Writer(GET_HISTORY, id)
+                .putString(group).putLong(afterSeq).putInt(limit), callback);
+    }
+
+    boolean fetch(int node, byte[] hash, long offset, int length, Consumer<ByteBuffer> callback) {
+        int id = nextRequestId.incrementAndGet();
+        return request(node, id, new BinaryProtocol.Writer(FETCH_BLOB, id)
+                .putBytes(hash).putLong(offset).putInt(length), callback);
+    }
+
+    // Send a request and call back with the response body (status, message, payload), or with null
+    // if the node does not answer in time or its link goes down first
+    private boolean request(int node, int id, BinaryProtocol.Writer writer, Consumer<ByteBuffer> callback) {
+        pending.put(id, new Pending(node, callback));
+        if (!send(node, writer)) {
+            pending.remove(id);
+            return false;
+        }
+        timer.schedule(() -> complete(id, null), REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private void complete(int id, ByteBuffer response) {
+        Pending request = pending.remove(id);
+        if (request != null) {
+            request.callback.accept(response);
+        }
+    }
+
+    private boolean send(int node, BinaryProtocol.Writer writer) {
+        Frame frame = Frame.wrap(writer.detach());
+        boolean sent = peers[node].send(frame);
+        frame.release();
+        return sent;
+    }
+
+    private void sendAll(BinaryProtocol.Writer writer) {
+        Frame frame = Frame.wrap(writer.detach());
+        for (Peer peer : peers) {
+            if (peer != null) {
+                peer.send(frame);
+            }
+        }
+        frame.release();
+    }
+
+    // Send to the nodes that currently have members in the group
+    private void sendInterested(GroupRegistry.Group group, BinaryProtocol.Writer writer) {
+        int[] interested = group.remoteNodes.snapshot();
+        if (interested.length == 0) {
+            return;
+        }
+        Frame frame = Frame.wrap(writer.detach());
+        for (int node : interested) {
+            peers[node].send(frame);
+        }
+        frame.release();
+    }
+
+    // Answer a request from another node
+    private void respond(int node, int id, byte status, String message, byte[] payload) {
+        respond(node, id, status, message, ByteBuffer.wrap(payload));
+    }
+
+    private void respond(int node, int id, byte status, String message, ByteBuffer payload) {
+        send(node, new BinaryProtocol.Writer(RESPONSE, id).putByte(status).putString(message).putBytes(payload));
+    }
+
+    // Read frames from another node's link until it closes
+    private void readLink(SocketChannel channel) {
+        int from = -1;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)))) {
+            ByteBuffer hello = BinaryProtocol.readFrame(in, maxFrame);
+            if (hello.get() != HELLO) {
+                throw new IOException("Expected HELLO");
+            }
+            hello.getInt();
+            String node = BinaryProtocol.getString(hello);
+            from = Arrays.asList(nodes).indexOf(node);
+            if (from < 0 || from == selfIndex) {
+                throw new IOException("Unknown cluster node " + node);
+            }
+            System.out.println("Cluster link from " + node + " up");
+            resyncing.put(from, new HashSet<>());
+            while (true) {
+                handle(from, BinaryProtocol.readFrame(in, maxFrame));
+            }
+        } catch (IOException | RuntimeException e) {
+            if (from >= 0) {
+                System.out.println("Cluster link from " + nodes[from] + " down ("
+                        + (e instanceof EOFException ? "closed" : e.getMessage()) + ")");
+                // Its members are gone with it; they are announced again when it reconnects
+                for (GroupRegistry.Group group : GroupChatServer.groups.all()) {
+                    group.remoteNodes.remove(from);
+                }
+            }
+        }
+    }
+
+    private void handle(int from, ByteBuffer frame) throws IOException {
+        byte opcode = frame.get();
+        int id = frame.getInt();
+        switch (opcode) {
+            case GROUP_ADDED: {
+                String name = BinaryProtocol.getString(frame);
+                if (ownerIndex(name) != from) {
+                    break; // Only the owner announces a group
+                }
+                GroupChatServer.groups.create(name); // Already known after a resync
+                Set<String> announced = resyncing.get(from);
+                if (announced != null) {
+                    announced.add(name);
+                }
+                break;
+            }
+            case GROUP_REMOVED: {
+                String name = BinaryProtocol.getString(frame);
+                if (ownerIndex(name) == from) {
+                    GroupChatServer.dropGroup(name);
+                }
+                break;
+            }
+            case RESYNC_DONE: {
+                // The node has announced every group it owns; the others it owned were removed meanwhile
+                Set<String> announced = resyncing.remove(from);
+                if (announced != null) {
+                    for (GroupRegistry.Group group : GroupChatServer.groups.all()) {
+                        if (ownerIndex(group.name) == from && !announced.contains(group.name)) {
+                            GroupChatServer.dropGroup(group.name);
+                        }
+                    }
+                    GroupChatServer.rejoinRestored(name -> ownerIndex(name) == from, announced);
+                }
+                break;
+            }
+            case MEMBERSHIP: {
+                GroupRegistry.Group group = GroupChatServer.groups.get(BinaryProtocol.getString(frame));
+                int members = frame.getInt();
+                String notice = BinaryProtocol.getString(frame);
+                if (group != null) {
+                    if (members > 0) {
+                        group.remoteNodes.add(from);
+                    } else {
+                        group.remoteNodes.remove(from);
+                    }
+                    if (!notice.isEmpty()) {
+                        GroupChatServer.Session.broadcast(group, notice, null);
+                    }
+                }
+                break;
+            }
+            case PUBLISH: {
+                GroupRegistry.Group group = GroupChatServer.groups.get(BinaryProtocol.getString(frame));
+                String sender = BinaryProtocol.getString(frame);
+                String text = BinaryProtocol.getString(frame);
+                if (group != null) {
+                    GroupChatServer.publish(group, sender, text);
+                }
+                break;
+            }
+            case CHAT: {
+                GroupRegistry.Group group = GroupChatServer.groups.get(BinaryProtocol.getString(frame));
+                String sender = BinaryProtocol.getString(frame);
+                String text = BinaryProtocol.getString(frame);
+                long seq = frame.getLong();
+                if (group != null) {
+                    GroupChatServer.Session.broadcastChat(group, sender, text, seq);
+                }
+                break;
+            }
+            case NOTICE: {
+                GroupRegistry.Group group = GroupChatServer.groups.get(BinaryProtocol.getString(frame));
+                String text = BinaryProtocol.getString(frame);
+                if (group != null) {
+                    GroupChatServer.Session.broadcast(group, text, null);
+                }
+                break;
+            }
+            case FILE_SHARED: {
+                GroupRegistry.Group group = GroupChatServer.groups.get(BinaryProtocol.getString(frame));
+                String sender = BinaryProtocol.getString(frame);
+                String fileName = BinaryProtocol.getString(frame);
+                long size = frame.getLong();
+                byte[] hash = BinaryProtocol.getBytes(frame, BinaryProtocol.HASH);
+                remoteFiles.put(BlobStore.hex(hash), from);
+                if (group != null) {
+                    GroupChatServer.Session.announceFile(group, sender, fileName, size, hash, null);
+                }
+                break;
+            }
+            case CREATE_GROUP: {
+                String name = BinaryProtocol.getString(frame);
+                if (GroupChatServer.addGroup(name) != null) {
+                    respond(from, id, BinaryProtocol.STATUS_OK, "Group " + name + " created.", new byte[0]);
+                } else {
+                    respond(from, id, BinaryProtocol.STATUS_ERROR, "Error: Group " + name + " already exists.", new byte[0]);
+                }
+                break;
+            }
+            case DELETE_GROUP: {
+                String name = BinaryProtocol.getString(frame);
+                if (GroupChatServer.removeGroup(name) != null) {
+                    respond(from, id, BinaryProtocol.STATUS_OK, "Group " + name + " removed.", new byte[0]);
+                } else {
+                    respond(from, id, BinaryProtocol.STATUS_ERROR, "Error: Group " + name + " does not exist.", new byte[0]);
+                }
+                break;
+            }
+            case GET_HISTORY: {
+                String name = BinaryProtocol.getString(frame);
+                long afterSeq = frame.getLong();
+                int limit = frame.getInt();
+                try {
+                    MessageLog.History history = GroupChatServer.readHistory(name, afterSeq, limit);
+                    ByteBuffer payload = ByteBuffer.allocate(4 + 8 + history.records.length);
+                    payload.putInt(history.count).putLong(history.lastSeq).put(history.records);
+                    respond(from, id, BinaryProtocol.STATUS_OK, "", payload.array());
+                } catch (IOException e) {
+                    respond(from, id, BinaryProtocol.STATUS_ERROR, e.getMessage(), new byte[0]);
+                }
+                break;
+            }
+            case FETCH_BLOB: {
+                byte[] hash = BinaryProtocol.getBytes(frame, BinaryProtocol.HASH);
+                long offset = frame.getLong();
+                int length = frame.getInt();
+                ByteBuffer data = null;
+                try {
+                    data = readBlob(hash, offset, length);
+                    respond(from, id, BinaryProtocol.STATUS_OK, "", data);
+                } catch (IOException e) {
+                    respond(from, id, BinaryProtocol.STATUS_ERROR, "Error fetching file: " + e.getMessage(), new byte[0]);
+                } finally {
+                    BufferPool.release(data);
+                }
+                break;
+            }
+            case RESPONSE:
+                complete(id, frame);
+                break;
+            default:
+                throw new IOException("Unknown cluster frame " + opcode);
+        }
+    }
+
+    // Up to MAX_FETCH bytes of a complete file in this node's store, in a pooled buffer the caller releases
+    private static ByteBuffer readBlob(byte[] hash, long offset, int length) throws IOException {
+        BlobStore.Manifest manifest = GroupChatServer.blobs != null ? GroupChatServer.blobs.get(hash) : null;
+        if (manifest == null || !manifest.complete()) {
+            throw new IOException("File " + BlobStore.hex(hash) + " not found.");
+        }
+        if (offset < 0 || offset > manifest.size || length < 0) {
+            throw new IOException("Invalid range for file " + manifest.hash);
+        }
+        ByteBuffer data = BufferPool.acquire((int) Math.min(Math.min(length, BinaryProtocol.MAX_FETCH), manifest.size - offset));
+        try (FileChannel file = FileChannel.open(GroupChatServer.blobs.path(manifest), StandardOpenOption.READ)) {
+            while (data.hasRemaining() && file.read(data, offset + data.position()) >= 0) {
+                // Keep reading until the range is filled
+            }
+        } catch (IOException e) {
+            BufferPool.release(data);
+            throw e;
+        }
+        return data.flip();
+    }
+
+    private static InetSocketAddress address(String node) {
+        int colon = node.lastIndexOf(':');
+        return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // The outgoing link to one other node: connects, re-announces this node's state, then writes
+    // queued frames until the connection fails, and starts over after a short pause
+    private class Peer {
+        final int index;
+        private volatile OutboundQueue queue; // Null while the link is down
+        private volatile SocketChannel channel;
+
+        Peer(int index) {
+            this.index = index;
+        }
+
+        // Queue a frame for the node; false if the link is down. The peer takes its own reference
+        boolean send(Frame frame) {
+            OutboundQueue current = queue;
+            if (current == null) {
+                return false;
+            }
+            if (!current.offer(frame.retain())) {
+                frame.release();
+                // Dropping frames would leave the nodes out of step; start over with a resync instead
+                System.out.println("Cluster link to " + nodes[index] + " is not keeping up; reconnecting.");
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        void run() {
+            boolean wasUp = false;
+            while (true) {
+                OutboundQueue current = new OutboundQueue(LINK_QUEUE);
+                try (SocketChannel link = SocketChannel.open(address(nodes[index]))) {
+                    link.socket().setTcpNoDelay(true);
+                    channel = link;
+                    current.offer(Frame.wrap(new BinaryProtocol.Writer(HELLO, 0).putString(self).detach()));
+                    queue = current;
+                    System.out.println("Cluster link to " + nodes[index] + " up");
+                    wasUp = true;
+                    resync();
+                    writeLoop(link, current);
+                } catch (IOException | InterruptedException e) {
+                    if (wasUp) {
+                        System.out.println("Cluster link to " + nodes[index] + " down (" + e.getMessage() + ")");
+                        wasUp = false;
+                    }
+                } finally {
+                    queue = null;
+                    channel = null;
+                    current.close();
+                    current.releaseAll();
+                    for (Map.Entry<Integer, Pending> request : pending.entrySet()) {
+                        if (request.getValue().node == index) {
+                            complete(request.getKey(), null);
+                        }
+                    }
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        // Announce the groups this node owns and its members in every group, so a node that restarted
+        // or missed changes while the link was down catches up
+        private void resync() {
+            for (GroupRegistry.Group group : GroupChatServer.groups.all()) {
+                if (ownerIndex(group.name) == selfIndex) {
+                    ClusterNode.this.send(index, new BinaryProtocol.Writer(GROUP_ADDED, 0).putString(group.name));
+                }
+            }
+            ClusterNode.this.send(index, new BinaryProtocol.Writer(RESYNC_DONE, 0));
+            membershipLock.lock();
+            try {
+                for (GroupRegistry.Group group : GroupChatServer.groups.all()) {
+                    if (group.memberCount() > 0) {
+                        ClusterNode.this.send(index, new BinaryProtocol.Writer(MEMBERSHIP, 0)
+                                .putString(group.name).putInt(group.memberCount()).putString(""));
+                    }
+                }
+            } finally {
+                membershipLock.unlock();
+            }
+        }
+
+        // Gather queued frames into one write call, as ClientHandler does for clients
+        private void writeLoop(SocketChannel link, OutboundQueue current) throws IOException, InterruptedException {
+            Frame[] frames = new Frame[MAX_BATCH];
+            ByteBuffer[] buffers = new ByteBuffer[MAX_BATCH];
+            Frame frame;
+            while ((frame = current.take()) != null) {
+                int count = 0;
+                long bytes = 0;
+                try {
+                    while (frame != null) {
+                        frames[count] = frame;
+                        buffers[count] = frame.asBuffer();
+                        bytes += frame.length();
+                        if (++count == MAX_BATCH) {
+                            break;
+                        }
+                        frame = current.poll();
+                    }
+                    for (long written = 0; written < bytes; ) {
+                        written += link.write(buffers, 0, count);
+                    }
+                } finally {
+                    for (; count > 0; count--) {
+                        frames[count - 1].release();
+                        frames[count - 1] = null;
+                        buffers[count - 1] = null;
+                    }
+                }
+            }
+        }
+
+        private void close() {
+            OutboundQueue current = queue;
+            if (current != null) {
+                current.close();
+            }
+            SocketChannel link = channel;
+            if (link != null) {
+                try {
+                    link.close(); // The writer fails and reconnects
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
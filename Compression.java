@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// DEFLATE for binary protocol frames, used on connections that negotiated it (see
+// BinaryProtocol.DEFLATE). Each frame is compressed on its own rather than in one stream per
+// connection, so a broadcast compresses a message once and every member that asked for
+// compression gets the same bytes; a frame that would not get smaller is sent as it is.
+//
+// Deflaters hold a few hundred KB of native memory each, so they are shared through a small pool
+// instead of kept per thread, which in threaded mode would mean one per client.
+public class Compression {
+    private static final int IDLE_CODECS = Math.max(2, Runtime.getRuntime().availableProcessors() * 2); // Kept for reuse, per kind
+
+    static volatile int level = Deflater.BEST_SPEED; // Applies to deflaters created after a change
+
+    private static final ReentrantLock lock = new ReentrantLock(); // Guards the two idle lists
+    private static final ArrayDeque<Deflater> deflaters = new ArrayDeque<>();
+    private static final ArrayDeque<Inflater> inflaters = new ArrayDeque<>();
+
+    // The compressed form of a complete binary frame (length prefix, opcode, request id, body) in a
+    // BufferPool buffer, from 0 to the limit, or null if it would not be smaller. The frame is not
+    // modified
+    static ByteBuffer compress(ByteBuffer frame) {
+        int bodyStart = 4 + BinaryProtocol.HEADER;
+        if (frame.limit() <= bodyStart + 4) {
+            return null;
+        }
+        ByteBuffer out = BufferPool.acquire(frame.limit());
+        out.putInt(0).put((byte) (frame.get(4) | BinaryProtocol.COMPRESSED)).putInt(frame.getInt(5))
+                .putInt(frame.limit() - bodyStart);
+        if (!deflate(frame.duplicate().position(bodyStart), out) || out.position() >= frame.limit()) {
+            BufferPool.release(out);
+            return null;
+        }
+        out.putInt(0, out.position() - 4);
+        return out.flip();
+    }
+
+    // Compress a frame body, from its position to its limit, into the rest of out; false if it does not fit
+    static boolean deflate(ByteBuffer body, ByteBuffer out) {
+        Deflater deflater = takeDeflater();
+        try {
+            deflater.setInput(body);
+            deflater.finish();
+            while (!deflater.finished() && out.hasRemaining()) {
+                deflater.deflate(out);
+            }
+            return deflater.finished();
+        } finally {
+            giveBack(deflater);
+        }
+    }
+
+    // Expand a compressed frame body, read from its opcode on, into a BufferPool buffer holding the
+    // opcode, request id and original body; the caller releases it. The original body may be at most
+    // maxBody bytes, so a small frame cannot expand into an unbounded one
+    static ByteBuffer inflate(ByteBuffer frame, int maxBody) throws IOException {
+        if (frame.remaining() < BinaryProtocol.HEADER + 4) {
+            throw new IOException("Truncated compressed frame");
+        }
+        byte opcode = (byte) (frame.get() & ~BinaryProtocol.COMPRESSED);
+        int requestId = frame.getInt();
+        int length = frame.getInt();
+        if (length < 0 || length > maxBody) {
+            throw new IOException("Invalid compressed frame length " + length);
+        }
+        ByteBuffer out = BufferPool.acquire(BinaryProtocol.HEADER + length);
+        out.put(opcode).putInt(requestId);
+        Inflater inflater = takeInflater();
+        boolean complete = false;
+        try {
+            inflater.setInput(frame);
+            while (out.hasRemaining()) {
+                if (inflater.inflate(out) == 0
+                        && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Compressed frame is shorter than its length");
+                }
+            }
+            complete = true;
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed frame", e);
+        } finally {
+            giveBack(inflater);
+            if (!complete) {
+                BufferPool.release(out);
+            }
+        }
+        return out.flip();
+    }
+
+    private static Deflater takeDeflater() {
+        lock.lock();
+        try {
+            Deflater deflater = deflaters.poll();
+            if (deflater != null) {
+                return deflater;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return new Deflater(level, true); // Raw DEFLATE: the frame length already delimits it
+    }
+
+    private static Inflater takeInflater() {
+        lock.lock();
+        try {
+            Inflater inflater = inflaters.poll();
+            if (inflater != null) {
+                return inflater;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return new Inflater(true);
+    }
+
+    private static void giveBack(Deflater deflater) {
+        deflater.reset(); // Also drops the reference to the input buffer
+        lock.lock();
+        try {
+            if (deflaters.size() < IDLE_CODECS) {
+                deflaters.push(deflater);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        deflater.end();
+    }
+
+    private static void giveBack(Inflater inflater) {
+        inflater.reset();
+        lock.lock();
+        try {
+            if (inflaters.size() < IDLE_CODECS) {
+                inflaters.push(inflater);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        inflater.end();
+    }
+}
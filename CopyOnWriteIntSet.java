@@ -0,0 +1,90 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+// Set of ints kept as one sorted array that is replaced on every change, so readers check
+// membership with a binary search and iterate a snapshot without locking. Four bytes per element,
+// against a few dozen for a boxed entry in a concurrent hash set; changes copy the array, which
+// suits memberships that are read on every message and written only on join and leave.
+public class CopyOnWriteIntSet {
+    private static final int[] EMPTY = new int[0];
+    private static final AtomicReferenceFieldUpdater<CopyOnWriteIntSet, int[]> VALUES =
+            AtomicReferenceFieldUpdater.newUpdater(CopyOnWriteIntSet.class, int[].class, "values");
+
+    private volatile int[] values = EMPTY;
+
+    boolean contains(int value) {
+        return Arrays.binarySearch(values, value) >= 0;
+    }
+
+    // Returns false if the value was already present
+    boolean add(int value) {
+        while (true) {
+            int[] current = values;
+            int index = Arrays.binarySearch(current, value);
+            if (index >= 0) {
+                return false;
+            }
+            int insert = -index - 1;
+            int[] next = new int[current.length + 1];
+            System.arraycopy(current, 0, next, 0, insert);
+            next[insert] = value;
+            System.arraycopy(current, insert, next, insert + 1, current.length - insert);
+            if (VALUES.compareAndSet(this, current, next)) {
+                return true;
+            }
+        }
+    }
+
+    // Returns false if the value was not present
+    boolean remove(int value) {
+        while (true) {
+            int[] current = values;
+            int index = Arrays.binarySearch(current, value);
+            if (index < 0) {
+                return false;
+            }
+            int[] next = current.length == 1 ? EMPTY : new int[current.length - 1];
+            System.arraycopy(current, 0, next, 0, index);
+            System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+            if (VALUES.compareAndSet(this, current, next)) {
+                return true;
+            }
+        }
+    }
+
+    // Add many values with a single copy, e.g. when restoring saved memberships; values must be
+    // ascending and distinct
+    void addAll(int[] sorted) {
+        while (true) {
+            int[] current = values;
+            int[] next = new int[current.length + sorted.length];
+            int i = 0, j = 0, n = 0;
+            while (i < current.length || j < sorted.length) {
+                if (j == sorted.length || (i < current.length && current[i] < sorted[j])) {
+                    next[n++] = current[i++];
+                } else if (i == current.length || sorted[j] < current[i]) {
+                    next[n++] = sorted[j++];
+                } else {
+                    next[n++] = current[i++]; // Already present
+                    j++;
+                }
+            }
+            if (VALUES.compareAndSet(this, current, n == next.length ? next : Arrays.copyOf(next, n))) {
+                return;
+            }
+        }
+    }
+
+    // The elements in ascending order at the time of the call; must not be modified
+    int[] snapshot() {
+        return values;
+    }
+
+    int size() {
+        return values.length;
+    }
+
+    void clear() {
+        values = EMPTY;
+    }
+}
@@ -0,0 +1,192 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Delivery of group messages and notices to the members. A group of up to shardSize members is
+// served on the sender's thread, as it always was. A larger group's delivery is handed to a
+// fork-join pool: the member list is split in halves, along its chunks, until each part has at most
+// shardSize members or is a single chunk, and the parts run in parallel, so the time to reach
+// everyone shrinks with the number of cores and the sender's thread goes back to reading its client
+// at once.
+//
+// Each group has a lane that runs its handed-off deliveries one at a time, in the order they were
+// handed off. Members therefore get every sender's messages in order, and in fact the group's
+// messages in the order they were published, however the shards are scheduled. A group whose lane
+// still has deliveries pending keeps using it even after it shrinks, so a smaller message cannot
+// overtake a larger one.
+public class FanOutPool {
+    private static final int LANE_BATCH = 16; // Deliveries a lane runs before letting other groups' lanes have the thread
+
+    static volatile int shardSize = 1000; // Members per shard; 0 delivers every message on the sender's thread
+    private static volatile int threads = Runtime.getRuntime().availableProcessors();
+    private static volatile ForkJoinPool pool; // Created on first use
+    private static final ReentrantLock lock = new ReentrantLock(); // Guards creating the pool
+
+    static void start(ServerConfig config) {
+        shardSize = config.fanOutShard;
+        threads = config.fanOutThreads;
+    }
+
+    // A message or notice for the members of a group. Frames are encoded on first use, once per kind,
+    // and shared by every member and shard
+    abstract static class Delivery {
+        final GroupRegistry.Group group;
+        private final AtomicReferenceArray<Frame> frames;
+        int[][] members; // Member ids when the delivery was made, chunk by chunk
+        int memberCount;
+        long created; // System.nanoTime() when the delivery was made
+
+        Delivery(GroupRegistry.Group group, int kinds) {
+            this.group = group;
+            this.frames = new AtomicReferenceArray<>(kinds);
+        }
+
+        // Queue the delivery for one member; called from every shard at once
+        abstract void deliverTo(GroupChatServer.Session member);
+
+        // Encode the frame of the given kind, or return null if there is none
+        abstract Frame encode(int kind);
+
+        // The frame of the given kind, encoded by the first member that needs it. Shards that race to
+        // encode it keep the first one and release their own
+        Frame frame(int kind) {
+            Frame frame = frames.get(kind);
+            if (frame == null) {
+                frame = encode(kind);
+                if (frame != null && !frames.compareAndSet(kind, null, frame)) {
+                    frame.release();
+                    frame = frames.get(kind);
+                }
+            }
+            return frame;
+        }
+
+        // Deliver to the members in chunks from to to
+        private void deliverRange(int from, int to) {
+            for (int c = from; c < to; c++) {
+                for (int id : members[c]) {
+                    GroupChatServer.Session client = GroupChatServer.session(id);
+                    if (client != null) { // Else disconnected since the snapshot
+                        deliverTo(client);
+                    }
+                }
+            }
+        }
+
+        // Drop the delivery's references to its frames once every member has been served
+        private void finish() {
+            for (int i = 0; i < frames.length(); i++) {
+                Frame frame = frames.get(i);
+                if (frame != null) {
+                    frame.release();
+                }
+            }
+            ServerMetrics.recordFanOut(memberCount, System.nanoTime() - created);
+        }
+    }
+
+    // Deliver to every member of the delivery's group, on this thread or through the group's lane
+    static void deliver(Delivery delivery) {
+        delivery.created = System.nanoTime();
+        delivery.members = delivery.group.memberIds();
+        delivery.memberCount = SegmentedIntSet.size(delivery.members);
+        int shard = shardSize;
+        if ((shard <= 0 || delivery.memberCount <= shard) && !delivery.group.fanningOut()) {
+            delivery.deliverRange(0, delivery.members.length);
+            delivery.finish();
+        } else {
+            delivery.group.fanOutLane().submit(delivery);
+        }
+    }
+
+    // The handed-off deliveries of one group, run one at a time in order
+    static class Lane {
+        private final ConcurrentLinkedQueue<Delivery> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger(); // Submitted and not yet finished
+
+        boolean busy() {
+            return pending.get() > 0;
+        }
+
+        private void submit(Delivery delivery) {
+            queue.offer(delivery);
+            if (pending.getAndIncrement() == 0) {
+                pool().execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            for (int i = 0; i < LANE_BATCH; i++) {
+                Delivery delivery = queue.poll(); // Offered before it was counted, so never null here
+                try {
+                    new Shard(delivery, 0, delivery.members.length, Math.max(1, shardSize)).invoke();
+                } catch (RuntimeException e) {
+                    e.printStackTrace(); // The members not reached miss this one; the lane goes on with the next
+                } finally {
+                    delivery.finish();
+                }
+                if (pending.decrementAndGet() == 0) {
+                    return;
+                }
+            }
+            pool().execute(this::drain); // More are pending; let other lanes have the thread in between
+        }
+    }
+
+    // Chunks from to to of a delivery's member list, split in halves until a part is no larger than
+    // a shard
+    private static class Shard extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Delivery delivery;
+        private final int from;
+        private final int to;
+        private final int size;
+
+        Shard(Delivery delivery, int from, int to, int size) {
+            this.delivery = delivery;
+            this.from = from;
+            this.to = to;
+            this.size = size;
+        }
+
+        @Override
+        protected void compute() {
+            int members = 0;
+            for (int c = from; c < to; c++) {
+                members += delivery.members[c].length;
+            }
+            if (members <= size || to - from == 1) {
+                delivery.deliverRange(from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                ForkJoinTask.invokeAll(new Shard(delivery, from, middle, size), new Shard(delivery, middle, to, size));
+            }
+        }
+    }
+
+    private static ForkJoinPool pool() {
+        ForkJoinPool current = pool;
+        if (current == null) {
+            lock.lock();
+            try {
+                if (pool == null) {
+                    pool = new ForkJoinPool(Math.max(1, threads), forkJoinPool -> {
+                        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                        thread.setName("fan-out-" + thread.getPoolIndex());
+                        return thread;
+                    }, null, true);
+                }
+                current = pool;
+            } finally {
+                lock.unlock();
+            }
+        }
+        return current;
+    }
+}
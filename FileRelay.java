@@ -0,0 +1,180 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// One file on its way from an uploader to the members of a group. The upload is appended to a
+// spool file that members stream from with FileChannel.transferTo while it is still arriving, so
+// delivery starts with the first chunk and each member reads at its own pace. The spool file is
+// deleted once the uploader and every member are done with it. A relay can also serve a range of
+// a file that is already complete, such as a BlobStore fetch.
+public class FileRelay {
+    static final int CHUNK = 1024 * 1024; // Largest single transfer to or from the spool file
+
+    final String fileName;
+    final long size;
+    private final FileChannel spool;
+    private final long base; // Offset in the spool file of the relay's first byte
+    private final AtomicInteger refs = new AtomicInteger(1); // The uploader holds the first reference
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition progress = lock.newCondition();
+    private long received; // Bytes of the upload written to the spool file so far; guarded by lock
+    private boolean failed; // The upload ended before all bytes arrived; guarded by lock
+    private final List<Runnable> listeners = new ArrayList<>(); // One-shot progress callbacks; guarded by lock
+
+    private FileRelay(String fileName, long size, FileChannel spool, long base) {
+        this.fileName = fileName;
+        this.size = size;
+        this.spool = spool;
+        this.base = base;
+    }
+
+    static FileRelay create(String fileName, long size) throws IOException {
+        Path path = Files.createTempFile("relay-", ".part");
+        FileChannel spool = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        return new FileRelay(fileName, size, spool, 0);
+    }
+
+    // Serve bytes [offset, offset + length) of a complete file; the file is left in place on release
+    static FileRelay open(Path path, long offset, long length) throws IOException {
+        FileRelay relay = new FileRelay(path.getFileName().toString(), length, FileChannel.open(path), offset);
+        relay.received = length;
+        return relay;
+    }
+
+    // Uploader side: move up to max bytes from a blocking channel into the spool; returns -1 at end of stream
+    long receiveFrom(ReadableByteChannel source, long max) throws IOException {
+        long position = received();
+        long count = spool.transferFrom(source, position, Math.min(max, CHUNK));
+        if (count == 0) {
+            // transferFrom reports end of stream as 0; probe so a closed connection is not mistaken for a slow one
+            ByteBuffer probe = ByteBuffer.allocate(1);
+            if (source.read(probe) < 0) {
+                return -1;
+            }
+            probe.flip();
+            count = spool.write(probe, position);
+        }
+        advance(count);
+        return count;
+    }
+
+    // Uploader side: append bytes that were already read from the connection
+    void receive(ByteBuffer data) throws IOException {
+        long position = received();
+        long count = 0;
+        while (data.hasRemaining()) {
+            count += spool.write(data, position + count);
+        }
+        advance(count);
+    }
+
+    // Uploader side: the upload ended early; members pad their copy and are told it failed
+    void fail() {
+        lock.lock();
+        try {
+            failed = true;
+            progress.signalAll();
+            runListeners();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void advance(long count) {
+        ServerMetrics.fileBytesIn.add(count);
+        lock.lock();
+        try {
+            received += count;
+            progress.signalAll();
+            runListeners();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long received() {
+        lock.lock();
+        try {
+            return received;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean failed() {
+        lock.lock();
+        try {
+            return failed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Member side: wait until bytes beyond position are available; returns how many bytes are
+    // available in total, or position itself once the upload has failed
+    long awaitAvailable(long position) throws InterruptedException {
+        lock.lock();
+        try {
+            while (received <= position && !failed && received < size) {
+                progress.await();
+            }
+            return received;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Member side: run the callback once more data arrives or the upload fails; returns false and
+    // does not register it if that has already happened since position was read
+    boolean onProgress(long position, Runnable listener) {
+        lock.lock();
+        try {
+            if (received > position || failed) {
+                return false;
+            }
+            listeners.add(listener);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runListeners() {
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+        listeners.clear();
+    }
+
+    // Member side: send spooled bytes [position, position + count) to the member's socket
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long sent = spool.transferTo(base + position, Math.min(count, CHUNK), target);
+        ServerMetrics.fileBytesOut.add(sent);
+        return sent;
+    }
+
+    FileRelay retain() {
+        if (refs.getAndIncrement() <= 0) {
+            throw new IllegalStateException("FileRelay used after release");
+        }
+        return this;
+    }
+
+    // Drop a reference; a spool file is deleted when the last one goes
+    void release() {
+        if (refs.decrementAndGet() == 0) {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A message already encoded in wire format, either a writeUTF text frame or a binary protocol frame.
+// A broadcast encodes its text once and hands the same Frame to every recipient; each queue holds
+// a reference until its writer is done with it. The bytes usually live in a BufferPool buffer,
+// which goes back to the pool with the last reference.
+public class Frame {
+    private final ByteBuffer data; // Complete frame including its length prefix, from 0 to the limit; never modified after encoding
+    private final AtomicInteger refs = new AtomicInteger(1); // The creator holds the first reference
+    private final FileRelay relay; // File contents that follow the frame on the wire, or null
+    private final boolean bulk; // File data that smaller frames queued after it may overtake
+    private final boolean numbered; // Counted by a resumable session; false for handshake frames
+    private final Frame standIn; // Kept for replay in place of a file announcement, or null
+
+    private Frame(ByteBuffer data, FileRelay relay, boolean bulk) {
+        this(data, relay, bulk, true, null);
+    }
+
+    private Frame(ByteBuffer data, FileRelay relay, boolean bulk, boolean numbered, Frame standIn) {
+        this.data = data;
+        this.relay = relay;
+        this.bulk = bulk;
+        this.numbered = numbered;
+        this.standIn = standIn;
+        if (BufferPool.debug) {
+            AtomicInteger count = refs; // Not the field: the check must not keep the frame reachable
+            BufferPool.watch(this, "Frame of " + data.limit() + " bytes", () -> count.get() <= 0);
+        }
+    }
+
+    // Encode a message once; the caller owns the returned reference and must release it
+    static Frame of(String message) {
+        return new Frame(Frames.encodePooled(message), null, false);
+    }
+
+    // A handshake frame: sent as text whatever protocol follows, and not counted among the frames a
+    // resumed session replays
+    static Frame control(String message) {
+        return new Frame(Frames.encodePooled(message), null, false, false, null);
+    }
+
+    // Take ownership of a buffer that is already in wire format, e.g. from BinaryProtocol.Writer.detach()
+    static Frame wrap(ByteBuffer data) {
+        return new Frame(data, null, false);
+    }
+
+    // A complete frame of file data, queued as bulk data like a streamed one
+    static Frame data(ByteBuffer data) {
+        return new Frame(data, null, true);
+    }
+
+    // A file announcement: the header frame, then the 8-byte file size and the file contents streamed
+    // from the relay. A resumed session replays the stand-in instead, e.g. a notice that the file was
+    // not received. Takes ownership of the header and the stand-in
+    static Frame file(ByteBuffer header, FileRelay relay, Frame standIn) {
+        ByteBuffer data = BufferPool.acquire(header.remaining() + 8);
+        data.put(header).putLong(relay.size).flip();
+        BufferPool.release(header);
+        return new Frame(data, relay.retain(), false, true, standIn);
+    }
+
+    // A frame whose length prefix already counts the relay's contents, which are streamed after the
+    // header bytes. Such a frame is a reply that stands on its own, so it is queued as bulk data
+    static Frame stream(ByteBuffer header, FileRelay relay) {
+        return new Frame(header, relay.retain(), true);
+    }
+
+    // The binary frame compressed for clients that negotiated it (see Compression), as a new frame the
+    // caller owns, or another reference to this one if compressing would not make it smaller
+    Frame compressed() {
+        ByteBuffer deflated = relay == null ? Compression.compress(data) : null;
+        return deflated != null ? new Frame(deflated, null, bulk, numbered, null) : retain();
+    }
+
+    // A reference to what a resumable session keeps of this frame for replay, or null if it keeps
+    // nothing. File contents are not kept: their relay holds an open file, and a buffer of them would
+    // pin up to a file descriptor per frame for a client that may never come back. A file
+    // announcement is replaced by its stand-in, and the client asks again for file data it missed
+    Frame forReplay() {
+        if (bulk) {
+            return null;
+        }
+        return (standIn != null ? standIn : this).retain();
+    }
+
+    boolean bulk() {
+        return bulk;
+    }
+
+    boolean numbered() {
+        return numbered;
+    }
+
+    // The file whose contents a writer must stream after this frame's bytes, or null
+    FileRelay relay() {
+        return relay;
+    }
+
+    int length() {
+        return data.limit();
+    }
+
+    // Take another reference, e.g. before queueing the frame for one more recipient
+    Frame retain() {
+        if (refs.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Frame used after release");
+        }
+        return this;
+    }
+
+    // Drop a reference once a recipient has written or discarded the frame
+    void release() {
+        int remaining = refs.decrementAndGet();
+        if (remaining < 0) {
+            throw new IllegalStateException("Frame released too many times");
+        }
+        if (remaining == 0) {
+            if (relay != null) {
+                relay.release();
+            }
+            if (standIn != null) {
+                standIn.release();
+            }
+            BufferPool.release(data);
+        }
+    }
+
+    // A read-only view of the frame for writing it directly; valid until the caller releases its reference
+    ByteBuffer asBuffer() {
+        return data.asReadOnlyBuffer();
+    }
+
+    // Append the whole frame to a buffer that has room for it
+    void copyTo(ByteBuffer buffer) {
+        buffer.put(buffer.position(), data, 0, data.limit());
+        buffer.position(buffer.position() + data.limit());
+    }
+}
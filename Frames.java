@@ -0,0 +1,83 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+// Helpers for the wire format used by DataOutputStream.writeUTF / DataInputStream.readUTF:
+// a 2-byte unsigned length followed by that many bytes of modified UTF-8
+public class Frames {
+    static final int MAX_FRAME = 2 + 65535; // Largest possible writeUTF frame, including the length prefix
+
+    // Encode a string exactly the way writeUTF would put it on the wire
+    static byte[] encode(String message) {
+        ByteBuffer frame = ByteBuffer.allocate(2 + encodedLength(message));
+        encode(message, frame);
+        return frame.array();
+    }
+
+    // Encode into a buffer from BufferPool, position 0 to limit; whoever ends up holding it releases it
+    static ByteBuffer encodePooled(String message) {
+        ByteBuffer frame = BufferPool.acquire(2 + encodedLength(message));
+        encode(message, frame);
+        return frame.flip();
+    }
+
+    // Bytes of modified UTF-8 after the length prefix
+    static int encodedLength(String message) {
+        int length = message.length();
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == 0 || c >= 0x80) {
+                length += c >= 0x800 ? 2 : 1;
+            }
+        }
+        if (length > 65535) {
+            throw new IllegalArgumentException("Message too long to encode: " + length + " bytes");
+        }
+        return length;
+    }
+
+    private static void encode(String message, ByteBuffer frame) {
+        frame.putShort((short) (frame.remaining() - 2));
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c != 0 && c < 0x80) {
+                frame.put((byte) c);
+            } else if (c < 0x800) {
+                frame.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else {
+                frame.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    // Length of the complete frame at the buffer's position, or -1 if it has not fully arrived yet
+    static int completeFrameLength(ByteBuffer buffer) {
+        if (buffer.remaining() < 2) {
+            return -1;
+        }
+        int length = 2 + (buffer.getShort(buffer.position()) & 0xFFFF);
+        return buffer.remaining() >= length ? length : -1;
+    }
+
+    // Decode one complete frame starting at the buffer's position and advance past it, even if it is malformed
+    static String decode(ByteBuffer buffer, int frameLength) throws IOException {
+        int start = buffer.position() + 2;
+        int end = buffer.position() + frameLength;
+        buffer.position(end);
+        char[] chars = new char[end - start];
+        int count = 0;
+        for (int i = start; i < end; ) {
+            int a = buffer.get(i++) & 0xFF;
+            if (a < 0x80) {
+                chars[count++] = (char) a;
+            } else if ((a & 0xE0) == 0xC0 && i < end && (buffer.get(i) & 0xC0) == 0x80) {
+                chars[count++] = (char) ((a & 0x1F) << 6 | buffer.get(i++) & 0x3F);
+            } else if ((a & 0xF0) == 0xE0 && i + 1 < end && (buffer.get(i) & 0xC0) == 0x80 && (buffer.get(i + 1) & 0xC0) == 0x80) {
+                chars[count++] = (char) ((a & 0x0F) << 12 | (buffer.get(i) & 0x3F) << 6 | buffer.get(i + 1) & 0x3F);
+                i += 2;
+            } else {
+                throw new UTFDataFormatException("Malformed input around byte " + (i - 1 - start));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+}
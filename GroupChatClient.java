@@ -1,259 +1,936 @@
-import javax.swing.*;
-import java.awt.*;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
-import java.io.*;
-import java.net.*;
-
-public class GroupChatClient implements Runnable {
-    private static final int SERVER_PORT = 7777;
-    private Socket socket;
-    private DataOutputStream out;
-    private DataInputStream in;
-    private String clientName;
-    private Thread listenerThread;
-
-    // GUI components
-    private JFrame frame;
-    private JTextArea messageArea;
-    private JTextField inputField;
-    private JTextField fileField;
-    private JButton sendMessageButton;
-    private JButton fileButton;
-    private JButton addGroupButton;
-    private JButton joinGroupButton;
-    private JButton leaveGroupButton;
-    private JButton removeGroupButton;
-    private JButton quitButton;
-
-    public GroupChatClient(String serverAddress) throws IOException {
-        socket = new Socket(serverAddress, SERVER_PORT);
-        out = new DataOutputStream(socket.getOutputStream());
-        in = new DataInputStream(socket.getInputStream());
-
-        clientName = getClientName();
-        out.writeUTF(clientName);
-
-        // Initialize GUI
-        initializeGUI();
-
-        listenerThread = new Thread(this);
-        listenerThread.start();
-    }
-
-    private String getClientName() {
-        return JOptionPane.showInputDialog(frame, "Enter your nickname:", "Nickname", JOptionPane.PLAIN_MESSAGE);
-    }
-
-    private void initializeGUI() {
-        frame = new JFrame("Group Chat Client - " + clientName);
-        messageArea = new JTextArea(20, 50);
-        messageArea.setEditable(false);
-        messageArea.setLineWrap(true);
-
-        inputField = new JTextField(40);
-        fileField = new JTextField(20);
-        sendMessageButton = new JButton("Send Message");
-        fileButton = new JButton("Send File");
-        addGroupButton = new JButton("Add Group");
-        joinGroupButton = new JButton("Join Group");
-        leaveGroupButton = new JButton("Leave Group");
-        removeGroupButton = new JButton("Remove Group");
-        quitButton = new JButton("Quit");
-
-        JPanel panel = new JPanel();
-        panel.add(new JLabel("Message:"));
-        panel.add(inputField);
-        panel.add(sendMessageButton);
-        panel.add(new JLabel("File:"));
-        panel.add(fileField);
-        panel.add(fileButton);
-        panel.add(addGroupButton);
-        panel.add(joinGroupButton);
-        panel.add(leaveGroupButton);
-        panel.add(removeGroupButton);
-        panel.add(quitButton);
-
-        frame.getContentPane().add(new JScrollPane(messageArea), BorderLayout.CENTER);
-        frame.getContentPane().add(panel, BorderLayout.SOUTH);
-
-        sendMessageButton.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                String groupName = JOptionPane.showInputDialog(frame, "Enter group name to send message:", "Send Message", JOptionPane.PLAIN_MESSAGE);
-                if (groupName != null && !groupName.trim().isEmpty()) {
-                    sendMessage(groupName, inputField.getText());
-                    inputField.setText("");
-                }
-            }
-        });
-
-        fileButton.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                String filePath = fileField.getText();
-                String groupName = JOptionPane.showInputDialog(frame, "Enter group name to send file:", "Send File", JOptionPane.PLAIN_MESSAGE);
-                if (groupName != null && !groupName.trim().isEmpty()) {
-                    if (filePath != null && !filePath.trim().isEmpty()) {
-                        sendFile(groupName, filePath);
-                        fileField.setText("");
-                    } else {
-                        messageArea.append("Error: File path is not provided.\n");
-                    }
-                }
-            }
-        });
-
-        addGroupButton.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                String groupName = JOptionPane.showInputDialog(frame, "Enter group name to add:", "Add Group", JOptionPane.PLAIN_MESSAGE);
-                if (groupName != null && !groupName.trim().isEmpty()) {
-                    sendCommand("AddGroup " + groupName);
-                }
-            }
-        });
-
-        joinGroupButton.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                String groupName = JOptionPane.showInputDialog(frame, "Enter group name to join:", "Join Group", JOptionPane.PLAIN_MESSAGE);
-                if (groupName != null && !groupName.trim().isEmpty()) {
-                    sendCommand("JoinGroup " + groupName);
-                }
-            }
-        });
-
-        leaveGroupButton.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                String groupName = JOptionPane.showInputDialog(frame, "Enter group name to leave:", "Leave Group", JOptionPane.PLAIN_MESSAGE);
-                if (groupName != null && !groupName.trim().isEmpty()) {
-                    sendCommand("LeaveGroup " + groupName);
-                }
-            }
-        });
-
-        removeGroupButton.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                String groupName = JOptionPane.showInputDialog(frame, "Enter group name to remove:", "Remove Group", JOptionPane.PLAIN_MESSAGE);
-                if (groupName != null && !groupName.trim().isEmpty()) {
-                    sendCommand("RemoveGroup " + groupName);
-                }
-            }
-        });
-
-        quitButton.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                sendCommand("quit");
-                frame.dispose(); // Close the GUI window
-                try {
-                    socket.close(); // Close the connection to the server
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-                System.exit(0); // Exit the program
-            }
-        });
-
-        frame.pack();
-        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        frame.setVisible(true);
-    }
-
-    public void run() {
-        try {
-            String message;
-            while ((message = in.readUTF()) != null) {
-                if (message.startsWith("ReceiveFile")) {
-                    handleFileReception(message);
-                } else {
-                    messageArea.append(message + "\n");
-                }
-            }
-        } catch (IOException e) {
-            messageArea.append("Connection lost: " + e.getMessage() + "\n");
-        } finally {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    private void handleFileReception(String message) {
-        try {
-            String[] parts = message.split(" ", 2);
-            if (parts.length == 2) {
-                String fileName = parts[1];
-                File file = new File("received_" + fileName);
-                try (DataOutputStream fileOut = new DataOutputStream(new FileOutputStream(file))) {
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    long remaining = file.length(); // file.length() will be zero initially
-                    while (remaining > 0 && (bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
-                        fileOut.write(buffer, 0, bytesRead);
-                        remaining -= bytesRead;
-                    }
-                    fileOut.flush();
-                }
-                messageArea.append("File " + fileName + " received.\n");
-            }
-        } catch (IOException e) {
-            messageArea.append("Error receiving file: " + e.getMessage() + "\n");
-        }
-    }
-
-    public void sendMessage(String groupName, String message) {
-        sendCommand("SendMessage " + groupName + " " + message);
-    }
-
-    public void sendFile(String groupName, String filePath) {
-        File file = new File(filePath);
-        if (file.exists() && file.isFile()) {
-            try {
-                // Notify server about the file to be sent
-                out.writeUTF("SendFile");
-                out.writeUTF(groupName);
-                out.writeUTF(file.getName());
-                out.writeLong(file.length());
-
-                // Send the file data in chunks
-                try (FileInputStream fileIn = new FileInputStream(file)) {
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    long remaining = file.length();
-                    while (remaining > 0 && (bytesRead = fileIn.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
-                        out.write(buffer, 0, bytesRead);
-                        remaining -= bytesRead;
-                    }
-                    out.flush(); // Ensure all data is sent
-                }
-                messageArea.append("File " + filePath + " sent to group " + groupName + "\n");
-            } catch (IOException e) {
-                messageArea.append("Error sending file: " + e.getMessage() + "\n");
-            }
-        } else {
-            messageArea.append("File " + filePath + " does not exist.\n");
-        }
-    }
-
-    private void sendCommand(String command) {
-        try {
-            out.writeUTF(command);
-        } catch (IOException e) {
-            messageArea.append("Error sending command: " + e.getMessage() + "\n");
-        }
-    }
-
-    public static void main(String[] args) {
-        String serverAddress = JOptionPane.showInputDialog(
-                null, "Enter server address:", "Server Address", JOptionPane.PLAIN_MESSAGE);
-        if (serverAddress != null && !serverAddress.trim().isEmpty()) {
-            try {
-                new GroupChatClient(serverAddress);
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(null, "Error connecting to server: " + e.getMessage(),
-                        "Connection Error", JOptionPane.ERROR_MESSAGE);
-            }
-        } else {
-            JOptionPane.showMessageDialog(null, "Server address cannot be empty.", "Error", JOptionPane.ERROR_MESSAGE);
-        }
-    }
-}
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GroupChatClient implements Runnable {
+    private static final int SERVER_PORT = 7777;
+    private static final int MAX_FRAME = 64 * 1024 * 1024; // Largest binary frame accepted from the server
+    private static final int UPLOAD_WINDOW = 4; // Chunks an upload may have sent but not yet had acknowledged
+    private static final int FETCH_WINDOW = 4; // Ranges a download may have asked for but not yet received
+    private static final int HISTORY_COUNT = 50; // Messages shown by the History button
+    private static final int RECONNECT_ATTEMPTS = 30; // Tries to get back to the server after the connection drops
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final int COMPRESS_MIN_BYTES = 512; // Smaller frames are sent as they are
+    private final String serverAddress;
+    private final boolean useBinary;
+    private final boolean useCompression; // Ask for compressed binary frames, e.g. over a slow mobile link
+    private volatile Socket socket;
+    private volatile DataOutputStream out; // Replaced when the client reconnects; written only by the sender
+    private DataInputStream in;
+    private String clientName;
+    private volatile boolean quitting;
+
+    // Session resumption (see BinaryProtocol.SESSION): after a dropped connection the client reconnects
+    // and picks up where it left off, or rejoins its groups if the server no longer has the session
+    private String token; // Null if the server does not keep sessions
+    private long received; // Frames received since the handshake; only the listener thread touches it
+    private final Set<String> joinedGroups = ConcurrentHashMap.newKeySet(); // Groups to rejoin in a new session
+    private Thread listenerThread;
+    // Every write to the socket happens here, in order, so neither the Swing thread nor a file
+    // transfer ever waits on the network; chat frames queue between the chunks of an upload
+    private final ExecutorService sender = Executors.newSingleThreadExecutor();
+    private final ExecutorService transfers = Executors.newSingleThreadExecutor(); // Hashes and uploads files, one at a time
+
+    // Binary protocol state (see BinaryProtocol)
+    private boolean binary; // True once the server has acknowledged the binary protocol
+    private volatile boolean compress; // True while the server has agreed to compressed frames
+    private final AtomicInteger nextRequestId = new AtomicInteger(); // Requests come from the EDT, the listener and uploads
+    private final Map<Integer, Request> pending = new ConcurrentHashMap<>(); // Request id -> request awaiting its replies
+    private final Map<String, Integer> groupIds = new ConcurrentHashMap<>(); // Ids learned from the server's replies
+    private final Map<Integer, String> groupNames = new ConcurrentHashMap<>();
+    private final Map<Integer, Upload> uploads = new ConcurrentHashMap<>(); // OfferFile request id -> upload, until the server's reply
+    private final Map<Integer, Download> downloads = new ConcurrentHashMap<>(); // FetchFile request id -> download it continues
+
+    // The server's answer about one group of a request
+    public static class Reply {
+        public final String group; // Null for requests about no group, e.g. a file offer
+        public final boolean ok;
+        public final String text; // As shown in the window, e.g. "Joined group x" or "Error: ..."
+
+        Reply(String group, boolean ok, String text) {
+            this.group = group;
+            this.ok = ok;
+            this.text = text;
+        }
+    }
+
+    // A request waiting for its replies, one per group it names, in order. Requests go out without
+    // waiting for earlier ones; the request id tells their replies apart
+    private static class Request {
+        final String[] groups;
+        final List<Reply> replies = new ArrayList<>(); // Only the listener thread adds to it
+        final CompletableFuture<List<Reply>> done = new CompletableFuture<>();
+
+        Request(String... groups) {
+            this.groups = groups;
+        }
+
+        // The group the next reply is about
+        String nextGroup() {
+            return replies.size() < groups.length ? groups[replies.size()] : null;
+        }
+
+        // Returns true once the last reply has arrived
+        boolean add(Reply reply) {
+            replies.add(reply);
+            if (replies.size() < groups.length) {
+                return false;
+            }
+            done.complete(replies);
+            return true;
+        }
+    }
+
+    // A file being offered to the server; the server's replies are matched by the offer's request id
+    private static class Upload {
+        final File file;
+        final byte[] hash;
+        final CompletableFuture<int[]> needed = new CompletableFuture<>(); // Chunks the server asked for
+        final Semaphore window = new Semaphore(UPLOAD_WINDOW); // Permits for chunks in flight
+        volatile boolean finished; // The server replied, or the connection was lost
+
+        Upload(File file, byte[] hash) {
+            this.file = file;
+            this.hash = hash;
+        }
+
+        void finish() {
+            finished = true;
+            needed.complete(new int[0]);
+            window.release(UPLOAD_WINDOW); // Wake the uploader so it sees finished
+        }
+    }
+
+    // A shared file being fetched from the server into received_<name>.<hash>.part, which survives a
+    // dropped connection so the next announcement of the same file resumes where this one stopped
+    private static class Download {
+        final byte[] hash;
+        final String fileName;
+        final long size;
+        final File part;
+        long nextOffset; // Start of the next range to ask for
+        long written; // End of the data written so far; ranges arrive in order
+        boolean done;
+
+        Download(byte[] hash, String fileName, long size) {
+            this.hash = hash;
+            this.fileName = fileName;
+            this.size = size;
+            this.part = new File("received_" + fileName + "." + BlobStore.hex(hash).substring(0, 16) + ".part");
+        }
+    }
+
+    // GUI components
+    private JFrame frame;
+    private MessageView messageView; // Lines may be posted from any thread
+    private JTextField inputField;
+    private JTextField fileField;
+    private JButton sendMessageButton;
+    private JButton fileButton;
+    private JButton addGroupButton;
+    private JButton joinGroupButton;
+    private JButton leaveGroupButton;
+    private JButton removeGroupButton;
+    private JButton historyButton;
+    private JButton quitButton;
+
+    public GroupChatClient(String serverAddress, boolean useBinary) throws IOException {
+        this(serverAddress, useBinary, false);
+    }
+
+    public GroupChatClient(String serverAddress, boolean useBinary, boolean useCompression) throws IOException {
+        this.serverAddress = serverAddress;
+        this.useBinary = useBinary;
+        this.useCompression = useBinary && useCompression;
+        connect();
+        clientName = getClientName();
+        startSession();
+
+        // Initialize GUI
+        initializeGUI();
+
+        listenerThread = new Thread(this);
+        listenerThread.start();
+    }
+
+    private void connect() throws IOException {
+        socket = new Socket(serverAddress, SERVER_PORT);
+        out = new DataOutputStream(socket.getOutputStream());
+        in = new DataInputStream(socket.getInputStream());
+    }
+
+    // Send the nickname, asking for a resumable session and, if chosen, the binary protocol and compression
+    private void startSession() throws IOException {
+        out.writeUTF(BinaryProtocol.SESSION + (useBinary ? BinaryProtocol.HELLO : "")
+                + (useCompression ? BinaryProtocol.DEFLATE : "") + clientName);
+        String reply = in.readUTF();
+        if (!reply.startsWith(BinaryProtocol.SESSION)) {
+            // E.g. the server is full or shedding load
+            throw new IOException(reply.startsWith("Error") ? reply : "Unexpected handshake reply from the server");
+        }
+        token = reply.length() > BinaryProtocol.SESSION.length() ? reply.substring(BinaryProtocol.SESSION.length()) : null;
+        received = 0;
+        if (useBinary) {
+            // Ask for the binary protocol; the server acknowledges before any binary frame is sent
+            reply = in.readUTF();
+            if (!reply.startsWith(BinaryProtocol.HELLO_ACK)) {
+                throw new IOException("Server does not support the binary protocol");
+            }
+            binary = true;
+            compress = reply.equals(BinaryProtocol.HELLO_ACK + BinaryProtocol.DEFLATE); // The server may decline
+        }
+    }
+
+    // Get back to the server after the connection dropped: resume the session if the server still
+    // has it, so the frames missed in the meantime arrive and nobody sees us leave, or else start a
+    // new session and rejoin our groups. Returns false if the server cannot be reached
+    private boolean reconnect() {
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS && !quitting; attempt++) {
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+                connect();
+                if (token != null) {
+                    out.writeUTF(BinaryProtocol.RESUME + token + " " + received);
+                    String reply = in.readUTF();
+                    if (reply.startsWith(BinaryProtocol.RESUMED)) {
+                        long missed = Long.parseLong(reply.substring(BinaryProtocol.RESUMED.length()));
+                        if (missed < 0) {
+                            received = 0; // The server restarted and numbers frames from the start
+                            messageView.post("Reconnected after a server restart; use History for messages sent while it was down.");
+                        } else {
+                            messageView.post(missed > 0 ? "Reconnected; " + missed + " messages were lost, use History to catch up."
+                                    : "Reconnected.");
+                        }
+                        restartDownloads();
+                        return true;
+                    }
+                }
+                // The session is gone, e.g. the server restarted: start over and rejoin, in one round trip
+                startSession();
+                failPending("The session ended before the server replied");
+                groupIds.clear();
+                groupNames.clear();
+                messageView.post("Reconnected with a new session.");
+                restartDownloads();
+                if (binary) {
+                    joinGroupsAsync(new ArrayList<>(joinedGroups));
+                } else {
+                    for (String groupName : joinedGroups) {
+                        joinGroup(groupName);
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                closeSocket();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Remember which groups we are in from the server's replies, for rejoining after a reconnect
+    private void trackGroups(String text) {
+        if (text.startsWith("Joined group ")) {
+            joinedGroups.add(text.substring("Joined group ".length()));
+        } else if (text.startsWith("Left group ")) {
+            joinedGroups.remove(text.substring("Left group ".length()));
+        } else if (text.startsWith("Group ") && text.endsWith(" has been removed.")) {
+            forgetGroup(text.substring("Group ".length(), text.length() - " has been removed.".length()));
+        } else if (text.startsWith("Group ") && text.endsWith(" removed.")) {
+            forgetGroup(text.substring("Group ".length(), text.length() - " removed.".length()));
+        }
+    }
+
+    // A removed group's id may be handed out again, so refer to the name by name from now on
+    private void forgetGroup(String groupName) {
+        joinedGroups.remove(groupName);
+        Integer id = groupIds.remove(groupName);
+        if (id != null) {
+            groupNames.remove(id);
+        }
+    }
+
+    // Fail the requests still waiting for replies that will not come
+    private void failPending(String reason) {
+        for (Integer requestId : pending.keySet()) {
+            Request request = pending.remove(requestId);
+            if (request != null) {
+                request.done.completeExceptionally(new IOException(reason));
+            }
+        }
+    }
+
+    // The group a text-protocol line is about, for its tab: the name in "sender (group): text" and
+    // similar lines, if it is one of our groups; otherwise null
+    private String groupOf(String message) {
+        int open = message.indexOf(" (");
+        int close = open < 0 ? -1 : message.indexOf(')', open);
+        if (close < 0) {
+            return null;
+        }
+        String groupName = message.substring(open + 2, close);
+        return joinedGroups.contains(groupName) ? groupName : null;
+    }
+
+    private void closeSocket() {
+        try {
+            Socket current = socket;
+            if (current != null) {
+                current.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private String getClientName() {
+        return JOptionPane.showInputDialog(frame, "Enter your nickname:", "Nickname", JOptionPane.PLAIN_MESSAGE);
+    }
+
+    private void initializeGUI() {
+        frame = new JFrame("Group Chat Client - " + clientName);
+        messageView = new MessageView();
+
+        inputField = new JTextField(40);
+        fileField = new JTextField(20);
+        sendMessageButton = new JButton("Send Message");
+        fileButton = new JButton("Send File");
+        addGroupButton = new JButton("Add Group");
+        joinGroupButton = new JButton("Join Group");
+        leaveGroupButton = new JButton("Leave Group");
+        removeGroupButton = new JButton("Remove Group");
+        historyButton = new JButton("History");
+        quitButton = new JButton("Quit");
+
+        JPanel panel = new JPanel();
+        panel.add(new JLabel("Message:"));
+        panel.add(inputField);
+        panel.add(sendMessageButton);
+        panel.add(new JLabel("File:"));
+        panel.add(fileField);
+        panel.add(fileButton);
+        panel.add(addGroupButton);
+        panel.add(joinGroupButton);
+        panel.add(leaveGroupButton);
+        panel.add(removeGroupButton);
+        panel.add(historyButton);
+        panel.add(quitButton);
+
+        frame.getContentPane().add(messageView.component(), BorderLayout.CENTER);
+        frame.getContentPane().add(panel, BorderLayout.SOUTH);
+
+        sendMessageButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                String groupName = JOptionPane.showInputDialog(frame, "Enter group name to send message:", "Send Message", JOptionPane.PLAIN_MESSAGE);
+                if (groupName != null && !groupName.trim().isEmpty()) {
+                    sendMessage(groupName, inputField.getText());
+                    inputField.setText("");
+                }
+            }
+        });
+
+        fileButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                String filePath = fileField.getText();
+                String groupName = JOptionPane.showInputDialog(frame, "Enter group name to send file:", "Send File", JOptionPane.PLAIN_MESSAGE);
+                if (groupName != null && !groupName.trim().isEmpty()) {
+                    if (filePath != null && !filePath.trim().isEmpty()) {
+                        sendFile(groupName, filePath);
+                        fileField.setText("");
+                    } else {
+                        messageView.post("Error: File path is not provided.");
+                    }
+                }
+            }
+        });
+
+        addGroupButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                String groupName = JOptionPane.showInputDialog(frame, "Enter group name to add:", "Add Group", JOptionPane.PLAIN_MESSAGE);
+                if (groupName != null && !groupName.trim().isEmpty()) {
+                    addGroup(groupName);
+                }
+            }
+        });
+
+        joinGroupButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                String groupName = JOptionPane.showInputDialog(frame, "Enter group name to join:", "Join Group", JOptionPane.PLAIN_MESSAGE);
+                if (groupName != null && !groupName.trim().isEmpty()) {
+                    joinGroup(groupName);
+                }
+            }
+        });
+
+        leaveGroupButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                String groupName = JOptionPane.showInputDialog(frame, "Enter group name to leave:", "Leave Group", JOptionPane.PLAIN_MESSAGE);
+                if (groupName != null && !groupName.trim().isEmpty()) {
+                    leaveGroup(groupName);
+                }
+            }
+        });
+
+        removeGroupButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                String groupName = JOptionPane.showInputDialog(frame, "Enter group name to remove:", "Remove Group", JOptionPane.PLAIN_MESSAGE);
+                if (groupName != null && !groupName.trim().isEmpty()) {
+                    removeGroup(groupName);
+                }
+            }
+        });
+
+        historyButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                String groupName = JOptionPane.showInputDialog(frame, "Enter group name to show history:", "History", JOptionPane.PLAIN_MESSAGE);
+                if (groupName != null && !groupName.trim().isEmpty()) {
+                    history(groupName, HISTORY_COUNT);
+                }
+            }
+        });
+
+        quitButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                quitting = true;
+                if (binary) {
+                    sendBinary(new BinaryProtocol.Writer(BinaryProtocol.QUIT, nextRequestId.incrementAndGet()));
+                } else {
+                    sendCommand("quit");
+                }
+                sender.shutdown();
+                try {
+                    sender.awaitTermination(1, TimeUnit.SECONDS); // Let the quit command go out
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                frame.dispose(); // Close the GUI window
+                closeSocket(); // Close the connection to the server
+                System.exit(0); // Exit the program
+            }
+        });
+
+        frame.pack();
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setVisible(true);
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                if (binary) {
+                    while (true) {
+                        handleBinaryFrame(BinaryProtocol.readFrame(in, MAX_FRAME));
+                        received++;
+                    }
+                }
+                String message;
+                while ((message = in.readUTF()) != null) {
+                    handleMessage(message);
+                    received++;
+                }
+            } catch (IOException e) {
+                if (!quitting) {
+                    messageView.post("Connection lost: " + e.getMessage());
+                }
+            }
+            for (Upload upload : uploads.values()) {
+                upload.finish();
+            }
+            closeSocket();
+            if (quitting || !reconnect()) {
+                failPending("Connection lost");
+                return;
+            }
+        }
+    }
+
+    private void handleMessage(String message) {
+        if (message.startsWith("ReceiveFile")) {
+            handleFileReception(message);
+        } else if (message.startsWith("Error: File ") && message.endsWith(" was not received completely.")) {
+            handleFailedFile(message);
+        } else {
+            trackGroups(message);
+            messageView.post(groupOf(message), message);
+        }
+    }
+
+    // Decode one binary frame from the server
+    private void handleBinaryFrame(ByteBuffer frame) throws IOException {
+        if ((frame.get(frame.position()) & BinaryProtocol.COMPRESSED) != 0) {
+            ByteBuffer inflated = Compression.inflate(frame, MAX_FRAME);
+            frame = ByteBuffer.allocate(inflated.remaining()).put(inflated).flip(); // FILE_DATA is written from the array
+            BufferPool.release(inflated);
+        }
+        byte opcode = frame.get();
+        int requestId = frame.getInt();
+        if (opcode == BinaryProtocol.REPLY) {
+            byte status = frame.get();
+            int groupId = frame.getInt();
+            String text = BinaryProtocol.getString(frame);
+            Request request = pending.get(requestId);
+            String groupName = request != null ? request.nextGroup() : null;
+            downloads.remove(requestId); // A FetchFile that failed
+            Upload upload = uploads.remove(requestId);
+            if (upload != null) {
+                upload.finish(); // Stored, already present, or failed
+            }
+            if (groupName != null) {
+                if (status == BinaryProtocol.STATUS_OK && groupId != BinaryProtocol.NO_GROUP) {
+                    groupIds.put(groupName, groupId); // Refer to this group by id from now on
+                    groupNames.put(groupId, groupName);
+                } else if (status == BinaryProtocol.STATUS_ERROR) {
+                    Integer staleId = groupIds.remove(groupName); // The id may belong to a removed group
+                    if (staleId != null) {
+                        groupNames.remove(staleId);
+                    }
+                }
+            }
+            if (status == BinaryProtocol.STATUS_OK) {
+                trackGroups(text);
+            }
+            messageView.post(groupName, text);
+            if (request != null && request.add(new Reply(groupName, status == BinaryProtocol.STATUS_OK, text))) {
+                pending.remove(requestId);
+            }
+        } else if (opcode == BinaryProtocol.MESSAGE) {
+            int groupId = frame.getInt();
+            String sender = BinaryProtocol.getString(frame);
+            String text = BinaryProtocol.getString(frame);
+            String groupName = groupNames.getOrDefault(groupId, "#" + groupId);
+            messageView.post(groupName, sender + " (" + groupName + "): " + text);
+        } else if (opcode == BinaryProtocol.NOTICE) {
+            frame.getInt(); // Group id
+            handleMessage(BinaryProtocol.getString(frame));
+        } else if (opcode == BinaryProtocol.HISTORY) {
+            Request request = pending.remove(requestId);
+            String groupName = request != null ? request.groups[0] : null;
+            frame.getInt(); // Group id
+            frame.getInt(); // Message count
+            byte[] records = new byte[frame.remaining()];
+            frame.get(records);
+            for (MessageLog.Entry entry : MessageLog.decode(records)) {
+                messageView.post(groupName, "[" + entry.seq + "] " + entry.sender + " (" + groupName + "): " + entry.text);
+            }
+            if (request != null) {
+                request.done.complete(request.replies);
+            }
+        } else if (opcode == BinaryProtocol.CHUNKS_NEEDED) {
+            byte[] hash = BinaryProtocol.getBytes(frame, BinaryProtocol.HASH);
+            int[] indices = new int[frame.getInt()];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = frame.getInt();
+            }
+            Upload upload = uploads.get(requestId);
+            if (upload != null) {
+                upload.needed.complete(indices);
+            }
+        } else if (opcode == BinaryProtocol.CHUNK_STORED) {
+            Upload upload = uploads.get(requestId);
+            if (upload != null) {
+                upload.window.release();
+            }
+        } else if (opcode == BinaryProtocol.FILE_AVAILABLE) {
+            int groupId = frame.getInt();
+            String sender = BinaryProtocol.getString(frame);
+            String fileName = new File(BinaryProtocol.getString(frame)).getName(); // Never write outside the working directory
+            long size = frame.getLong();
+            byte[] hash = BinaryProtocol.getBytes(frame, BinaryProtocol.HASH);
+            String groupName = groupNames.getOrDefault(groupId, "#" + groupId);
+            messageView.post(groupName, sender + " (" + groupName + ") shared " + fileName);
+            Download download = new Download(hash, fileName, size);
+            download.nextOffset = download.part.length();
+            download.written = download.nextOffset;
+            for (int i = 0; i < FETCH_WINDOW; i++) {
+                fetchNext(download);
+            }
+        } else if (opcode == BinaryProtocol.FILE_DATA) {
+            Download download = downloads.remove(requestId);
+            frame.position(frame.position() + BinaryProtocol.HASH);
+            long offset = frame.getLong();
+            if (download != null) {
+                try (RandomAccessFile file = new RandomAccessFile(download.part, "rw")) {
+                    file.seek(offset);
+                    file.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                }
+                download.written = offset + frame.remaining();
+                fetchNext(download);
+            }
+        }
+    }
+
+    // Ask again for the ranges of unfinished downloads, from the end of what is on disk. The server
+    // does not replay file data to a resumed session, and a new session never answers the old
+    // requests; data for them that still arrives is ignored, as their ids are gone
+    private void restartDownloads() {
+        Set<Download> unfinished = new HashSet<>(downloads.values());
+        downloads.clear();
+        for (Download download : unfinished) {
+            download.nextOffset = download.written;
+            for (int i = 0; i < FETCH_WINDOW; i++) {
+                fetchNext(download);
+            }
+        }
+    }
+
+    // Keep a download's window of ranges in flight, and finish it once every byte is on disk
+    private void fetchNext(Download download) {
+        if (download.nextOffset < download.size) {
+            int requestId = nextRequestId.incrementAndGet();
+            downloads.put(requestId, download);
+            sendBinary(new BinaryProtocol.Writer(BinaryProtocol.FETCH_FILE, requestId)
+                    .putBytes(download.hash).putLong(download.nextOffset).putLong(BinaryProtocol.FILE_CHUNK));
+            download.nextOffset += BinaryProtocol.FILE_CHUNK;
+        } else if (download.written >= download.size && !download.done) {
+            download.done = true;
+            File file = new File("received_" + download.fileName);
+            try {
+                if (!download.part.exists()) {
+                    download.part.createNewFile(); // Empty file
+                }
+                Files.move(download.part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                messageView.post("File " + download.fileName + " received.");
+            } catch (IOException e) {
+                messageView.post("Error receiving file: " + e.getMessage());
+            }
+        }
+    }
+
+    // Send the chunks of an offered file that the server does not have yet, a window at a time
+    private void uploadChunks(Upload upload, int requestId) throws IOException, InterruptedException, ExecutionException {
+        int[] indices = upload.needed.get();
+        try (RandomAccessFile in = new RandomAccessFile(upload.file, "r")) {
+            for (int index : indices) {
+                upload.window.acquire(); // Wait for CHUNK_STORED once the window is full
+                if (upload.finished) {
+                    return;
+                }
+                long position = (long) index * BinaryProtocol.FILE_CHUNK;
+                byte[] chunk = new byte[(int) Math.min(BinaryProtocol.FILE_CHUNK, in.length() - position)];
+                in.seek(position);
+                in.readFully(chunk);
+                sendBinary(new BinaryProtocol.Writer(BinaryProtocol.PUT_CHUNK, requestId)
+                        .putBytes(upload.hash).putInt(index).putBytes(chunk));
+            }
+        }
+    }
+
+    // The server streams the file right after the ReceiveFile notice: an 8-byte size, then the contents
+    private void handleFileReception(String message) {
+        try {
+            String[] parts = message.split(" ", 2);
+            if (parts.length == 2) {
+                String fileName = new File(parts[1]).getName(); // Never write outside the working directory
+                File file = new File("received_" + fileName);
+                long fileSize = in.readLong();
+                try (DataOutputStream fileOut = new DataOutputStream(new FileOutputStream(file))) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int bytesRead;
+                    long remaining = fileSize;
+                    while (remaining > 0 && (bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                        fileOut.write(buffer, 0, bytesRead);
+                        remaining -= bytesRead;
+                    }
+                    fileOut.flush();
+                }
+                messageView.post("File " + fileName + " received.");
+            }
+        } catch (IOException e) {
+            messageView.post("Error receiving file: " + e.getMessage());
+        }
+    }
+
+    // The uploader disconnected part way through; the copy we received was padded and is useless
+    private void handleFailedFile(String message) {
+        String fileName = message.substring("Error: File ".length(), message.length() - " was not received completely.".length());
+        new File("received_" + new File(fileName).getName()).delete();
+        messageView.post(message);
+    }
+
+    public void sendMessage(String groupName, String message) {
+        if (binary) {
+            // Not tracked: only a failure is answered, and the message itself comes back to us
+            sendBinary(groupRequest(BinaryProtocol.SEND_MESSAGE, nextRequestId.incrementAndGet(), groupName).putString(message));
+        } else {
+            sendCommand("SendMessage " + groupName + " " + message);
+        }
+    }
+
+    public void addGroup(String groupName) {
+        if (binary) {
+            addGroupAsync(groupName);
+        } else {
+            sendCommand("AddGroup " + groupName);
+        }
+    }
+
+    public void joinGroup(String groupName) {
+        if (binary) {
+            joinGroupAsync(groupName);
+        } else {
+            sendCommand("JoinGroup " + groupName);
+        }
+    }
+
+    public void leaveGroup(String groupName) {
+        if (binary) {
+            leaveGroupAsync(groupName);
+        } else {
+            sendCommand("LeaveGroup " + groupName);
+        }
+    }
+
+    public void removeGroup(String groupName) {
+        if (binary) {
+            removeGroupAsync(groupName);
+        } else {
+            sendCommand("RemoveGroup " + groupName);
+        }
+    }
+
+    // Show the last count messages the server has logged for a group
+    public void history(String groupName, int count) {
+        if (binary) {
+            int requestId = nextRequestId.incrementAndGet();
+            track(requestId, groupName);
+            sendBinary(groupRequest(BinaryProtocol.GET_HISTORY, requestId, groupName).putLong(-1).putInt(count));
+        } else {
+            sendCommand("History " + groupName + " " + count);
+        }
+    }
+
+    // Asynchronous requests, binary protocol only. Each returns at once with a future of the server's
+    // reply, which is also shown in the window; any number may be in flight. The future fails if the
+    // connection is lost for good or the session has to be started over before the reply arrives
+    public CompletableFuture<Reply> addGroupAsync(String groupName) {
+        if (!binary) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Asynchronous requests need the binary protocol"));
+        }
+        int requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<List<Reply>> replies = track(requestId, groupName);
+        sendBinary(new BinaryProtocol.Writer(BinaryProtocol.ADD_GROUP, requestId).putString(groupName));
+        return replies.thenApply(list -> list.get(0));
+    }
+
+    public CompletableFuture<Reply> joinGroupAsync(String groupName) {
+        return singleRequest(BinaryProtocol.JOIN_GROUP, groupName);
+    }
+
+    public CompletableFuture<Reply> leaveGroupAsync(String groupName) {
+        return singleRequest(BinaryProtocol.LEAVE_GROUP, groupName);
+    }
+
+    public CompletableFuture<Reply> removeGroupAsync(String groupName) {
+        return singleRequest(BinaryProtocol.REMOVE_GROUP, groupName);
+    }
+
+    // Join many groups in one round trip; the replies come in the order of the names
+    public CompletableFuture<List<Reply>> joinGroupsAsync(List<String> groupNames) {
+        return bulkRequest(BinaryProtocol.JOIN_GROUPS, groupNames);
+    }
+
+    public CompletableFuture<List<Reply>> leaveGroupsAsync(List<String> groupNames) {
+        return bulkRequest(BinaryProtocol.LEAVE_GROUPS, groupNames);
+    }
+
+    private CompletableFuture<Reply> singleRequest(byte opcode, String groupName) {
+        if (!binary) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Asynchronous requests need the binary protocol"));
+        }
+        int requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<List<Reply>> replies = track(requestId, groupName);
+        sendBinary(groupRequest(opcode, requestId, groupName));
+        return replies.thenApply(list -> list.get(0));
+    }
+
+    // Name the groups in requests of at most MAX_BULK groups each, sent back to back
+    private CompletableFuture<List<Reply>> bulkRequest(byte opcode, List<String> groupNames) {
+        if (!binary) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Asynchronous requests need the binary protocol"));
+        }
+        CompletableFuture<List<Reply>> all = CompletableFuture.completedFuture(new ArrayList<>());
+        for (int from = 0; from < groupNames.size(); from += BinaryProtocol.MAX_BULK) {
+            String[] groups = groupNames.subList(from, Math.min(groupNames.size(), from + BinaryProtocol.MAX_BULK))
+                    .toArray(new String[0]);
+            int requestId = nextRequestId.incrementAndGet();
+            BinaryProtocol.Writer request = new BinaryProtocol.Writer(opcode, requestId).putInt(groups.length);
+            for (String groupName : groups) {
+                request.putGroup(groupIds.getOrDefault(groupName, BinaryProtocol.NO_GROUP), groupName);
+            }
+            CompletableFuture<List<Reply>> replies = track(requestId, groups);
+            sendBinary(request);
+            all = all.thenCombine(replies, (earlier, later) -> {
+                earlier.addAll(later);
+                return earlier;
+            });
+        }
+        return all;
+    }
+
+    // Expect one reply per group for a request about to be sent
+    private CompletableFuture<List<Reply>> track(int requestId, String... groups) {
+        Request request = new Request(groups);
+        pending.put(requestId, request);
+        return request.done;
+    }
+
+    // Start a binary request about a group, using its id when the server has told us one
+    private BinaryProtocol.Writer groupRequest(byte opcode, int requestId, String groupName) {
+        return new BinaryProtocol.Writer(opcode, requestId)
+                .putGroup(groupIds.getOrDefault(groupName, BinaryProtocol.NO_GROUP), groupName);
+    }
+
+    private void sendBinary(BinaryProtocol.Writer request) {
+        byte[] frame = compress(request.finish());
+        sender.execute(() -> {
+            try {
+                out.write(frame);
+            } catch (IOException e) {
+                messageView.post("Error sending command: " + e.getMessage());
+            }
+        });
+    }
+
+    // The frame compressed if the server agreed to it and that makes it smaller, e.g. long messages
+    // and file chunks of text; otherwise the frame itself
+    private byte[] compress(byte[] frame) {
+        if (!compress || frame.length < COMPRESS_MIN_BYTES) {
+            return frame;
+        }
+        ByteBuffer deflated = Compression.compress(ByteBuffer.wrap(frame));
+        if (deflated == null) {
+            return frame;
+        }
+        byte[] bytes = new byte[deflated.remaining()];
+        deflated.get(bytes);
+        BufferPool.release(deflated);
+        return bytes;
+    }
+
+    // Files are read and sent in the background; chat keeps flowing while they upload
+    public void sendFile(String groupName, String filePath) {
+        File file = new File(filePath);
+        if (file.exists() && file.isFile() && binary) {
+            transfers.execute(() -> offerFile(groupName, file));
+        } else if (file.exists() && file.isFile()) {
+            // The text protocol sends the contents right after the command, so nothing else can be
+            // written until they are; the upload runs on the sender and later commands wait behind it
+            sender.execute(() -> sendFileContents(groupName, file, filePath));
+        } else {
+            messageView.post("File " + filePath + " does not exist.");
+        }
+    }
+
+    private void sendFileContents(String groupName, File file, String filePath) {
+        try {
+            // Notify server about the file to be sent
+            out.writeUTF("SendFile");
+            out.writeUTF(groupName);
+            out.writeUTF(file.getName());
+            out.writeLong(file.length());
+
+            // Send the file data in chunks
+            try (FileInputStream fileIn = new FileInputStream(file)) {
+                byte[] buffer = new byte[64 * 1024];
+                int bytesRead;
+                long remaining = file.length();
+                while (remaining > 0 && (bytesRead = fileIn.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                    out.write(buffer, 0, bytesRead);
+                    remaining -= bytesRead;
+                }
+                out.flush(); // Ensure all data is sent
+            }
+            messageView.post("File " + filePath + " sent to group " + groupName);
+        } catch (IOException e) {
+            messageView.post("Error sending file: " + e.getMessage());
+        }
+    }
+
+    // Binary clients share files through the server's blob store: hash the file and its chunks, then
+    // offer it; the server answers with the chunks it is missing, or nothing if it already has the file
+    private void offerFile(String groupName, File file) {
+        Upload upload;
+        int requestId = nextRequestId.incrementAndGet();
+        try (DataInputStream fileIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            MessageDigest fileDigest = BlobStore.sha256();
+            MessageDigest chunkDigest = BlobStore.sha256();
+            long size = file.length();
+            int count = (int) ((size + BinaryProtocol.FILE_CHUNK - 1) / BinaryProtocol.FILE_CHUNK);
+            byte[][] chunks = new byte[count][];
+            byte[] buffer = new byte[BinaryProtocol.FILE_CHUNK];
+            for (int i = 0; i < count; i++) {
+                int length = (int) Math.min(buffer.length, size - (long) i * buffer.length);
+                fileIn.readFully(buffer, 0, length);
+                fileDigest.update(buffer, 0, length);
+                chunkDigest.update(buffer, 0, length);
+                chunks[i] = chunkDigest.digest();
+            }
+            byte[] hash = fileDigest.digest();
+
+            BinaryProtocol.Writer request = new BinaryProtocol.Writer(BinaryProtocol.OFFER_FILE, requestId)
+                    .putGroup(groupIds.getOrDefault(groupName, BinaryProtocol.NO_GROUP), groupName)
+                    .putString(file.getName()).putLong(size).putBytes(hash).putInt(count);
+            for (byte[] chunk : chunks) {
+                request.putBytes(chunk);
+            }
+            upload = new Upload(file, hash);
+            track(requestId, groupName);
+            uploads.put(requestId, upload);
+            sendBinary(request);
+        } catch (IOException e) {
+            messageView.post("Error sending file: " + e.getMessage());
+            return;
+        }
+        try {
+            uploadChunks(upload, requestId);
+        } catch (IOException | ExecutionException e) {
+            messageView.post("Error sending file: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sendCommand(String command) {
+        sender.execute(() -> {
+            try {
+                out.writeUTF(command);
+            } catch (IOException e) {
+                messageView.post("Error sending command: " + e.getMessage());
+            }
+        });
+    }
+
+    public static void main(String[] args) {
+        List<String> options = Arrays.asList(args);
+        boolean useBinary = options.contains("--binary"); // Opt in to the binary protocol
+        boolean useCompression = options.contains("--compress"); // And to compressed frames, which need it
+        String serverAddress = JOptionPane.showInputDialog(
+                null, "Enter server address:", "Server Address", JOptionPane.PLAIN_MESSAGE);
+        if (serverAddress != null && !serverAddress.trim().isEmpty()) {
+            try {
+                new GroupChatClient(serverAddress, useBinary, useCompression);
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(null, "Error connecting to server: " + e.getMessage(),
+                        "Connection Error", JOptionPane.ERROR_MESSAGE);
+            }
+        } else {
+            JOptionPane.showMessageDialog(null, "Server address cannot be empty.", "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+}
@@ -1,363 +1,1824 @@
-import java.io.*;
-import java.net.*;
-import java.util.*;
-
-public class GroupChatServer {
-    private static final int PORT = 7777;
-    private static final Map<String, Set<ClientHandler>> groups = new HashMap<>(); // Stores groups and their members
-    private static final Set<ClientHandler> clients = new HashSet<>(); // Stores all connected clients
-
-    public static void main(String[] args) {
-        System.out.println("Server started on port " + PORT);
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            while (true) {
-                Socket socket = serverSocket.accept(); // Accept incoming client connections
-                ClientHandler clientHandler = new ClientHandler(socket);
-                synchronized (clients) {
-                    clients.add(clientHandler); // Add new client to the list of clients
-                }
-                clientHandler.start(); // Start handling the client in a new thread
-            }
-        } catch (IOException e) {
-            e.printStackTrace(); // Handle I/O errors
-        }
-    }
-
-    // Inner class to handle each client connection
-    private static class ClientHandler extends Thread {
-        private Socket socket; // Client socket for communication
-        private DataOutputStream out; // Output stream to send data to the client
-        private DataInputStream in; // Input stream to receive data from the client
-        private String clientName; // Client's nickname
-        private Set<String> joinedGroups = new HashSet<>(); // Groups that the client has joined
-
-        public ClientHandler(Socket socket) {
-            this.socket = socket; // Initialize the client handler with the client socket
-        }
-
-        public void run() {
-            try {
-                // Initialize input and output streams
-                in = new DataInputStream(socket.getInputStream());
-                out = new DataOutputStream(socket.getOutputStream());
-
-                // Read the client's nickname
-                clientName = in.readUTF();
-                System.out.println(clientName + " connected.");
-
-                String message;
-                while ((message = in.readUTF()) != null) {
-                    // Handle different types of messages from the client
-                    if (message.equalsIgnoreCase("quit")) {
-                        break;
-                    } else if (message.startsWith("AddGroup")) {
-                        handleAddGroup(message); // Handle group creation
-                    } else if (message.startsWith("JoinGroup")) {
-                        handleJoinGroup(message); // Handle joining a group
-                    } else if (message.startsWith("SendMessage")) {
-                        handleSendMessage(message); // Handle sending a message to a group
-                    } else if (message.startsWith("LeaveGroup")) {
-                        handleLeaveGroup(message); // Handle leaving a group
-                    } else if (message.startsWith("RemoveGroup")) {
-                        handleRemoveGroup(message); // Handle removing a group
-                    } else if (message.startsWith("SendFile")) {
-                        handleSendFile(); // Handle sending a file to a group
-                    } else {
-                        out.writeUTF("Unknown command."); // Handle unknown commands
-                    }
-                }
-            } catch (IOException e) {
-                System.out.println("Connection error with " + clientName); // Handle connection errors
-            } finally {
-                cleanup(); // Clean up resources when done
-            }
-        }
-
-        // Handle group creation requests
-        private void handleAddGroup(String message) {
-            String[] parts = message.split(" ", 2);
-            if (parts.length == 2) {
-                String groupName = parts[1];
-                synchronized (groups) {
-                    if (!groups.containsKey(groupName)) {
-                        groups.put(groupName, new HashSet<>());
-                        try {
-                            out.writeUTF("Group " + groupName + " created.");
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    } else {
-                        try {
-                            out.writeUTF("Error: Group " + groupName + " already exists.");
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-            } else {
-                try {
-                    out.writeUTF("Usage: AddGroup <group name>");
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // Handle group joining requests
-        private void handleJoinGroup(String message) {
-            String[] parts = message.split(" ", 2);
-            if (parts.length == 2) {
-                String groupName = parts[1];
-                synchronized (groups) {
-                    Set<ClientHandler> group = groups.get(groupName);
-                    if (group != null) {
-                        if (!joinedGroups.contains(groupName)) {
-                            group.add(this);
-                            joinedGroups.add(groupName);
-                            // Notify all group members that a new member has joined
-                            for (ClientHandler client : group) {
-                                if (client != this) {
-                                    try {
-                                        client.out.writeUTF(clientName + " has joined the group " + groupName);
-                                    } catch (IOException e) {
-                                        e.printStackTrace();
-                                    }
-                                }
-                            }
-                            try {
-                                out.writeUTF("Joined group " + groupName);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        } else {
-                            try {
-                                out.writeUTF("Error: You are already a member of " + groupName);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    } else {
-                        try {
-                            out.writeUTF("Error: Group " + groupName + " does not exist.");
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-            } else {
-                try {
-                    out.writeUTF("Usage: JoinGroup <group name>");
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // Handle message sending requests
-        private void handleSendMessage(String message) {
-            String[] parts = message.split(" ", 3);
-            if (parts.length == 3) {
-                String groupName = parts[1];
-                String msg = parts[2];
-                synchronized (groups) {
-                    Set<ClientHandler> group = groups.get(groupName);
-                    if (group != null) {
-                        if (joinedGroups.contains(groupName)) {
-                            for (ClientHandler client : group) {
-                                try {
-                                    client.out.writeUTF(clientName + " (" + groupName + "): " + msg);
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        } else {
-                            try {
-                                out.writeUTF("Error: You are not a member of " + groupName);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    } else {
-                        try {
-                            out.writeUTF("Error: Group " + groupName + " does not exist.");
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-            } else {
-                try {
-                    out.writeUTF("Usage: SendMessage <group name> <message>");
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // Handle group leaving requests
-        private void handleLeaveGroup(String message) {
-            String[] parts = message.split(" ", 2);
-            if (parts.length == 2) {
-                String groupName = parts[1];
-                synchronized (groups) {
-                    Set<ClientHandler> group = groups.get(groupName);
-                    if (group != null && group.remove(this)) {
-                        joinedGroups.remove(groupName);
-                        // Notify all remaining members that a member has left
-                        for (ClientHandler client : group) {
-                            try {
-                                client.out.writeUTF(clientName + " has left the group " + groupName);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                        try {
-                            out.writeUTF("Left group " + groupName);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    } else {
-                        try {
-                            out.writeUTF("Error: Group " + groupName + " does not exist or you are not a member.");
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-            } else {
-                try {
-                    out.writeUTF("Usage: LeaveGroup <group name>");
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // Handle group removal requests
-        private void handleRemoveGroup(String message) {
-            String[] parts = message.split(" ", 2);
-            if (parts.length == 2) {
-                String groupName = parts[1];
-                synchronized (groups) {
-                    Set<ClientHandler> group = groups.remove(groupName);
-                    if (group != null) {
-                        // Notify all members of the group that the group is removed
-                        for (ClientHandler client : group) {
-                            try {
-                                client.out.writeUTF("Group " + groupName + " has been removed.");
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                        try {
-                            out.writeUTF("Group " + groupName + " removed.");
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    } else {
-                        try {
-                            out.writeUTF("Error: Group " + groupName + " does not exist.");
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-            } else {
-                try {
-                    out.writeUTF("Usage: RemoveGroup <group name>");
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // Handle file sending requests
-        private void handleSendFile() {
-            try {
-                // Read the group name, file name, and file size from the client
-                String groupName = in.readUTF();
-                String fileName = in.readUTF();
-                long fileSize = in.readLong();
-
-                File file = new File("received_" + fileName);
-                try (DataOutputStream fileOut = new DataOutputStream(new FileOutputStream(file))) {
-                    byte[] buffer = new byte[4096];
-                    long remaining = fileSize;
-                    int bytesRead;
-                    while (remaining > 0 && (bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
-                        fileOut.write(buffer, 0, bytesRead);
-                        remaining -= bytesRead;
-                    }
-                    fileOut.flush();
-                }
-
-                synchronized (groups) {
-                    Set<ClientHandler> group = groups.get(groupName);
-                    if (group != null) {
-                        for (ClientHandler client : group) {
-                            if (client != this) {
-                                try {
-                                    client.out.writeUTF("ReceiveFile " + fileName);
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        }
-                        try {
-                            out.writeUTF("File " + fileName + " sent to group " + groupName);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    } else {
-                        try {
-                            out.writeUTF("Error: Group " + groupName + " does not exist.");
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                try {
-                    out.writeUTF("Error sending file: " + e.getMessage());
-                } catch (IOException ioException) {
-                    ioException.printStackTrace();
-                }
-            }
-        }
-
-        // Clean up resources when the client disconnects
-        private void cleanup() {
-            try {
-                if (clientName != null) {
-                    System.out.println(clientName + " disconnected.");
-                }
-
-                synchronized (groups) {
-                    for (String group : joinedGroups) {
-                        Set<ClientHandler> groupMembers = groups.get(group);
-                        if (groupMembers != null) {
-                            groupMembers.remove(this); // Remove client from all groups
-                            for (ClientHandler client : groupMembers) {
-                                try {
-                                    client.out.writeUTF(clientName + " has left the group " + group);
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        }
-                    }
-                }
-
-                synchronized (clients) {
-                    clients.remove(this); // Remove client from the global client list
-                }
-
-                in.close();
-                out.close();
-                socket.close(); // Close the client socket and streams
-            } catch (IOException e) {
-                e.printStackTrace(); // Handle errors during cleanup
-            }
-        }
-    }
-}
+import java.io.*;
+import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+public class GroupChatServer {
+    static final GroupRegistry groups = new GroupRegistry(); // Stores groups and their members
+    private static final SessionTable sessions = new SessionTable(); // Every connected client, by session id
+    static ServerConfig config = new ServerConfig(); // Startup options, replaced by main
+    static BlobStore blobs; // Files shared with OfferFile; null if the blob directory is unusable
+    static MessageLog messageLog; // Chat history of every group; null if the log directory is unusable
+    static ClusterNode cluster; // Other servers sharing the groups; null when running alone
+    static StateStore stateStore; // Groups and sessions kept across restarts; null if they are not kept
+    private static final int HISTORY_LIMIT = 1000; // Most messages returned by one History request
+    private static final int HISTORY_BYTES = 1024 * 1024; // Most record bytes in one binary HISTORY frame
+    private static final ConcurrentHashMap<String, Session> resumable = new ConcurrentHashMap<>(); // Sessions by token
+    // Restored sessions waiting for another node to announce a group they were in: group name -> tokens
+    private static final ConcurrentHashMap<String, Set<String>> pendingMembers = new ConcurrentHashMap<>();
+    private static final SecureRandom random = new SecureRandom(); // Session tokens
+    static final long RESUME_RETRY_MILLIS = 20; // Pause between tries to take over a session that is still closing
+    private static final int RESUME_ATTEMPTS = 100;
+    private static final CompletableFuture<Path> NOT_COMPRESSED = CompletableFuture.completedFuture(null); // A FetchFile served from the file itself
+    // Ends sessions whose grace period is over and retries resumes in nio mode
+    static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "session-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static void main(String[] args) {
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        BufferPool.enabled = config.bufferPool;
+        BufferPool.maxIdleBytes = config.bufferPoolBytes;
+        BufferPool.debug = config.debugBuffers;
+        Compression.level = config.compressLevel;
+        FanOutPool.start(config);
+        AdmissionControl.start(config);
+
+        try {
+            blobs = new BlobStore(Paths.get(config.blobDir));
+        } catch (IOException e) {
+            System.out.println("File store disabled: cannot use " + config.blobDir + " (" + e.getMessage() + ")");
+        }
+        try {
+            messageLog = new MessageLog(Paths.get(config.logDir), config.logSegmentBytes, config.logRetentionBytes,
+                    config.logFsyncMillis, config.logOpenGroups);
+        } catch (IOException e) {
+            System.out.println("Message history disabled: cannot use " + config.logDir + " (" + e.getMessage() + ")");
+        }
+
+        StateStore store = null;
+        if (!config.stateDir.isEmpty()) {
+            try {
+                store = new StateStore(Paths.get(config.stateDir));
+                restore(store.load());
+            } catch (IOException e) {
+                // The files are left alone: a store that started now would replace them with an empty snapshot
+                System.out.println("Server state not kept: cannot use " + config.stateDir + " (" + e.getMessage() + ")");
+                store = null;
+            }
+        }
+
+        ServerMetrics.registerMBean();
+        if (config.adminPort > 0) {
+            try {
+                ServerMetrics.startAdminServer(config.adminPort);
+            } catch (IOException e) {
+                System.out.println("Metrics endpoint disabled: cannot listen on port " + config.adminPort + " (" + e.getMessage() + ")");
+            }
+        }
+
+        if (config.clusterNodes != null) {
+            try {
+                cluster = new ClusterNode(config);
+                cluster.start();
+            } catch (IOException e) {
+                System.out.println("Cannot start cluster node " + config.node + ": " + e.getMessage());
+                return;
+            }
+        }
+        if (store != null) {
+            try {
+                store.start(config.snapshotIntervalSeconds); // After the cluster, so snapshots leave out other nodes' groups
+                stateStore = store;
+            } catch (IOException e) {
+                System.out.println("Server state not kept: cannot use " + config.stateDir + " (" + e.getMessage() + ")");
+            }
+        }
+
+        if (config.mode.equals("nio")) {
+            // Non-blocking mode: a few selector loops serve every connection
+            try {
+                new NioChatServer(config).run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        // Runs each client's reader and writer: virtual threads, or a new platform thread per task
+        Executor executor = config.mode.equals("virtual") ? virtualThreadExecutor() : task -> new Thread(task).start();
+
+        System.out.println("Server started on port " + config.port);
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(config.port));
+            while (true) {
+                SocketChannel channel = serverChannel.accept(); // Accept incoming client connections
+                if (refuse(channel)) {
+                    continue;
+                }
+                ClientHandler clientHandler = new ClientHandler(channel, executor);
+                register(clientHandler); // Add new client to the list of clients
+                executor.execute(clientHandler); // Start handling the client
+            }
+        } catch (IOException e) {
+            e.printStackTrace(); // Handle I/O errors
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively so the server still
+    // compiles and runs on JDKs before 21, where it falls back to a cached pool of platform threads
+    private static Executor virtualThreadExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available on this JDK; using platform threads.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // Bring back the groups and resumable sessions saved before the server stopped, before any client
+    // connects. The sessions come back parked in their groups, for their clients to resume; groups
+    // owned by other nodes of a cluster are rejoined once those nodes announce them
+    private static void restore(StateStore.State state) {
+        long start = System.nanoTime();
+        groups.restore(state.groupNames, state.groupIds, state.groupCount, state.lastGroupId);
+        int restored = 0;
+        if (config.sessionGraceMillis > 0) {
+            // Gather each group's members first, so that every group's member array is written once
+            int[] counts = new int[groups.lastId() + 1];
+            List<RestoredSession> parked = new ArrayList<>(state.sessions.size());
+            for (StateStore.SavedSession saved : state.sessions) {
+                RestoredSession session = new RestoredSession(saved);
+                sessions.register(session);
+                session.joinedGroups.addAll(saved.groups);
+                for (int groupId : saved.groups) {
+                    counts[groupId]++;
+                }
+                if (config.clusterNodes != null) {
+                    for (String groupName : saved.remoteGroups) {
+                        pendingMembers.computeIfAbsent(groupName, name -> ConcurrentHashMap.newKeySet()).add(saved.token);
+                    }
+                }
+                session.parkRestored(saved.token);
+                parked.add(session);
+            }
+            int[][] members = new int[counts.length][];
+            for (RestoredSession session : parked) {
+                for (int groupId : session.joinedGroups.snapshot()) {
+                    if (members[groupId] == null) {
+                        members[groupId] = new int[counts[groupId]];
+                    }
+                    members[groupId][--counts[groupId]] = session.id;
+                }
+            }
+            IntStream.range(0, members.length).parallel().filter(groupId -> members[groupId] != null).forEach(groupId -> {
+                Arrays.sort(members[groupId]);
+                groups.get(groupId).restoreMembers(members[groupId]);
+            });
+            restored = parked.size();
+        }
+        System.out.println("Restored " + state.groupCount + " groups and " + restored + " sessions in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+    }
+
+    // Whether snapshots keep a group: in a cluster only its owner does, as the others learn it again on resync
+    static boolean persisted(GroupRegistry.Group group) {
+        return cluster == null || cluster.owns(group.name);
+    }
+
+    // Put restored sessions back into the groups of another node once it has announced them all; those
+    // of its groups it did not announce are gone, and so are the memberships waiting for them
+    static void rejoinRestored(Predicate<String> ownedByNode, Set<String> announced) {
+        for (String groupName : pendingMembers.keySet()) {
+            if (!ownedByNode.test(groupName)) {
+                continue;
+            }
+            Set<String> tokens = pendingMembers.remove(groupName);
+            GroupRegistry.Group group = announced.contains(groupName) ? groups.get(groupName) : null;
+            if (tokens == null || group == null) {
+                continue;
+            }
+            boolean joined = false;
+            for (String token : tokens) {
+                Session session = resumable.get(token);
+                if (session != null && group.join(session)) {
+                    session.joinedGroups.add(group.id);
+                    joined = true;
+                }
+            }
+            if (joined && cluster != null) {
+                cluster.membershipChanged(group, ""); // Quietly, as for the groups restored here
+            }
+        }
+    }
+
+    // Every membership of a restored session still waiting for its group's owner, for snapshots
+    static void forEachPendingMember(BiConsumer<String, String> action) {
+        pendingMembers.forEach((groupName, tokens) -> tokens.forEach(token -> action.accept(groupName, token)));
+    }
+
+    // Give a newly connected client its session id
+    static void register(Session session) {
+        sessions.register(session);
+        ServerMetrics.connectionsOpened.increment();
+    }
+
+    // Turn a new connection away with an error if the server is full or shedding load; true if it was
+    static boolean refuse(SocketChannel channel) {
+        return AdmissionControl.refuse(channel, sessions.size(), config.maxConnections);
+    }
+
+    // Every session, including parked ones, for metrics
+    static void forEachSession(Consumer<Session> action) {
+        sessions.forEach(action);
+    }
+
+    // The connected client with this session id, or null
+    static Session session(int id) {
+        return sessions.get(id);
+    }
+
+    // Create a group on this server, its owner, and announce it to the rest of the cluster; null if it exists
+    static GroupRegistry.Group addGroup(String name) {
+        GroupRegistry.Group group = groups.create(name);
+        if (group != null && stateStore != null) {
+            stateStore.groupAdded(group);
+        }
+        if (group != null && cluster != null) {
+            cluster.groupAdded(name);
+        }
+        return group;
+    }
+
+    // Remove a group this server owns, here and on the rest of the cluster; null if it does not exist
+    static GroupRegistry.Group removeGroup(String name) {
+        GroupRegistry.Group group = dropGroup(name);
+        if (group != null && stateStore != null) {
+            stateStore.groupRemoved(group);
+        }
+        if (group != null && cluster != null) {
+            cluster.groupRemoved(name);
+        }
+        return group;
+    }
+
+    // Remove a group from this server and tell its members here; null if it does not exist
+    static GroupRegistry.Group dropGroup(String name) {
+        GroupRegistry.Group group = groups.remove(name);
+        if (group != null) {
+            if (messageLog != null) {
+                messageLog.delete(name); // A new group with the same name starts without history
+            }
+            // Notify all members of the group that the group is removed
+            for (int[] chunk : group.memberIds()) {
+                for (int id : chunk) {
+                    Session client = sessions.get(id);
+                    if (client == null) {
+                        continue; // Disconnected since the snapshot
+                    }
+                    client.joinedGroups.remove(group.id);
+                }
+            }
+            Session.broadcast(group, "Group " + name + " has been removed.", null);
+        }
+        return group;
+    }
+
+    // Log a message of a group this server owns and deliver it to every member in the cluster
+    static void publish(GroupRegistry.Group group, String sender, String msg) {
+        long seq = 0;
+        if (messageLog != null) {
+            try {
+                seq = messageLog.append(group.name, sender, msg);
+            } catch (IOException e) {
+                e.printStackTrace(); // The message is still delivered, just not kept
+            }
+        }
+        Session.broadcastChat(group, sender, msg, seq);
+        if (cluster != null) {
+            cluster.forwardChat(group, sender, msg, seq);
+        }
+    }
+
+    // Logged messages of a group this server owns: the last limit ones when afterSeq is negative,
+    // otherwise up to limit messages that follow afterSeq
+    static MessageLog.History readHistory(String name, long afterSeq, int limit) throws IOException {
+        if (messageLog == null) {
+            throw new IOException("The server keeps no message history.");
+        }
+        limit = Math.max(0, Math.min(limit, HISTORY_LIMIT));
+        return afterSeq < 0 ? messageLog.tail(name, limit, HISTORY_BYTES)
+                : messageLog.read(name, afterSeq, limit, HISTORY_BYTES);
+    }
+
+    // State and command handling shared by every kind of client connection
+    abstract static class Session {
+        int id = -1; // Session id, assigned by register; groups list their members by it
+        String clientName; // Client's nickname
+        boolean binary; // Negotiated at handshake: the client speaks BinaryProtocol instead of writeUTF commands
+        boolean compress; // Negotiated at handshake: large binary frames may go compressed both ways
+        private int requestId; // Id of the binary request being handled, echoed in its reply
+        private String groupName; // Name of the group referenced by the binary request being handled
+        // Ids of the groups the client has joined; concurrent because RemoveGroup prunes it from another thread
+        final CopyOnWriteIntSet joinedGroups = new CopyOnWriteIntSet();
+        private volatile boolean disconnecting; // Set once the overflow policy has closed the connection
+        volatile String token; // Lets the client resume the session after its connection drops; null if it did not ask
+        private volatile ReplayBuffer replay; // Frames written since the handshake; set with the token
+        private boolean quitting; // The client said quit, so the session ends with the connection
+        private volatile boolean parked; // The connection dropped and the session is waiting to be resumed
+        private volatile Session successor; // The connection that resumed this session
+        private ScheduledFuture<?> expiry; // Ends the parked session when its grace period is over
+        private long droppedBeforePark; // Frames the queue had dropped when the connection dropped
+        private int resumeAttempts; // Tries so far to take over a session whose old connection is still closing
+        private boolean restored; // Saved before a restart: the client's count of frames received means nothing here
+        // Output statistics, updated only by the connection's writer: frames sent and the write calls they took
+        volatile long framesWritten;
+        volatile long writeCalls;
+        private final Map<String, String[]> shares = new HashMap<>(); // Offered file hash -> group and file name, until stored
+        // The latest FetchFile reply, which may wait for a chunk to be compressed; the next one is queued after it
+        private CompletableFuture<Void> fetching = CompletableFuture.completedFuture(null);
+        // Rate limits for this client, or null
+        private final TokenBucket messageRate = AdmissionControl.bucket(config.clientMessageRate);
+        private final TokenBucket byteRate = AdmissionControl.bucket(config.clientByteRate);
+        private final TokenBucket requestRate = AdmissionControl.bucket(config.clientRequestRate);
+
+        // Queue an encoded frame for this client; the client takes its own reference. Never waits on the network
+        abstract void send(Frame frame);
+
+        // Start receiving the group name, file name, size and contents that follow a SendFile command
+        abstract void handleSendFile();
+
+        // Receive a file of the given size whose contents follow on the connection
+        abstract void receiveFile(String groupName, String fileName, long fileSize);
+
+        // Release the connection's streams and socket
+        abstract void closeConnection() throws IOException;
+
+        // Close the connection from any thread; cleanup then runs on the connection's own thread
+        abstract void disconnect();
+
+        // Close the socket and stop the writer, but keep the outbound queue so frames collect in it
+        // while the session waits to be resumed
+        abstract void suspendConnection() throws IOException;
+
+        // Frames waiting to be written to this client
+        abstract OutboundQueue outbound();
+
+        // Queue a text frame for this client only, whatever protocol it speaks
+        void send(String message) {
+            Frame frame = Frame.of(message);
+            send(frame);
+            frame.release();
+        }
+
+        // Queue a handshake frame, which a resumable session does not count
+        void sendControl(String message) {
+            Frame frame = Frame.control(message);
+            send(frame);
+            frame.release();
+        }
+
+        // Called by the writer for every frame it takes from the queue, in the order they go out
+        void record(Frame frame) {
+            ServerMetrics.framesOut.increment();
+            ServerMetrics.bytesOut.add(frame.length());
+            ReplayBuffer buffer = replay;
+            if (buffer != null && frame.numbered()) {
+                buffer.record(frame);
+            }
+        }
+
+        boolean parked() {
+            return parked;
+        }
+
+        // The connection now serving this session: this one, or the one that resumed it
+        Session current() {
+            Session session = this;
+            while (session.successor != null) {
+                session = session.successor;
+            }
+            return session;
+        }
+
+        // Reply to the command being handled
+        void reply(String message) {
+            reply(message, null);
+        }
+
+        // Reply to the command being handled; binary clients also learn the id of the group it concerns
+        void reply(String message, GroupRegistry.Group group) {
+            reply(requestId, message, group);
+        }
+
+        // Reply to a command whose answer came later, e.g. from another cluster node
+        void reply(int request, String message, GroupRegistry.Group group) {
+            if (binary) {
+                sendBinary(new BinaryProtocol.Writer(BinaryProtocol.REPLY, request)
+                        .putByte(BinaryProtocol.STATUS_OK)
+                        .putInt(group != null ? group.id : BinaryProtocol.NO_GROUP)
+                        .putString(message));
+            } else {
+                send(message);
+            }
+        }
+
+        // Reply that the command being handled failed
+        void error(String message) {
+            error(requestId, message);
+        }
+
+        void error(int request, String message) {
+            if (binary) {
+                sendBinary(new BinaryProtocol.Writer(BinaryProtocol.REPLY, request)
+                        .putByte(BinaryProtocol.STATUS_ERROR)
+                        .putInt(BinaryProtocol.NO_GROUP)
+                        .putString(message));
+            } else {
+                send(message);
+            }
+        }
+
+        private void sendBinary(BinaryProtocol.Writer writer) {
+            Frame frame = Frame.wrap(writer.detach());
+            if (compress && frame.length() >= config.compressMinBytes) {
+                Frame plain = frame;
+                frame = plain.compressed(); // E.g. History replies
+                plain.release();
+            }
+            send(frame);
+            frame.release();
+        }
+
+        // Encode a notice once per protocol and queue it for every member of the group except one
+        static void broadcast(GroupRegistry.Group group, String message, Session except) {
+            FanOutPool.deliver(new Notice(group, message, except));
+        }
+
+        // Encode a chat message once per protocol and queue it for every member of the group
+        static void broadcastChat(GroupRegistry.Group group, String sender, String msg, long seq) {
+            FanOutPool.deliver(new Chat(group, sender, msg, seq));
+        }
+
+        private static void release(Frame... frames) {
+            for (Frame frame : frames) {
+                if (frame != null) {
+                    frame.release();
+                }
+            }
+        }
+
+        // Apply the overflow policy when this client's outbound queue is full
+        void handleOverflow() {
+            ServerMetrics.framesDropped.increment();
+            if (config.overflowPolicy.equals("disconnect") && !disconnecting) {
+                disconnecting = true;
+                System.out.println(clientName + " is not keeping up; disconnecting.");
+                if (parked) {
+                    timer.execute(this::expire); // It could not catch up after resuming either
+                } else {
+                    disconnect();
+                }
+            }
+            // With the drop policy the frame is simply not delivered; the queue counts it
+        }
+
+        // The first frame carries the client's nickname and may ask for a resumable session and the binary protocol
+        void handleHello(String message) {
+            if (message.startsWith(BinaryProtocol.SESSION)) {
+                message = message.substring(BinaryProtocol.SESSION.length());
+                if (config.sessionGraceMillis > 0) {
+                    byte[] bytes = new byte[16];
+                    random.nextBytes(bytes);
+                    token = BlobStore.hex(bytes);
+                    replay = new ReplayBuffer(config.replayFrames);
+                    resumable.put(token, this);
+                }
+                sendControl(BinaryProtocol.SESSION + (token != null ? token : ""));
+            }
+            if (message.startsWith(BinaryProtocol.HELLO)) {
+                clientName = message.substring(BinaryProtocol.HELLO.length());
+                if (clientName.startsWith(BinaryProtocol.DEFLATE)) {
+                    clientName = clientName.substring(BinaryProtocol.DEFLATE.length());
+                    compress = config.compression;
+                }
+                // Last text frame; binary frames follow
+                sendControl(compress ? BinaryProtocol.HELLO_ACK + BinaryProtocol.DEFLATE : BinaryProtocol.HELLO_ACK);
+                binary = true;
+            } else {
+                clientName = message;
+            }
+            if (token != null && stateStore != null) {
+                stateStore.sessionStarted(token, clientName, binary, compress);
+            }
+            System.out.println(clientName + " connected.");
+        }
+
+        // Take over the session named by a RESUME frame: its id, groups and queued frames move to this
+        // connection and the frames the client did not receive are sent again, so nobody sees the client
+        // leave and join. Returns false if the old connection is still closing and the caller should try
+        // again after RESUME_RETRY_MILLIS; otherwise the client has been answered, and clientName is still
+        // null if the session could not be resumed
+        boolean resume(String message) {
+            String[] parts = message.substring(BinaryProtocol.RESUME.length()).split(" ");
+            Session old = parts.length == 2 ? resumable.get(parts[0]) : null;
+            long received = -1;
+            try {
+                received = parts.length == 2 ? Long.parseLong(parts[1]) : -1;
+            } catch (NumberFormatException e) {
+                // Rejected below
+            }
+            if (old == null || received < 0 || (!old.restored && received > old.replay.next())) {
+                sendControl(BinaryProtocol.RESUME_FAILED);
+                return true;
+            }
+            if (!old.parked) {
+                // The server may not have noticed that the old connection dropped; close it and wait for it to park
+                if (resumeAttempts++ == 0) {
+                    old.disconnect();
+                }
+                if (resumeAttempts < RESUME_ATTEMPTS) {
+                    return false;
+                }
+                resumeAttempts = 0;
+                sendControl(BinaryProtocol.RESUME_FAILED);
+                return true;
+            }
+            resumeAttempts = 0;
+            if (!resumable.remove(parts[0], old)) {
+                sendControl(BinaryProtocol.RESUME_FAILED); // Expired or resumed by another connection meanwhile
+                return true;
+            }
+            old.expiry.cancel(false);
+
+            // A session restored after a restart has nothing to send again; the client learns that with a
+            // count of -1 and starts counting frames anew
+            long missed = old.restored ? -1
+                    : Math.max(0, old.replay.oldest() - received) + old.outbound().dropped() - old.droppedBeforePark;
+            List<Frame> frames = old.restored ? new ArrayList<>() : old.replay.rewind(received);
+            clientName = old.clientName;
+            binary = old.binary;
+            compress = old.compress;
+            replay = old.replay;
+            for (int groupId : old.joinedGroups.snapshot()) {
+                joinedGroups.add(groupId);
+            }
+            shares.putAll(old.shares); // Unfinished offers, so the client can go on uploading
+            old.shares.clear();
+            sendControl(BinaryProtocol.RESUMED + missed);
+            for (Frame frame : frames) {
+                send(frame);
+                frame.release();
+            }
+            // Frames queued for the old connection follow the replayed ones, and so does anything sent
+            // to it by a broadcast that looked it up before the id moved
+            old.successor = this;
+            old.outbound().forwardTo(outbound());
+            sessions.transfer(old, this);
+            token = old.token;
+            resumable.put(token, this);
+            System.out.println(clientName + (old.restored ? " resumed after the restart."
+                    : " resumed (" + frames.size() + " frames sent again" + (missed > 0 ? ", " + missed + " lost" : "") + ")."));
+            return true;
+        }
+
+        // Dispatch one command from the client; returns false when the client asked to quit
+        boolean handleCommand(String message) {
+            ServerMetrics.messagesIn.increment();
+            // Handle different types of messages from the client
+            if (message.equalsIgnoreCase("quit")) {
+                quitting = true;
+                return false;
+            } else if (message.startsWith("AddGroup")) {
+                handleAddGroup(message); // Handle group creation
+            } else if (message.startsWith("JoinGroup")) {
+                handleJoinGroup(message); // Handle joining a group
+            } else if (message.startsWith("SendMessage")) {
+                handleSendMessage(message); // Handle sending a message to a group
+            } else if (message.startsWith("LeaveGroup")) {
+                handleLeaveGroup(message); // Handle leaving a group
+            } else if (message.startsWith("RemoveGroup")) {
+                handleRemoveGroup(message); // Handle removing a group
+            } else if (message.startsWith("SendFile")) {
+                handleSendFile(); // Handle sending a file to a group
+            } else if (message.startsWith("History")) {
+                handleHistory(message); // Handle history requests
+            } else {
+                error("Unknown command."); // Handle unknown commands
+            }
+            return true;
+        }
+
+        // Dispatch one binary request (opcode, request id and body); returns false when the client asked to quit
+        boolean handleBinary(ByteBuffer frame) {
+            if (compress && (frame.get(frame.position()) & BinaryProtocol.COMPRESSED) != 0) {
+                int request = frame.getInt(frame.position() + 1);
+                ByteBuffer inflated;
+                try {
+                    inflated = Compression.inflate(frame, config.maxFrame - BinaryProtocol.HEADER);
+                } catch (IOException e) {
+                    error(request, "Error: Malformed request.");
+                    return true;
+                }
+                try {
+                    return handleBinary(inflated);
+                } finally {
+                    BufferPool.release(inflated);
+                }
+            }
+            ServerMetrics.messagesIn.increment();
+            byte opcode = frame.get();
+            requestId = frame.getInt();
+            try {
+                switch (opcode) {
+                    case BinaryProtocol.QUIT:
+                        quitting = true;
+                        return false;
+                    case BinaryProtocol.ADD_GROUP:
+                        addGroup(BinaryProtocol.getString(frame));
+                        break;
+                    case BinaryProtocol.JOIN_GROUP: {
+                        GroupRegistry.Group group = readGroup(frame);
+                        joinGroup(groupName, group);
+                        break;
+                    }
+                    case BinaryProtocol.SEND_MESSAGE: {
+                        GroupRegistry.Group group = readGroup(frame);
+                        sendMessage(groupName, group, BinaryProtocol.getString(frame));
+                        break;
+                    }
+                    case BinaryProtocol.LEAVE_GROUP: {
+                        GroupRegistry.Group group = readGroup(frame);
+                        leaveGroup(groupName, group);
+                        break;
+                    }
+                    case BinaryProtocol.JOIN_GROUPS:
+                    case BinaryProtocol.LEAVE_GROUPS: {
+                        int count = frame.getInt();
+                        if (count < 0 || count > BinaryProtocol.MAX_BULK) {
+                            throw new IOException("Invalid group count " + count);
+                        }
+                        // Read every reference first, so a malformed request changes nothing
+                        String[] names = new String[count];
+                        GroupRegistry.Group[] found = new GroupRegistry.Group[count];
+                        for (int i = 0; i < count; i++) {
+                            found[i] = readGroup(frame);
+                            names[i] = groupName;
+                        }
+                        for (int i = 0; i < count; i++) {
+                            if (opcode == BinaryProtocol.JOIN_GROUPS) {
+                                joinGroup(names[i], found[i]);
+                            } else {
+                                leaveGroup(names[i], found[i]);
+                            }
+                        }
+                        break;
+                    }
+                    case BinaryProtocol.REMOVE_GROUP:
+                        readGroup(frame);
+                        removeGroup(groupName);
+                        break;
+                    case BinaryProtocol.SEND_FILE: {
+                        readGroup(frame);
+                        String fileName = BinaryProtocol.getString(frame);
+                        receiveFile(groupName, fileName, frame.getLong());
+                        break;
+                    }
+                    case BinaryProtocol.OFFER_FILE: {
+                        GroupRegistry.Group group = readGroup(frame);
+                        String fileName = BinaryProtocol.getString(frame);
+                        long size = frame.getLong();
+                        byte[] hash = BinaryProtocol.getBytes(frame, BinaryProtocol.HASH);
+                        int count = frame.getInt();
+                        if (count < 0 || count > frame.remaining() / BinaryProtocol.HASH) {
+                            throw new IOException("Invalid chunk count " + count);
+                        }
+                        byte[][] chunks = new byte[count][];
+                        for (int i = 0; i < count; i++) {
+                            chunks[i] = BinaryProtocol.getBytes(frame, BinaryProtocol.HASH);
+                        }
+                        offerFile(groupName, group, fileName, size, hash, chunks);
+                        break;
+                    }
+                    case BinaryProtocol.PUT_CHUNK: {
+                        byte[] hash = BinaryProtocol.getBytes(frame, BinaryProtocol.HASH);
+                        putChunk(hash, frame.getInt(), frame);
+                        break;
+                    }
+                    case BinaryProtocol.GET_HISTORY: {
+                        GroupRegistry.Group group = readGroup(frame);
+                        long afterSeq = frame.getLong();
+                        history(groupName, group, afterSeq, frame.getInt());
+                        break;
+                    }
+                    case BinaryProtocol.FETCH_FILE: {
+                        byte[] hash = BinaryProtocol.getBytes(frame, BinaryProtocol.HASH);
+                        fetchFile(hash, frame.getLong(), frame.getLong());
+                        break;
+                    }
+                    default:
+                        error("Unknown command.");
+                }
+            } catch (IOException | BufferUnderflowException e) {
+                error("Error: Malformed request.");
+            }
+            return true;
+        }
+
+        // Resolve a group reference from a binary request, leaving its name in groupName
+        private GroupRegistry.Group readGroup(ByteBuffer frame) throws IOException {
+            int id = frame.getInt();
+            if (id == BinaryProtocol.NO_GROUP) {
+                groupName = BinaryProtocol.getString(frame);
+                return groups.get(groupName);
+            }
+            GroupRegistry.Group group = groups.get(id);
+            groupName = group != null ? group.name : "#" + id;
+            return group;
+        }
+
+        // Handle group creation requests
+        void handleAddGroup(String message) {
+            String[] parts = message.split(" ", 2);
+            if (parts.length == 2) {
+                addGroup(parts[1]);
+            } else {
+                error("Usage: AddGroup <group name>");
+            }
+        }
+
+        void addGroup(String groupName) {
+            if (!admitRequest()) {
+                return;
+            }
+            if (config.maxGroups > 0 && groups.size() >= config.maxGroups) {
+                error("Error: Too many groups; remove one first.");
+                return;
+            }
+            if (cluster != null && !cluster.owns(groupName)) {
+                int request = requestId;
+                if (!cluster.createGroup(groupName, response -> forwardReply(request, groupName, null, response))) {
+                    unavailable(groupName);
+                }
+                return;
+            }
+            GroupRegistry.Group group = GroupChatServer.addGroup(groupName);
+            if (group != null) {
+                reply("Group " + groupName + " created.", group);
+            } else {
+                error("Error: Group " + groupName + " already exists.");
+            }
+        }
+
+        // Handle group joining requests
+        void handleJoinGroup(String message) {
+            String[] parts = message.split(" ", 2);
+            if (parts.length == 2) {
+                joinGroup(parts[1], groups.get(parts[1]));
+            } else {
+                error("Usage: JoinGroup <group name>");
+            }
+        }
+
+        void joinGroup(String groupName, GroupRegistry.Group group) {
+            if (!admitRequest()) {
+                return;
+            }
+            if (group == null) {
+                error("Error: Group " + groupName + " does not exist.");
+            } else if (joinedGroups.contains(group.id)) {
+                error("Error: You are already a member of " + groupName);
+            } else if (group.join(this)) {
+                joinedGroups.add(group.id);
+                if (token != null && stateStore != null) {
+                    stateStore.joined(token, group);
+                }
+                // Notify all group members that a new member has joined
+                String notice = clientName + " has joined the group " + groupName;
+                broadcast(group, notice, this);
+                if (cluster != null) {
+                    cluster.membershipChanged(group, notice);
+                }
+                reply("Joined group " + groupName, group);
+            } else {
+                error("Error: Group " + groupName + " does not exist.");
+            }
+        }
+
+        // Handle message sending requests
+        void handleSendMessage(String message) {
+            String[] parts = message.split(" ", 3);
+            if (parts.length == 3) {
+                sendMessage(parts[1], groups.get(parts[1]), parts[2]);
+            } else {
+                error("Usage: SendMessage <group name> <message>");
+            }
+        }
+
+        void sendMessage(String groupName, GroupRegistry.Group group, String msg) {
+            if (group != null) {
+                if (joinedGroups.contains(group.id)) {
+                    if (!admitMessage(group, msg)) {
+                        return;
+                    }
+                    if (cluster == null || cluster.owns(group.name)) {
+                        publish(group, clientName, msg);
+                    } else if (!cluster.publish(group, clientName, msg)) {
+                        unavailable(group.name); // The owner numbers, logs and delivers it
+                    }
+                } else {
+                    error("Error: You are not a member of " + groupName);
+                }
+            } else {
+                error("Error: Group " + groupName + " does not exist.");
+            }
+        }
+
+        // Whether to go ahead with a request that creates work; if not, the client has been told why
+        private boolean admitRequest() {
+            if (AdmissionControl.shedding()) {
+                AdmissionControl.requestsShed.increment();
+                error(AdmissionControl.BUSY);
+                return false;
+            }
+            if (requestRate != null && !requestRate.tryTake(1)) {
+                AdmissionControl.requestsLimited.increment();
+                error(AdmissionControl.SLOW_DOWN);
+                return false;
+            }
+            return true;
+        }
+
+        // Whether to deliver a message, given this client's rate limits and the group's; if not, the
+        // client has been told why. The group's limits count only senders on this server
+        private boolean admitMessage(GroupRegistry.Group group, String msg) {
+            if (AdmissionControl.shedding()) {
+                AdmissionControl.requestsShed.increment();
+                error(AdmissionControl.BUSY);
+                return false;
+            }
+            int bytes = byteRate != null || group.byteRate != null ? AdmissionControl.utf8Length(msg) : 0;
+            if ((messageRate != null && !messageRate.tryTake(1)) || (byteRate != null && !byteRate.tryTake(bytes))) {
+                AdmissionControl.requestsLimited.increment();
+                error(AdmissionControl.SLOW_DOWN);
+                return false;
+            }
+            if ((group.messageRate != null && !group.messageRate.tryTake(1))
+                    || (group.byteRate != null && !group.byteRate.tryTake(bytes))) {
+                AdmissionControl.requestsLimited.increment();
+                error("Error: Group " + group.name + " is too busy; try again later.");
+                return false;
+            }
+            return true;
+        }
+
+        // Handle group leaving requests
+        void handleLeaveGroup(String message) {
+            String[] parts = message.split(" ", 2);
+            if (parts.length == 2) {
+                leaveGroup(parts[1], groups.get(parts[1]));
+            } else {
+                error("Usage: LeaveGroup <group name>");
+            }
+        }
+
+        void leaveGroup(String groupName, GroupRegistry.Group group) {
+            if (group != null && group.leave(this)) {
+                joinedGroups.remove(group.id);
+                if (token != null && stateStore != null) {
+                    stateStore.left(token, group);
+                }
+                // Notify all remaining members that a member has left
+                String notice = clientName + " has left the group " + groupName;
+                broadcast(group, notice, null);
+                if (cluster != null) {
+                    cluster.membershipChanged(group, notice);
+                }
+                reply("Left group " + groupName, group);
+            } else {
+                error("Error: Group " + groupName + " does not exist or you are not a member.");
+            }
+        }
+
+        // Handle group removal requests
+        void handleRemoveGroup(String message) {
+            String[] parts = message.split(" ", 2);
+            if (parts.length == 2) {
+                removeGroup(parts[1]);
+            } else {
+                error("Usage: RemoveGroup <group name>");
+            }
+        }
+
+        void removeGroup(String groupName) {
+            if (cluster != null && !cluster.owns(groupName)) {
+                int request = requestId;
+                GroupRegistry.Group local = groups.get(groupName); // Gone by the time the owner answers
+                if (!cluster.removeGroup(groupName, response -> forwardReply(request, groupName, local, response))) {
+                    unavailable(groupName);
+                }
+                return;
+            }
+            GroupRegistry.Group group = GroupChatServer.removeGroup(groupName);
+            if (group != null) {
+                reply("Group " + groupName + " removed.", group);
+            } else {
+                error("Error: Group " + groupName + " does not exist.");
+            }
+        }
+
+        // Pass the owner's answer to a forwarded AddGroup or RemoveGroup on to the client
+        private void forwardReply(int request, String groupName, GroupRegistry.Group group, ByteBuffer response) {
+            if (response == null) {
+                error(request, "Error: The server for group " + groupName + " is unavailable.");
+                return;
+            }
+            try {
+                byte status = response.get();
+                String message = BinaryProtocol.getString(response);
+                if (status == BinaryProtocol.STATUS_OK) {
+                    reply(request, message, group != null ? group : groups.get(groupName));
+                } else {
+                    error(request, message);
+                }
+            } catch (IOException | BufferUnderflowException e) {
+                error(request, "Error: Malformed reply from the server for group " + groupName);
+            }
+        }
+
+        // Report that the cluster node owning a group cannot be reached
+        private void unavailable(String groupName) {
+            error("Error: The server for group " + groupName + " is unavailable.");
+        }
+
+        // Announce a file to the rest of the group and return the relay its contents are streamed
+        // through, or null if it cannot be delivered (the caller then discards the contents)
+        FileRelay startFileRelay(String groupName, String fileName, long fileSize) {
+            GroupRegistry.Group group = groups.get(groupName);
+            if (group == null) {
+                error("Error: Group " + groupName + " does not exist.");
+                return null;
+            }
+            if (!admitRequest() || !admitUpload(fileSize)) {
+                return null;
+            }
+            FileRelay relay;
+            try {
+                relay = FileRelay.create(fileName, fileSize);
+            } catch (IOException e) {
+                AdmissionControl.uploadsDone(1);
+                error("Error sending file: " + e.getMessage());
+                return null;
+            }
+            Frame text = null;
+            Frame binary = null;
+            // What a member that resumes before it got the whole file sees instead of it
+            String notReceived = "Error: File " + fileName + " was not received completely.";
+            for (int[] chunk : group.memberIds()) {
+                for (int id : chunk) {
+                    Session client = sessions.get(id);
+                    if (client == null) {
+                        continue; // Disconnected since the snapshot
+                    }
+                    if (client == this) {
+                        continue;
+                    }
+                    if (client.binary) {
+                        if (binary == null) {
+                            binary = Frame.file(new BinaryProtocol.Writer(BinaryProtocol.NOTICE, 0)
+                                    .putInt(group.id).putString("ReceiveFile " + fileName).detach(), relay,
+                                    Frame.wrap(new BinaryProtocol.Writer(BinaryProtocol.NOTICE, 0)
+                                            .putInt(group.id).putString(notReceived).detach()));
+                        }
+                        client.send(binary);
+                    } else {
+                        if (text == null) {
+                            text = Frame.file(Frames.encodePooled("ReceiveFile " + fileName), relay, Frame.of(notReceived));
+                        }
+                        client.send(text);
+                    }
+                }
+            }
+            release(text, binary);
+            if (cluster != null) {
+                // Streamed contents are not relayed between servers; members elsewhere only hear of the file
+                cluster.forwardNotice(group, clientName + " sent " + fileName + " (" + fileSize + " bytes) to "
+                        + group.name + "; only members connected to the same server receive streamed files.");
+            }
+            return relay;
+        }
+
+        // Check a file's size against the limit and count it among the uploads in progress, unless
+        // too many are running already; if it cannot go ahead, the client has been told why
+        private boolean admitUpload(long fileSize) {
+            if (config.maxFileBytes > 0 && fileSize > config.maxFileBytes) {
+                error("Error sending file: files are limited to " + config.maxFileBytes + " bytes.");
+                return false;
+            }
+            if (!AdmissionControl.startUpload(config.maxUploads)) {
+                AdmissionControl.requestsShed.increment();
+                error("Error sending file: too many uploads in progress; try again later.");
+                return false;
+            }
+            return true;
+        }
+
+        // Report the end of an upload; members of a failed one are told to discard their copy
+        void finishFileRelay(String groupName, FileRelay relay, IOException failure) {
+            AdmissionControl.uploadsDone(1);
+            if (failure != null) {
+                relay.fail();
+                GroupRegistry.Group group = groups.get(groupName);
+                if (group != null) {
+                    broadcast(group, "Error: File " + relay.fileName + " was not received completely.", this);
+                }
+                error("Error sending file: " + failure.getMessage());
+            } else {
+                reply("File " + relay.fileName + " sent to group " + groupName, groups.get(groupName));
+            }
+            relay.release();
+        }
+
+        // Handle history requests: History <group> <count> or History <group> after <sequence number>.
+        // The group name may contain spaces, so the numbers are taken from the end of the line; a
+        // name ending in " after" is read as the second form unless such a group exists
+        void handleHistory(String message) {
+            String[] parts = message.split(" ", 2);
+            int last = parts.length == 2 ? parts[1].lastIndexOf(' ') : -1;
+            try {
+                if (last > 0) {
+                    String groupName = parts[1].substring(0, last);
+                    String number = parts[1].substring(last + 1);
+                    if (groupName.endsWith(" after") && groups.get(groupName) == null) {
+                        groupName = groupName.substring(0, groupName.length() - " after".length());
+                        history(groupName, groups.get(groupName), Long.parseLong(number), HISTORY_LIMIT);
+                    } else {
+                        history(groupName, groups.get(groupName), -1, Integer.parseInt(number));
+                    }
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                // Fall through to the usage message
+            }
+            error("Usage: History <group name> <count> or History <group name> after <sequence number>");
+        }
+
+        // Send logged messages of a group the client belongs to: the last limit ones when afterSeq is
+        // negative, otherwise up to limit messages that follow afterSeq
+        void history(String groupName, GroupRegistry.Group group, long afterSeq, int limit) {
+            if (!admitRequest()) {
+                return;
+            }
+            if (group == null) {
+                error("Error: Group " + groupName + " does not exist.");
+                return;
+            }
+            if (!joinedGroups.contains(group.id)) {
+                error("Error: You are not a member of " + groupName);
+                return;
+            }
+            if (cluster != null && !cluster.owns(group.name)) {
+                // Only the owner logs the group's messages
+                int request = requestId;
+                if (!cluster.history(group.name, afterSeq, limit, response -> forwardHistory(request, group, response))) {
+                    unavailable(group.name);
+                }
+                return;
+            }
+            try {
+                sendHistory(requestId, group, readHistory(group.name, afterSeq, limit));
+            } catch (IOException e) {
+                error("Error reading history: " + e.getMessage());
+            }
+        }
+
+        // Pass history read by the group's owner on to the client
+        private void forwardHistory(int request, GroupRegistry.Group group, ByteBuffer response) {
+            if (response == null) {
+                error(request, "Error: The server for group " + group.name + " is unavailable.");
+                return;
+            }
+            try {
+                byte status = response.get();
+                String message = BinaryProtocol.getString(response);
+                if (status != BinaryProtocol.STATUS_OK) {
+                    error(request, "Error reading history: " + message);
+                    return;
+                }
+                int count = response.getInt();
+                long lastSeq = response.getLong();
+                byte[] records = BinaryProtocol.getBytes(response, response.remaining());
+                sendHistory(request, group, new MessageLog.History(records, count, lastSeq));
+            } catch (IOException | BufferUnderflowException e) {
+                error(request, "Error: Malformed reply from the server for group " + group.name);
+            }
+        }
+
+        private void sendHistory(int request, GroupRegistry.Group group, MessageLog.History history) {
+            if (binary) {
+                // The records go out exactly as they are stored
+                sendBinary(new BinaryProtocol.Writer(BinaryProtocol.HISTORY, request)
+                        .putInt(group.id).putInt(history.count).putBytes(history.records));
+            } else {
+                for (MessageLog.Entry entry : MessageLog.decode(history.records)) {
+                    send("[" + entry.seq + "] " + entry.sender + " (" + group.name + "): " + entry.text);
+                }
+                reply(request, "End of history for " + group.name + " (" + history.count + " messages, last "
+                        + history.lastSeq + ")", null);
+            }
+        }
+
+        // Start sharing a file through the blob store; the client uploads only the chunks it is asked for
+        void offerFile(String groupName, GroupRegistry.Group group, String fileName, long size, byte[] hash, byte[][] chunks) {
+            if (group == null) {
+                error("Error: Group " + groupName + " does not exist.");
+                return;
+            }
+            if (blobs == null) {
+                error("Error sending file: the server has no file store.");
+                return;
+            }
+            if (!admitRequest()) {
+                return;
+            }
+            if (config.maxFileBytes > 0 && size > config.maxFileBytes) {
+                error("Error sending file: files are limited to " + config.maxFileBytes + " bytes.");
+                return;
+            }
+            try {
+                BlobStore.Manifest manifest = blobs.offer(hash, size, chunks);
+                CompletableFuture<Void> stored = blobs.stored(manifest);
+                if (stored != null) {
+                    shareWhenStored(stored, groupName, fileName, hash, manifest); // Nothing to upload
+                    return;
+                }
+                // An offer counts as an upload until its last chunk is stored or the session ends
+                if (!shares.containsKey(manifest.hash) && !admitUpload(size)) {
+                    return;
+                }
+                shares.put(manifest.hash, new String[] {groupName, fileName});
+                int[] missing = manifest.missing();
+                BinaryProtocol.Writer writer = new BinaryProtocol.Writer(BinaryProtocol.CHUNKS_NEEDED, requestId)
+                        .putBytes(hash).putInt(missing.length);
+                for (int index : missing) {
+                    writer.putInt(index);
+                }
+                sendBinary(writer);
+            } catch (IOException e) {
+                error("Error sending file: " + e.getMessage());
+            }
+        }
+
+        // Store one chunk of an offered file and announce the file once every chunk is in and the
+        // store has verified it, which it does on a worker thread
+        void putChunk(byte[] hash, int index, ByteBuffer chunk) {
+            String[] share = shares.get(BlobStore.hex(hash));
+            if (share == null || blobs == null) {
+                error("Error sending file: no upload in progress for that file.");
+                return;
+            }
+            try {
+                BlobStore.Manifest manifest = blobs.get(hash);
+                CompletableFuture<Void> stored = blobs.put(manifest, index, chunk);
+                // Acknowledge the chunk so the client can send another; it keeps only a few in flight
+                sendBinary(new BinaryProtocol.Writer(BinaryProtocol.CHUNK_STORED, requestId).putBytes(hash).putInt(index));
+                if (stored != null) {
+                    // Every chunk is in, so this client's upload is over whether or not the file checks out
+                    shares.remove(manifest.hash);
+                    AdmissionControl.uploadsDone(1);
+                    shareWhenStored(stored, share[0], share[1], hash, manifest);
+                }
+            } catch (IOException e) {
+                shares.remove(BlobStore.hex(hash));
+                AdmissionControl.uploadsDone(1);
+                error("Error sending file " + share[1] + ": " + e.getMessage());
+            }
+        }
+
+        // Once the store has verified the file, tell the rest of the group that it can be fetched by
+        // hash, and answer the request being handled; at once if the file is stored already
+        private void shareWhenStored(CompletableFuture<Void> stored, String groupName, String fileName, byte[] hash,
+                                     BlobStore.Manifest manifest) {
+            int request = requestId;
+            stored.whenComplete((done, failure) -> {
+                GroupRegistry.Group group = groups.get(groupName);
+                if (failure != null) {
+                    Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                    error(request, "Error sending file " + fileName + ": " + cause.getMessage());
+                } else if (group == null) {
+                    error(request, "Error: Group " + groupName + " does not exist.");
+                } else {
+                    announceFile(group, clientName, fileName, manifest.size, hash, this);
+                    if (cluster != null) {
+                        cluster.forwardFile(group, clientName, fileName, manifest.size, hash);
+                    }
+                    reply(request, "File " + fileName + " sent to group " + group.name, group);
+                }
+            });
+        }
+
+        // Encode a file announcement once per protocol and queue it for every member of the group except one
+        static void announceFile(GroupRegistry.Group group, String sender, String fileName, long size, byte[] hash,
+                                 Session except) {
+            Frame text = null;
+            Frame binary = null;
+            // What a member that resumes before it got the whole file sees instead of it
+            String notReceived = "Error: File " + fileName + " was not received completely.";
+            for (int[] chunk : group.memberIds()) {
+                for (int id : chunk) {
+                    Session client = sessions.get(id);
+                    if (client == null) {
+                        continue; // Disconnected since the snapshot
+                    }
+                    if (client == except) {
+                        continue;
+                    }
+                    if (client.binary) {
+                        if (binary == null) {
+                            binary = Frame.wrap(new BinaryProtocol.Writer(BinaryProtocol.FILE_AVAILABLE, 0)
+                                    .putInt(group.id).putString(sender).putString(fileName)
+                                    .putLong(size).putBytes(hash).detach());
+                        }
+                        client.send(binary);
+                    } else {
+                        if (text == null) {
+                            // Text clients cannot fetch from the store; they only learn that the file exists
+                            text = Frame.of(sender + " (" + group.name + ") shared " + fileName + " ("
+                                    + size + " bytes, id " + BlobStore.hex(hash) + ")");
+                        }
+                        client.send(text);
+                    }
+                }
+            }
+            release(text, binary);
+        }
+
+        // Send up to MAX_FETCH bytes of a stored file starting at offset, streamed from disk by the writer.
+        // A member that negotiated compression gets a whole chunk from the chunk's compressed copy, which
+        // the store may first have to make on a worker thread; replies still go out in request order
+        void fetchFile(byte[] hash, long offset, long length) {
+            BlobStore.Manifest manifest;
+            try {
+                manifest = blobs != null ? blobs.get(hash) : null;
+                if (manifest == null || !manifest.complete()) {
+                    Integer node = cluster != null ? cluster.fileNode(BlobStore.hex(hash)) : null;
+                    if (node != null) {
+                        fetchRemoteFile(node, hash, offset, length); // Shared by a member on another server
+                    } else {
+                        error("Error: File " + BlobStore.hex(hash) + " not found.");
+                    }
+                    return;
+                }
+                if (offset < 0 || offset > manifest.size || length < 0) {
+                    error("Error: Invalid range for file " + manifest.hash);
+                    return;
+                }
+            } catch (IOException e) {
+                error("Error fetching file: " + e.getMessage());
+                return;
+            }
+            int count = (int) Math.min(Math.min(length, BinaryProtocol.MAX_FETCH), manifest.size - offset);
+            CompletableFuture<Path> deflated = NOT_COMPRESSED;
+            if (compress && count >= config.compressMinBytes && offset % BinaryProtocol.FILE_CHUNK == 0
+                    && count == Math.min(BinaryProtocol.FILE_CHUNK, manifest.size - offset)) {
+                // A whole chunk, as clients fetch them: streamed from its compressed copy
+                deflated = blobs.compressedChunk(manifest, (int) (offset / BinaryProtocol.FILE_CHUNK));
+            }
+            int request = requestId;
+            fetching = fetching.thenCombine(deflated, (previous, path) -> path)
+                    .handle((path, failure) -> {
+                        sendFileData(request, manifest, hash, offset, count, failure == null ? path : null);
+                        return null;
+                    });
+        }
+
+        // Queue the reply to a FetchFile: the range streamed from the file, or the chunk from its compressed copy
+        private void sendFileData(int request, BlobStore.Manifest manifest, byte[] hash, long offset, int count, Path deflated) {
+            try {
+                FileRelay relay;
+                Frame frame;
+                if (deflated != null) {
+                    relay = FileRelay.open(deflated, 0, Files.size(deflated));
+                    frame = Frame.stream(new BinaryProtocol.Writer(
+                            (byte) (BinaryProtocol.FILE_DATA | BinaryProtocol.COMPRESSED), request)
+                            .putInt(BinaryProtocol.HASH + 8 + count).detach((int) relay.size), relay);
+                } else {
+                    relay = FileRelay.open(blobs.path(manifest), offset, count);
+                    frame = Frame.stream(new BinaryProtocol.Writer(BinaryProtocol.FILE_DATA, request)
+                            .putBytes(hash).putLong(offset).detach(count), relay);
+                }
+                relay.release();
+                send(frame);
+                frame.release();
+            } catch (IOException e) {
+                error(request, "Error fetching file: " + e.getMessage());
+            }
+        }
+
+        // Fetch a range of a file stored on another cluster node; it arrives whole rather than streamed
+        private void fetchRemoteFile(int node, byte[] hash, long offset, long length) {
+            int request = requestId;
+            int count = (int) Math.max(0, Math.min(length, BinaryProtocol.MAX_FETCH));
+            boolean sent = cluster.fetch(node, hash, offset, count, response -> {
+                if (response == null) {
+                    error(request, "Error fetching file: the server storing it is unavailable.");
+                    return;
+                }
+                try {
+                    byte status = response.get();
+                    String message = BinaryProtocol.getString(response);
+                    if (status != BinaryProtocol.STATUS_OK) {
+                        error(request, message);
+                        return;
+                    }
+                    Frame frame = Frame.data(new BinaryProtocol.Writer(BinaryProtocol.FILE_DATA, request)
+                            .putBytes(hash).putLong(offset).putBytes(response).detach());
+                    if (compress && frame.length() >= config.compressMinBytes) {
+                        Frame plain = frame;
+                        frame = plain.compressed(); // Made for this one member, like a History reply
+                        plain.release();
+                    }
+                    send(frame);
+                    frame.release();
+                } catch (IOException | BufferUnderflowException e) {
+                    error(request, "Error fetching file: malformed reply from the server storing it.");
+                }
+            });
+            if (!sent) {
+                error("Error fetching file: the server storing it is unavailable.");
+            }
+        }
+
+        // Clean up resources when the client disconnects
+        void cleanup() {
+            try {
+                if (clientName != null) {
+                    OutboundQueue queue = outbound();
+                    String writes = framesWritten + " frames in " + writeCalls + " writes";
+                    if (queue.dropped() > 0) {
+                        System.out.println(clientName + " disconnected (" + writes + ", " + queue.dropped()
+                                + " messages dropped, max lag " + TimeUnit.NANOSECONDS.toMillis(queue.maxLagNanos()) + " ms).");
+                    } else {
+                        System.out.println(clientName + " disconnected (" + writes + ").");
+                    }
+                }
+
+                if (token != null && !quitting && clientName != null) {
+                    park();
+                } else {
+                    endSession();
+                }
+            } catch (IOException e) {
+                e.printStackTrace(); // Handle errors during cleanup
+            }
+        }
+
+        // Keep the session after its connection dropped: it stays in its groups and its frames queue up
+        // until the client resumes it or the grace period ends
+        private void park() throws IOException {
+            suspendConnection();
+            droppedBeforePark = outbound().dropped();
+            expiry = timer.schedule(this::expire, config.sessionGraceMillis, TimeUnit.MILLISECONDS);
+            parked = true;
+            System.out.println(clientName + " can resume within " + config.sessionGraceMillis / 1000.0 + " s.");
+        }
+
+        // Wait, parked, for the client of a session saved before a restart to resume it
+        void parkRestored(String savedToken) {
+            token = savedToken;
+            replay = new ReplayBuffer(config.replayFrames);
+            restored = true;
+            resumable.put(token, this);
+            expiry = timer.schedule(this::expire, config.sessionGraceMillis, TimeUnit.MILLISECONDS);
+            parked = true;
+        }
+
+        // End a parked session that was not resumed in time
+        private void expire() {
+            if (resumable.remove(token, this)) {
+                System.out.println(clientName + " did not resume; ending the session.");
+                try {
+                    endSession();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // Leave every group, telling the members, and release the connection
+        private void endSession() throws IOException {
+            if (token != null) {
+                resumable.remove(token, this);
+                if (stateStore != null) {
+                    stateStore.sessionEnded(token);
+                }
+            }
+            for (int groupId : joinedGroups.snapshot()) {
+                GroupRegistry.Group group = groups.get(groupId);
+                if (group != null && group.leave(this)) { // Remove client from all groups
+                    String notice = clientName + " has left the group " + group.name;
+                    broadcast(group, notice, null);
+                    if (cluster != null) {
+                        cluster.membershipChanged(group, notice);
+                    }
+                }
+            }
+            joinedGroups.clear();
+            AdmissionControl.uploadsDone(shares.size()); // Offers left unfinished
+            shares.clear();
+
+            sessions.unregister(this); // Frees the session id once no group lists it
+
+            closeConnection(); // Close the client socket and streams
+            ReplayBuffer buffer = replay;
+            if (buffer != null) {
+                buffer.releaseAll();
+            }
+        }
+    }
+
+    // A notice such as a member joining, for every member of a group but one
+    private static class Notice extends FanOutPool.Delivery {
+        private static final int TEXT = 0;
+        private static final int BINARY = 1;
+
+        private final String message;
+        private final Session except;
+
+        Notice(GroupRegistry.Group group, String message, Session except) {
+            super(group, 2);
+            this.message = message;
+            this.except = except;
+        }
+
+        void deliverTo(Session client) {
+            if (client != except) {
+                client.send(frame(client.binary ? BINARY : TEXT));
+            }
+        }
+
+        Frame encode(int kind) {
+            return kind == BINARY ? Frame.wrap(new BinaryProtocol.Writer(BinaryProtocol.NOTICE, 0)
+                    .putInt(group.id).putString(message).detach()) : Frame.of(message);
+        }
+    }
+
+    // A chat message, for every member of a group
+    private static class Chat extends FanOutPool.Delivery {
+        private static final int TEXT = 0;
+        private static final int BINARY = 1;
+        private static final int COMPRESSED = 2; // Made for the first member that negotiated compression, shared by the rest
+
+        private final String sender;
+        private final String msg;
+        private final long seq;
+        private volatile boolean tooLongForText; // Binary senders may exceed writeUTF's 64 KB; text members then miss it
+
+        Chat(GroupRegistry.Group group, String sender, String msg, long seq) {
+            super(group, 3);
+            this.sender = sender;
+            this.msg = msg;
+            this.seq = seq;
+        }
+
+        void deliverTo(Session client) {
+            if (client.binary) {
+                Frame binary = frame(BINARY);
+                client.send(client.compress && binary.length() >= config.compressMinBytes ? frame(COMPRESSED) : binary);
+            } else if (!tooLongForText) {
+                Frame text = frame(TEXT);
+                if (text != null) {
+                    client.send(text);
+                }
+            }
+        }
+
+        Frame encode(int kind) {
+            switch (kind) {
+                case BINARY:
+                    return Frame.wrap(new BinaryProtocol.Writer(BinaryProtocol.MESSAGE, 0)
+                            .putInt(group.id).putString(sender).putString(msg).putLong(seq).detach());
+                case COMPRESSED:
+                    return frame(BINARY).compressed();
+                default:
+                    try {
+                        return Frame.of(sender + " (" + group.name + "): " + msg);
+                    } catch (IllegalArgumentException e) {
+                        tooLongForText = true;
+                        return null;
+                    }
+            }
+        }
+    }
+
+    // A resumable session brought back from the state directory after a restart. It has no connection:
+    // like a session whose connection dropped, it stays in its groups with frames queueing up until its
+    // client resumes it or the grace period ends
+    private static class RestoredSession extends Session {
+        private final OutboundQueue outbound = new OutboundQueue(config.outboundQueue);
+
+        RestoredSession(StateStore.SavedSession saved) {
+            clientName = saved.name;
+            binary = saved.binary;
+            compress = saved.compress;
+        }
+
+        void send(Frame frame) {
+            if (!outbound.offer(frame.retain())) {
+                frame.release();
+                handleOverflow();
+            }
+        }
+
+        OutboundQueue outbound() {
+            return outbound;
+        }
+
+        void handleSendFile() {
+            // Never called: no commands arrive without a connection
+        }
+
+        void receiveFile(String groupName, String fileName, long fileSize) {
+            // Never called, as above
+        }
+
+        void closeConnection() {
+            outbound.close();
+            outbound.releaseAll();
+        }
+
+        void disconnect() {
+            // Nothing to close; the session ends when its grace period does
+        }
+
+        void suspendConnection() {
+            // Never connected
+        }
+    }
+
+    // Handles one client connection with a blocking reader and a dedicated writer draining its outbound queue
+    private static class ClientHandler extends Session implements Runnable {
+        private static final byte[] ZEROS = new byte[8192]; // Padding for files whose upload failed
+        private static final int MAX_BATCH = 256; // Most frames gathered into one write call
+        private static final int READ_BUFFER = 4096; // Read buffer kept between binary requests
+
+        private SocketChannel channel; // Blocking channel, used for zero-copy file transfers
+        private Socket socket; // Client socket for communication
+        private DataOutputStream out; // Output stream to send data to the client
+        private DataInputStream in; // Input stream to receive data from the client
+        private final Executor executor; // Runs the writer alongside this reader
+        private final OutboundQueue outbound = new OutboundQueue(config.outboundQueue);
+        private final CountDownLatch writerDone = new CountDownLatch(1);
+        private boolean writerStarted;
+        private ByteBuffer readBuffer; // Pooled; holds the binary request being handled
+
+        public ClientHandler(SocketChannel channel, Executor executor) {
+            this.channel = channel;
+            this.socket = channel.socket(); // Initialize the client handler with the client socket
+            this.executor = executor;
+            try {
+                socket.setTcpNoDelay(true); // The writer batches frames itself, so Nagle would only add delay
+            } catch (SocketException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public void run() {
+            try {
+                // Initialize input and output streams
+                in = new DataInputStream(socket.getInputStream());
+                out = new DataOutputStream(socket.getOutputStream());
+                executor.execute(this::writeLoop);
+                writerStarted = true;
+
+                // Read the client's nickname, or the token of a session it is resuming
+                String hello = in.readUTF();
+                while (hello.startsWith(BinaryProtocol.RESUME)) {
+                    while (!resume(hello)) {
+                        Thread.sleep(RESUME_RETRY_MILLIS);
+                    }
+                    if (clientName != null) {
+                        break; // Resumed
+                    }
+                    hello = in.readUTF(); // The client starts a new session instead
+                }
+                if (clientName == null) {
+                    handleHello(hello);
+                }
+
+                if (binary) {
+                    while (handleBinary(readBinary())) {
+                        // Keep handling binary requests until the client quits
+                    }
+                } else {
+                    String message;
+                    while ((message = in.readUTF()) != null) {
+                        if (!handleCommand(message)) {
+                            break;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Connection error with " + clientName); // Handle connection errors
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                cleanup(); // Clean up resources when done
+                BufferPool.release(readBuffer);
+                readBuffer = null;
+            }
+        }
+
+        // Read one binary request into the pooled read buffer, which is reused for the next one; the
+        // streams are unbuffered, so reading the body through the channel skips nothing
+        private ByteBuffer readBinary() throws IOException {
+            int length = in.readInt();
+            if (length < BinaryProtocol.HEADER || length > config.maxFrame) {
+                throw new IOException("Invalid binary frame length " + length);
+            }
+            if (readBuffer == null || readBuffer.capacity() < length || readBuffer.capacity() > 2 * Math.max(length, READ_BUFFER)) {
+                BufferPool.release(readBuffer); // Too small, or still large from an earlier upload chunk
+                readBuffer = BufferPool.acquire(Math.max(length, READ_BUFFER));
+            }
+            readBuffer.clear().limit(length);
+            while (readBuffer.hasRemaining()) {
+                if (channel.read(readBuffer) < 0) {
+                    throw new EOFException();
+                }
+            }
+            return readBuffer.flip();
+        }
+
+        // Write queued messages until the queue is closed and drained. Frames queued together go out in
+        // one gathering write of up to flushBytes; with flushDelayMicros the writer also waits that long
+        // for more frames, trading a little latency for fewer, fuller TCP segments
+        private void writeLoop() {
+            Frame[] frames = new Frame[MAX_BATCH];
+            ByteBuffer[] buffers = new ByteBuffer[MAX_BATCH];
+            int count = 0;
+            try {
+                Frame frame;
+                while ((frame = outbound.take()) != null) {
+                    long bytes = 0;
+                    long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(config.flushDelayMicros);
+                    while (frame != null) {
+                        record(frame); // Before writing: a frame cut off by a dropped connection is sent again on resume
+                        frames[count] = frame;
+                        buffers[count] = frame.asBuffer();
+                        count++;
+                        bytes += frame.length();
+                        if (frame.relay() != null || count == MAX_BATCH || bytes >= config.flushBytes) {
+                            break; // File contents follow a file frame directly, so it ends the batch
+                        }
+                        frame = outbound.poll();
+                        if (frame == null && config.flushDelayMicros > 0) {
+                            frame = outbound.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        }
+                    }
+                    for (long written = 0; written < bytes; ) {
+                        written += channel.write(buffers, 0, count);
+                        writeCalls++;
+                    }
+                    framesWritten += count;
+                    Frame last = frames[count - 1];
+                    if (last.relay() != null) {
+                        streamFile(last.relay());
+                    }
+                    for (; count > 0; count--) {
+                        frames[count - 1].release();
+                        frames[count - 1] = null;
+                        buffers[count - 1] = null;
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                for (; count > 0; count--) {
+                    frames[count - 1].release();
+                }
+                if (token == null) {
+                    outbound.close(); // The client is gone; stop queueing for it
+                }
+                disconnect();
+            } finally {
+                writerDone.countDown();
+            }
+        }
+
+        void send(Frame frame) {
+            if (!outbound.offer(frame.retain())) {
+                frame.release();
+                handleOverflow();
+            }
+        }
+
+        OutboundQueue outbound() {
+            return outbound;
+        }
+
+        void disconnect() {
+            try {
+                socket.close(); // The reader fails and runs cleanup
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        void suspendConnection() throws IOException {
+            outbound.detach(); // The writer stops at its next take; later frames wait for a resume
+            socket.close();
+            if (writerStarted) {
+                try {
+                    writerDone.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        // Handle file sending requests
+        void handleSendFile() {
+            try {
+                // Read the group name, file name, and file size from the client
+                String groupName = in.readUTF();
+                String fileName = in.readUTF();
+                long fileSize = in.readLong();
+                receiveFile(groupName, fileName, fileSize);
+            } catch (IOException e) {
+                error("Error sending file: " + e.getMessage());
+            }
+        }
+
+        // Stream an upload from the socket into a relay that members are already reading from
+        void receiveFile(String groupName, String fileName, long fileSize) {
+            FileRelay relay = startFileRelay(groupName, fileName, fileSize);
+            if (relay == null) {
+                try {
+                    in.skipNBytes(fileSize); // Keep the connection in step with the client
+                } catch (IOException e) {
+                    disconnect();
+                }
+                return;
+            }
+            IOException failure = null;
+            try {
+                long remaining = fileSize;
+                while (remaining > 0) {
+                    long count = relay.receiveFrom(channel, remaining);
+                    if (count < 0) {
+                        throw new EOFException("Connection closed during upload");
+                    }
+                    remaining -= count;
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            finishFileRelay(groupName, relay, failure);
+        }
+
+        // Send a relayed file to this client as it arrives; pads with zeros if the upload failed
+        private void streamFile(FileRelay relay) throws IOException, InterruptedException {
+            long position = 0;
+            while (position < relay.size) {
+                long available = relay.awaitAvailable(position);
+                if (available > position) {
+                    position += relay.transferTo(position, available - position, channel);
+                    writeCalls++;
+                } else {
+                    while (position < relay.size) {
+                        int count = (int) Math.min(ZEROS.length, relay.size - position);
+                        out.write(ZEROS, 0, count);
+                        writeCalls++;
+                        position += count;
+                    }
+                }
+            }
+        }
+
+        void closeConnection() throws IOException {
+            // Let the writer deliver what is already queued, but never wait long on a stuck client
+            outbound.close();
+            if (writerStarted) {
+                try {
+                    writerDone.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            outbound.releaseAll();
+            if (in != null) {
+                in.close();
+            }
+            if (out != null) {
+                out.close();
+            }
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+import java.util.Collection;
+import java.util.stream.IntStream;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Concurrent registry of groups and their members. Lookups and fan-out iteration take no lock;
+// membership changes lock only the group they touch, so traffic in one group never waits on another.
+// Members are stored as session ids (see SessionTable) in sorted int arrays, and groups are found
+// by id through a plain array, so a membership costs a few bytes rather than a hash entry per side.
+public class GroupRegistry {
+    private final ConcurrentHashMap<String, Group> groups = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    // Groups by id for binary clients and for sessions' lists of joined groups. Ids are not reused,
+    // so the table grows with the number of groups ever created; written under lock, read without it
+    private volatile AtomicReferenceArray<Group> byId = new AtomicReferenceArray<>(256);
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // A group and its members; members can be iterated while other threads join and leave
+    static class Group {
+        final String name;
+        final int id; // Stable for the life of the group; binary clients use it instead of the name
+        private final SegmentedIntSet members = new SegmentedIntSet(); // Session ids
+        final CopyOnWriteIntSet remoteNodes = new CopyOnWriteIntSet(); // Other cluster nodes with members here
+        private final ReentrantLock lock = new ReentrantLock(); // Orders membership changes against removal
+        private boolean removed; // Guarded by lock
+        private volatile FanOutPool.Lane lane; // Orders the deliveries handed to the fan-out pool; made for the first one
+        // Rate limits on messages to the group from senders on this server, or null
+        final TokenBucket messageRate = AdmissionControl.bucket(GroupChatServer.config.groupMessageRate);
+        final TokenBucket byteRate = AdmissionControl.bucket(GroupChatServer.config.groupByteRate);
+
+        Group(String name, int id) {
+            this.name = name;
+            this.id = id;
+        }
+
+        // Session ids of the members at the time of the call, chunk by chunk, safe to iterate without
+        // locking. Resolve them with SessionTable.get, which skips members that have since disconnected
+        int[][] memberIds() {
+            return members.snapshot();
+        }
+
+        int memberCount() {
+            return members.size();
+        }
+
+        // Add a member unless the group has been removed; returns false if it was not added
+        boolean join(GroupChatServer.Session member) {
+            lock.lock();
+            long locked = System.nanoTime();
+            try {
+                return !removed && members.add(member.id);
+            } finally {
+                ServerMetrics.membershipLockHold.record(System.nanoTime() - locked);
+                lock.unlock();
+            }
+        }
+
+        // Remove a member; returns false if it was not a member
+        boolean leave(GroupChatServer.Session member) {
+            lock.lock();
+            long locked = System.nanoTime();
+            try {
+                return members.remove(member.id);
+            } finally {
+                ServerMetrics.membershipLockHold.record(System.nanoTime() - locked);
+                lock.unlock();
+            }
+        }
+
+        // The lane of the deliveries to the group that run on the fan-out pool
+        FanOutPool.Lane fanOutLane() {
+            FanOutPool.Lane current = lane;
+            if (current == null) {
+                lock.lock();
+                try {
+                    if (lane == null) {
+                        lane = new FanOutPool.Lane();
+                    }
+                    current = lane;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return current;
+        }
+
+        // Whether deliveries to the group are still waiting for or running on the fan-out pool
+        boolean fanningOut() {
+            FanOutPool.Lane current = lane;
+            return current != null && current.busy();
+        }
+
+        // Put back members saved before a restart, by ascending session id
+        void restoreMembers(int[] ids) {
+            lock.lock();
+            try {
+                members.addAll(ids);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Stop accepting members; the existing ones stay visible so they can be notified
+        private void markRemoved() {
+            lock.lock();
+            try {
+                removed = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Create a group; returns null if a group with this name already exists
+    Group create(String name) {
+        Group group = new Group(name, nextId.incrementAndGet());
+        if (groups.putIfAbsent(name, group) != null) {
+            return null;
+        }
+        lock.lock();
+        try {
+            AtomicReferenceArray<Group> table = byId;
+            if (group.id >= table.length()) {
+                AtomicReferenceArray<Group> larger = new AtomicReferenceArray<>(Math.max(table.length() * 2, group.id + 1));
+                for (int i = 0; i < table.length(); i++) {
+                    larger.set(i, table.get(i));
+                }
+                byId = table = larger;
+            }
+            table.set(group.id, group);
+        } finally {
+            lock.unlock();
+        }
+        return group;
+    }
+
+    // Put back the groups saved before a restart with their old ids, inserting them from every core.
+    // Only for an empty registry, before any client connects; new ids continue after lastId
+    void restore(String[] names, int[] ids, int count, int lastId) {
+        int maxId = lastId;
+        for (int i = 0; i < count; i++) {
+            maxId = Math.max(maxId, ids[i]);
+        }
+        AtomicReferenceArray<Group> table = new AtomicReferenceArray<>(Math.max(256, maxId + 1));
+        IntStream.range(0, count).parallel().forEach(i -> {
+            Group group = new Group(names[i], ids[i]);
+            groups.put(group.name, group);
+            table.set(group.id, group);
+        });
+        lock.lock();
+        try {
+            byId = table;
+            nextId.set(maxId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The most recently handed out group id
+    int lastId() {
+        return nextId.get();
+    }
+
+    Group get(String name) {
+        return groups.get(name);
+    }
+
+    Group get(int id) {
+        AtomicReferenceArray<Group> table = byId;
+        return id > 0 && id < table.length() ? table.get(id) : null;
+    }
+
+    // Remove a group and return it with its final members, or null if it does not exist
+    Group remove(String name) {
+        Group group = groups.remove(name);
+        if (group != null) {
+            lock.lock();
+            try {
+                byId.set(group.id, null);
+            } finally {
+                lock.unlock();
+            }
+            group.markRemoved();
+        }
+        return group;
+    }
+
+    // Every group, for announcing them to another cluster node; reflects concurrent changes loosely
+    Collection<Group> all() {
+        return groups.values();
+    }
+
+    int size() {
+        return groups.size();
+    }
+}
@@ -0,0 +1,683 @@
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// Durable chat history: one append-only log per group, split into memory-mapped segment files.
+// Appends copy the record into the active segment's mapping and never wait for the disk; a
+// background thread forces dirty segments every fsyncMillis, so many messages share one fsync.
+// History is read straight out of the mapped segments.
+//
+// Appends run on the sender's thread, which may be an event loop serving many connections, so the
+// slow file work happens on the background thread too: it prepares each group's next segment file
+// before the active one fills, forces a segment once it is full and deletes segments that retention
+// drops. A group's first segment is small and each next one twice the size, up to segmentBytes, so
+// quiet groups map little. Every mapping uses up one of the process's map areas (about 65,000 on
+// Linux by default), so logs idle for a minute, or the least recently used beyond maxOpenLogs, are
+// closed and unmapped; they are recovered from disk when next used.
+//
+//   <dir>/<hex group name>/<first sequence number>.log
+//
+// Each record is
+//
+//   int length | int crc | long seq | long time | int sender length | sender | int text length | text
+//
+// where length counts everything after itself, crc covers everything after itself, and strings are
+// UTF-8. A length of 0 marks the end of the written part of a segment. Sequence numbers start at 1
+// and increase by one per message in each group. The binary protocol's HISTORY frame carries
+// records in this same layout.
+public class MessageLog {
+    private static final int INDEX_INTERVAL = 64; // Records between entries of a segment's position index
+    private static final long FIRST_SEGMENT_BYTES = 64 * 1024; // Size of a group's first segment file
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(1); // Unused logs are closed after this long
+    private static final int CLOSED = -1; // GroupLog.users of a closed log
+
+    // Unmaps a mapping at once rather than whenever the garbage collector finds it; null if the JDK has no way
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Closed logs are unmapped by the garbage collector instead
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final Path dir;
+    private final long segmentBytes; // Largest size of a new segment file
+    private final long retentionBytes; // Oldest segments are deleted once a group's log is larger than this
+    private final long fsyncMillis; // Longest time an appended message may wait to be forced to disk; 0 forces every append
+    private final int maxOpenLogs; // Logs kept open, and so mapped, at once; the least recently used beyond this are closed
+    private final ConcurrentHashMap<String, GroupLog> logs = new ConcurrentHashMap<>(); // Open logs
+    private final ScheduledExecutorService background; // Forces, prepares, deletes and closes segments, one task at a time
+    private final AtomicBoolean evictionPending = new AtomicBoolean();
+
+    // Messages read from a group's log, still in record format
+    static class History {
+        final byte[] records; // Concatenated records
+        final int count;
+        final long lastSeq; // Sequence number of the last record, or the requested starting point if there are none
+
+        History(byte[] records, int count, long lastSeq) {
+            this.records = records;
+            this.count = count;
+            this.lastSeq = lastSeq;
+        }
+    }
+
+    // One decoded record, for clients of the text protocol
+    static class Entry {
+        final long seq;
+        final long time;
+        final String sender;
+        final String text;
+
+        Entry(long seq, long time, String sender, String text) {
+            this.seq = seq;
+            this.time = time;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    // One segment file, mapped in full. Records before end are complete and never change
+    private static class Segment {
+        final long baseSeq; // Sequence number of the first record
+        final Path path;
+        final MappedByteBuffer map;
+        volatile int end; // Written bytes; readers only look below this
+        volatile long count; // Records in the segment
+        int[] index = new int[16]; // Position of every INDEX_INTERVAL-th record; written under the log's lock
+
+        Segment(long baseSeq, Path path, MappedByteBuffer map) {
+            this.baseSeq = baseSeq;
+            this.path = path;
+            this.map = map;
+        }
+
+        // Position of the record with the given sequence number, which must be in this segment
+        int position(long seq) {
+            long offset = seq - baseSeq;
+            int position = index[(int) (offset / INDEX_INTERVAL)];
+            for (long i = offset % INDEX_INTERVAL; i > 0; i--) {
+                position += 4 + map.getInt(position);
+            }
+            return position;
+        }
+
+        // Record the position of a record that is about to become visible
+        void indexRecord(long offset, int position) {
+            if (offset % INDEX_INTERVAL == 0) {
+                int slot = (int) (offset / INDEX_INTERVAL);
+                if (slot == index.length) {
+                    index = Arrays.copyOf(index, index.length * 2);
+                }
+                index[slot] = position;
+            }
+        }
+    }
+
+    // The segments of one group, oldest first. Segments are only unmapped once the log is closed,
+    // which waits until no operation is using it
+    private static class GroupLog {
+        final String name; // Key in logs
+        final Path dir;
+        final ReentrantLock lock = new ReentrantLock(); // Serializes appends, rolling and retention
+        final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+        final AtomicInteger users = new AtomicInteger(); // Operations using the log, or CLOSED
+        volatile long lastUsed = System.nanoTime();
+        volatile Segment active;
+        volatile long lastSeq; // Sequence number of the newest record, 0 if there is none
+        long bytes; // Total size of the segment files; guarded by lock
+        boolean dirty; // Appends not yet forced to disk; guarded by lock
+        Segment spare; // Empty file for the next segment, made in the background; guarded by lock
+        boolean preparing; // A spare is being made; guarded by lock
+        boolean deleted; // The group's history was removed; guarded by lock
+
+        GroupLog(String name, Path dir) {
+            this.name = name;
+            this.dir = dir;
+        }
+
+        // Mark the log as in use; false if it has been closed
+        boolean enter() {
+            for (int current = users.get(); current != CLOSED; current = users.get()) {
+                if (users.compareAndSet(current, current + 1)) {
+                    lastUsed = System.nanoTime();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void leave() {
+            users.decrementAndGet();
+        }
+    }
+
+    MessageLog(Path dir, long segmentBytes, long retentionBytes, long fsyncMillis, int maxOpenLogs) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.fsyncMillis = fsyncMillis;
+        this.maxOpenLogs = maxOpenLogs;
+        background = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "message-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (fsyncMillis > 0) {
+            background.scheduleWithFixedDelay(this::forceAll, fsyncMillis, fsyncMillis, TimeUnit.MILLISECONDS);
+        }
+        background.scheduleWithFixedDelay(this::evict, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // Append a message to the group's log and return its sequence number
+    long append(String group, String sender, String text) throws IOException {
+        GroupLog log = enter(group);
+        try {
+            return append(log, sender, text);
+        } finally {
+            log.leave();
+        }
+    }
+
+    private long append(GroupLog log, String sender, String text) throws IOException {
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = 4 + 8 + 8 + 4 + senderBytes.length + 4 + textBytes.length;
+        log.lock.lock();
+        long locked = System.nanoTime();
+        try {
+            Segment segment = log.active;
+            if (segment == null || segment.end + 4 + length + 4 > segment.map.capacity()) {
+                segment = roll(log, 4 + length + 4); // Leave room for the end marker after the record
+            }
+            long seq = log.lastSeq + 1;
+            int position = segment.end;
+            ByteBuffer record = segment.map.duplicate();
+            record.position(position + 8);
+            record.putLong(seq).putLong(System.currentTimeMillis())
+                    .putInt(senderBytes.length).put(senderBytes)
+                    .putInt(textBytes.length).put(textBytes);
+            CRC32 crc = new CRC32();
+            ByteBuffer body = segment.map.duplicate();
+            body.position(position + 8).limit(position + 4 + length);
+            crc.update(body);
+            segment.map.putInt(position + 4, (int) crc.getValue());
+            segment.map.putInt(position, length); // Written last, so a reader never sees half a record
+            segment.indexRecord(seq - segment.baseSeq, position);
+            segment.end = position + 4 + length;
+            segment.count++;
+            log.lastSeq = seq;
+            if (fsyncMillis == 0) {
+                segment.map.force(position, 4 + length);
+            } else {
+                log.dirty = true;
+            }
+            if (segment.end > segment.map.capacity() / 2 && log.spare == null && !log.preparing) {
+                log.preparing = true;
+                long size = nextSize(segment);
+                background.execute(() -> prepareSpare(log, size));
+            }
+            return seq;
+        } finally {
+            ServerMetrics.messageLogLockHold.record(System.nanoTime() - locked);
+            log.lock.unlock();
+        }
+    }
+
+    // Up to maxRecords messages after the given sequence number, at most maxBytes of records unless the first is larger
+    History read(String group, long afterSeq, int maxRecords, int maxBytes) throws IOException {
+        GroupLog log = enter(group);
+        try {
+            return read(log, afterSeq, maxRecords, maxBytes);
+        } finally {
+            log.leave();
+        }
+    }
+
+    private History read(GroupLog log, long afterSeq, int maxRecords, int maxBytes) throws IOException {
+        long seq = Math.max(afterSeq + 1, 1);
+        Map.Entry<Long, Segment> first = log.segments.firstEntry();
+        if (first != null && seq < first.getKey()) {
+            seq = first.getKey(); // Older messages were removed by retention
+        }
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        int count = 0;
+        long lastSeq = afterSeq;
+        while (count < maxRecords && seq <= log.lastSeq) {
+            Map.Entry<Long, Segment> entry = log.segments.floorEntry(seq);
+            if (entry == null) {
+                break;
+            }
+            Segment segment = entry.getValue();
+            if (seq >= segment.baseSeq + segment.count) {
+                break; // Not visible yet
+            }
+            // Copy a run of whole records straight from the mapping
+            int start = segment.position(seq);
+            int position = start;
+            int end = segment.end;
+            while (count < maxRecords && position < end) {
+                int length = 4 + segment.map.getInt(position);
+                if (records.size() + position - start + length > maxBytes && count > 0) {
+                    break;
+                }
+                position += length;
+                count++;
+                lastSeq = seq++;
+            }
+            byte[] run = new byte[position - start];
+            segment.map.get(start, run);
+            records.write(run);
+            if (position < end) {
+                break; // Stopped by a limit
+            }
+        }
+        return new History(records.toByteArray(), count, lastSeq);
+    }
+
+    // The last count messages of a group
+    History tail(String group, int count, int maxBytes) throws IOException {
+        GroupLog log = enter(group);
+        try {
+            return read(log, Math.max(0, log.lastSeq - count), count, maxBytes);
+        } finally {
+            log.leave();
+        }
+    }
+
+    // Sequence number of the newest message in a group, 0 if it has none
+    long lastSeq(String group) throws IOException {
+        GroupLog log = enter(group);
+        try {
+            return log.lastSeq;
+        } finally {
+            log.leave();
+        }
+    }
+
+    // Remove a group's history for good, e.g. when the group is removed
+    void delete(String group) {
+        Path groupDir = dir.resolve(directoryName(group));
+        GroupLog log = logs.remove(directoryName(group));
+        if (log != null) {
+            log.lock.lock();
+            log.deleted = true;
+            background.execute(() -> closeRemoved(log));
+        }
+        try {
+            if (Files.exists(groupDir)) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(groupDir)) {
+                    for (Path file : files) {
+                        Files.delete(file);
+                    }
+                }
+                Files.delete(groupDir);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (log != null) {
+                log.lock.unlock();
+            }
+        }
+    }
+
+    // Decode a run of records, e.g. to send them to a client of the text protocol
+    static List<Entry> decode(byte[] records) {
+        List<Entry> entries = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        while (buffer.hasRemaining()) {
+            buffer.getInt(); // Length
+            buffer.getInt(); // CRC
+            long seq = buffer.getLong();
+            long time = buffer.getLong();
+            String sender = getString(buffer);
+            String text = getString(buffer);
+            entries.add(new Entry(seq, time, sender, text));
+        }
+        return entries;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    // Group names may contain anything, so each group's directory is named after its hex-encoded name
+    private static String directoryName(String group) {
+        byte[] bytes = group.getBytes(StandardCharsets.UTF_8);
+        StringBuilder name = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return name.toString();
+    }
+
+    // The group's log, marked as in use until leave is called on it
+    private GroupLog enter(String group) throws IOException {
+        while (true) {
+            GroupLog log = open(group);
+            if (log.enter()) {
+                return log;
+            }
+            Thread.yield(); // Being closed; it leaves logs at once, and the next open recovers it again
+        }
+    }
+
+    // The group's log, recovering it from disk the first time it is used or after it was closed
+    private GroupLog open(String group) throws IOException {
+        String name = directoryName(group);
+        GroupLog log = logs.get(name);
+        if (log != null) {
+            return log;
+        }
+        log = new GroupLog(name, dir.resolve(name));
+        log.lock.lock();
+        try {
+            GroupLog existing = logs.putIfAbsent(name, log);
+            if (existing != null) {
+                return existing;
+            }
+            recover(log);
+        } finally {
+            log.lock.unlock();
+        }
+        if (logs.size() > maxOpenLogs && evictionPending.compareAndSet(false, true)) {
+            background.execute(this::evict);
+        }
+        return log;
+    }
+
+    // Map the group's existing segments and find where the last one ends; caller holds the lock
+    private void recover(GroupLog log) throws IOException {
+        if (!Files.isDirectory(log.dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> spares = Files.newDirectoryStream(log.dir, "*.tmp")) {
+            for (Path spare : spares) {
+                Files.deleteIfExists(spare); // Prepared before a crash and never used
+            }
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(log.dir, "*.log")) {
+            stream.forEach(files::add);
+        }
+        files.sort(Comparator.comparingLong(MessageLog::baseSeq));
+        for (Path path : files) {
+            long baseSeq = baseSeq(path);
+            if (log.active != null && baseSeq != log.lastSeq + 1) {
+                break; // A gap means the rest cannot be trusted
+            }
+            Segment segment = map(path, baseSeq, Files.size(path));
+            scan(segment);
+            log.segments.put(baseSeq, segment);
+            log.active = segment;
+            log.lastSeq = baseSeq + segment.count - 1;
+            log.bytes += segment.map.capacity();
+        }
+    }
+
+    // Find the valid records of a recovered segment; a torn or corrupt record ends it
+    private static void scan(Segment segment) {
+        MappedByteBuffer map = segment.map;
+        int position = 0;
+        long count = 0;
+        while (position + 4 <= map.capacity()) {
+            int length = map.getInt(position);
+            if (length < 4 + 8 + 8 + 4 + 4 || position + 4 + length > map.capacity()
+                    || map.getLong(position + 8) != segment.baseSeq + count) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            ByteBuffer body = map.duplicate();
+            body.position(position + 8).limit(position + 4 + length);
+            crc.update(body);
+            if ((int) crc.getValue() != map.getInt(position + 4)) {
+                break;
+            }
+            segment.indexRecord(count, position);
+            position += 4 + length;
+            count++;
+        }
+        if (position + 4 <= map.capacity()) {
+            map.putInt(position, 0); // Hide whatever follows, so new appends are not mixed with it
+        }
+        segment.end = position;
+        segment.count = count;
+    }
+
+    // Start a new segment after the active one and apply retention; caller holds the lock. The new
+    // segment is the spare prepared in the background when there is one large enough
+    private Segment roll(GroupLog log, int recordBytes) throws IOException {
+        Segment previous = log.active;
+        long baseSeq = log.lastSeq + 1;
+        long size = Math.max(nextSize(previous), recordBytes);
+        Path path = log.dir.resolve(String.format("%020d.log", baseSeq));
+        Segment spare = log.spare;
+        log.spare = null;
+        Segment segment;
+        if (spare != null && spare.map.capacity() >= size) {
+            Files.move(spare.path, path); // The mapping stays with the file
+            segment = new Segment(baseSeq, path, spare.map);
+        } else {
+            if (spare != null) {
+                background.execute(() -> discard(spare));
+            }
+            Files.createDirectories(log.dir);
+            segment = map(path, baseSeq, size);
+        }
+        if (previous != null && fsyncMillis > 0) {
+            background.execute(() -> forceFull(log, previous)); // Nothing more is written to it
+        }
+        log.segments.put(baseSeq, segment);
+        log.active = segment;
+        log.bytes += segment.map.capacity();
+        while (log.bytes > retentionBytes && log.segments.size() > 1) {
+            Segment oldest = log.segments.pollFirstEntry().getValue();
+            log.bytes -= oldest.map.capacity();
+            background.execute(() -> deleteFile(oldest.path)); // Readers still holding its mapping can finish
+        }
+        return segment;
+    }
+
+    // Size of the segment after this one: twice as large, up to segmentBytes
+    private long nextSize(Segment segment) {
+        long size = segment == null ? FIRST_SEGMENT_BYTES : 2L * segment.map.capacity();
+        return Math.min(segmentBytes, size);
+    }
+
+    // Make an empty file for the log's next segment; runs on the background thread
+    private void prepareSpare(GroupLog log, long size) {
+        Segment spare = null;
+        log.lock.lock();
+        try {
+            if (log.deleted) {
+                log.preparing = false;
+                return;
+            }
+        } finally {
+            log.lock.unlock();
+        }
+        if (log.enter()) {
+            try {
+                spare = map(Files.createTempFile(log.dir, "next-", ".tmp"), -1, size);
+            } catch (IOException e) {
+                e.printStackTrace(); // The log makes its next segment itself
+            } finally {
+                log.leave();
+            }
+        }
+        log.lock.lock();
+        try {
+            log.preparing = false;
+            if (spare != null && log.spare == null && !log.deleted && log.users.get() != CLOSED) {
+                log.spare = spare;
+                spare = null;
+            }
+        } finally {
+            log.lock.unlock();
+        }
+        if (spare != null) {
+            discard(spare);
+        }
+    }
+
+    // Force a segment that has been filled; runs on the background thread
+    private void forceFull(GroupLog log, Segment segment) {
+        if (log.enter()) { // Else closed, which forced it
+            try {
+                segment.map.force();
+            } catch (UncheckedIOException e) {
+                e.printStackTrace();
+            } finally {
+                log.leave();
+            }
+        }
+    }
+
+    private static void discard(Segment spare) {
+        deleteFile(spare.path);
+        unmap(spare.map);
+    }
+
+    private static void deleteFile(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Close logs unused for IDLE_NANOS, then the least recently used ones while more than maxOpenLogs
+    // are open; runs on the background thread
+    private void evict() {
+        evictionPending.set(false);
+        long now = System.nanoTime();
+        for (GroupLog log : logs.values()) {
+            if (now - log.lastUsed > IDLE_NANOS) {
+                close(log);
+            }
+        }
+        int excess = logs.size() - maxOpenLogs;
+        if (excess > 0) {
+            // Sorted by a copy of lastUsed, which appends keep changing
+            TreeMap<Long, List<GroupLog>> byAge = new TreeMap<>();
+            for (GroupLog log : logs.values()) {
+                byAge.computeIfAbsent(now - log.lastUsed, age -> new ArrayList<>()).add(log);
+            }
+            for (List<GroupLog> oldest : byAge.descendingMap().values()) {
+                for (GroupLog log : oldest) {
+                    if (excess > 0 && close(log)) {
+                        excess--;
+                    }
+                }
+            }
+        }
+    }
+
+    // Close a log nobody is using: force and unmap its segments; false if it is in use. Runs on the
+    // background thread, so no other background task is using its mappings either
+    private boolean close(GroupLog log) {
+        if (!log.users.compareAndSet(0, CLOSED)) {
+            return false;
+        }
+        logs.remove(log.name, log);
+        log.lock.lock();
+        try {
+            for (Segment segment : log.segments.values()) {
+                if (fsyncMillis > 0 && !log.deleted) {
+                    segment.map.force();
+                }
+                unmap(segment.map);
+            }
+            if (log.spare != null) {
+                discard(log.spare);
+                log.spare = null;
+            }
+        } catch (UncheckedIOException e) {
+            e.printStackTrace();
+        } finally {
+            log.lock.unlock();
+        }
+        return true;
+    }
+
+    // Close a log whose history was deleted, once the operations still using it are done
+    private void closeRemoved(GroupLog log) {
+        if (!close(log)) {
+            background.schedule(() -> closeRemoved(log), 1, TimeUnit.SECONDS);
+        }
+    }
+
+    // Caller makes sure nothing reads or writes the mapping any more
+    private static void unmap(MappedByteBuffer map) {
+        if (INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, map);
+            } catch (ReflectiveOperationException e) {
+                // Left to the garbage collector
+            }
+        }
+    }
+
+    private static Segment map(Path path, long baseSeq, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Segment too large: " + size);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return new Segment(baseSeq, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    private static long baseSeq(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - ".log".length()));
+    }
+
+    // Force every log with unsynced appends; runs on the background thread
+    private void forceAll() {
+        for (GroupLog log : logs.values()) {
+            Segment segment;
+            log.lock.lock();
+            try {
+                if (!log.dirty) {
+                    continue;
+                }
+                log.dirty = false;
+                segment = log.active;
+            } finally {
+                log.lock.unlock();
+            }
+            try {
+                segment.map.force(); // Outside the lock, so appends continue while the disk catches up
+            } catch (UncheckedIOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// The client's message display. Any thread may post a line without touching Swing: lines wait in a
+// lock-free queue until a timer on the event dispatch thread moves them into the lists in one batch
+// per tick, so a busy group costs one repaint per tick rather than one per message, and the network
+// listener never waits for the window.
+//
+// Every line goes to the All tab, and lines of a group also to a tab of its own. Each tab keeps its
+// newest SCROLLBACK lines in a ring, and shows them in a JList with fixed row sizes, which only lays
+// out and paints the rows in view however many lines are kept. Rows show the start of long lines;
+// double-clicking a row shows all of it.
+public class MessageView {
+    static final int SCROLLBACK = 5000; // Lines kept per tab
+    private static final int TICK_MILLIS = 16; // Batching interval, about one screen refresh
+    private static final int MAX_BATCH = 2_000; // Lines moved per tick, so a flood cannot hold up the EDT
+    private static final int ROW_CHARS = 500; // Characters of a line rendered in its row
+    private static final String ALL = "All";
+
+    private final ConcurrentLinkedQueue<Line> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(); // A tick is due to drain inbound
+    private final Timer timer = new Timer(TICK_MILLIS, e -> drain());
+    private final JTabbedPane tabs = new JTabbedPane();
+    private final Tab all = new Tab();
+    private final Map<String, Tab> groupTabs = new HashMap<>(); // Only used on the EDT
+
+    private static class Line {
+        final String group; // Null for lines that belong to no group, e.g. errors
+        final String text;
+
+        Line(String group, String text) {
+            this.group = group;
+            this.text = text;
+        }
+    }
+
+    MessageView() {
+        timer.setRepeats(false);
+        tabs.addTab(ALL, all.scroll);
+    }
+
+    JComponent component() {
+        return tabs;
+    }
+
+    // Show a line that belongs to no group; safe from any thread
+    void post(String text) {
+        post(null, text);
+    }
+
+    // Show a line in the All tab and in the group's tab; safe from any thread
+    void post(String group, String text) {
+        inbound.offer(new Line(group, text));
+        if (scheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(timer::restart); // The timer is only touched on the EDT, or its ticks can be lost
+        }
+    }
+
+    // On the EDT: move what has been posted into the tabs, a batch per tab
+    private void drain() {
+        scheduled.set(false); // Lines posted from now on schedule another tick
+        List<String> toAll = new ArrayList<>();
+        Map<Tab, List<String>> toGroups = new HashMap<>();
+        Line line;
+        while (toAll.size() < MAX_BATCH && (line = inbound.poll()) != null) {
+            toAll.add(line.text);
+            if (line.group != null) {
+                toGroups.computeIfAbsent(groupTab(line.group), tab -> new ArrayList<>()).add(line.text);
+            }
+        }
+        all.addAll(toAll);
+        for (Map.Entry<Tab, List<String>> batch : toGroups.entrySet()) {
+            batch.getKey().addAll(batch.getValue());
+        }
+        if (!inbound.isEmpty() && scheduled.compareAndSet(false, true)) {
+            timer.restart(); // More than a batch was waiting
+        }
+    }
+
+    private Tab groupTab(String group) {
+        Tab tab = groupTabs.get(group);
+        if (tab == null) {
+            tab = new Tab();
+            groupTabs.put(group, tab);
+            tabs.addTab(group, tab.scroll);
+        }
+        return tab;
+    }
+
+    // One tab's lines and the list that shows them
+    private static class Tab {
+        final Scrollback lines = new Scrollback(SCROLLBACK);
+        final JList<String> list = new JList<>(lines);
+        final JScrollPane scroll = new JScrollPane(list);
+
+        Tab() {
+            // Fixed sizes spare the list from measuring every row; the row width follows the viewport
+            list.setFixedCellHeight(list.getFontMetrics(list.getFont()).getHeight() + 2);
+            list.setFixedCellWidth(100);
+            list.setVisibleRowCount(20);
+            list.setCellRenderer(new RowRenderer());
+            list.addMouseListener(new MouseAdapter() {
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    int index = list.locationToIndex(e.getPoint());
+                    if (e.getClickCount() == 2 && index >= 0) {
+                        JTextArea text = new JTextArea(lines.getElementAt(index), 10, 50);
+                        text.setLineWrap(true);
+                        text.setEditable(false);
+                        JOptionPane.showMessageDialog(list, new JScrollPane(text), "Message", JOptionPane.PLAIN_MESSAGE);
+                    }
+                }
+            });
+            scroll.setPreferredSize(new Dimension(700, 20 * list.getFixedCellHeight()));
+        }
+
+        // Append a batch, following it if the user was looking at the end of the list
+        void addAll(List<String> batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            JScrollBar bar = scroll.getVerticalScrollBar();
+            boolean atEnd = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - list.getFixedCellHeight();
+            lines.addAll(batch);
+            if (atEnd) {
+                list.ensureIndexIsVisible(lines.getSize() - 1);
+            }
+        }
+    }
+
+    // The newest lines of a tab in a ring buffer; evicted lines are reported as removed from the top
+    private static class Scrollback extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] ring;
+        private int start; // Index in ring of the oldest line
+        private int size;
+
+        Scrollback(int capacity) {
+            ring = new String[capacity];
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return ring[(start + index) % ring.length];
+        }
+
+        void addAll(List<String> batch) {
+            int from = Math.max(0, batch.size() - ring.length); // Only the newest lines of a huge batch fit
+            int count = batch.size() - from;
+            int evicted = Math.max(0, size + count - ring.length);
+            if (evicted > 0) {
+                start = (start + evicted) % ring.length;
+                size -= evicted;
+                fireIntervalRemoved(this, 0, evicted - 1);
+            }
+            for (int i = from; i < batch.size(); i++) {
+                ring[(start + size++) % ring.length] = batch.get(i);
+            }
+            fireIntervalAdded(this, size - count, size - 1);
+        }
+    }
+
+    // Renders the start of a line on one row, so a long message costs no more to paint than a short one
+    private static class RowRenderer extends DefaultListCellRenderer {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected,
+                                                      boolean cellHasFocus) {
+            String text = (String) value;
+            if (text.length() > ROW_CHARS) {
+                text = text.substring(0, ROW_CHARS) + "...";
+            }
+            return super.getListCellRendererComponent(list, text.replace('\n', ' '), index, isSelected, cellHasFocus);
+        }
+    }
+}
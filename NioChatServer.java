@@ -0,0 +1,542 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Non-blocking server mode: one acceptor thread hands connections to a small fixed pool of
+// selector loops, so idle members cost a channel and a small buffer instead of a whole thread
+public class NioChatServer {
+    private static final int INITIAL_READ_BUFFER = 256; // Idle connections keep only this much read buffer
+    private static final int WRITE_BUFFER = 128 * 1024; // Per-loop buffer that queued frames are gathered into
+    private static final int UPLOAD_BUFFER = 256 * 1024; // Per-loop buffer for reading file uploads
+
+    private final ServerConfig config;
+    private final EventLoop[] loops;
+    private int nextLoop; // Round-robin index used by the acceptor
+
+    NioChatServer(ServerConfig config) throws IOException {
+        this.config = config;
+        this.loops = new EventLoop[config.ioThreads];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i);
+        }
+    }
+
+    void run() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(config.port), 1024);
+            System.out.println("Server started on port " + config.port + " (nio, " + loops.length + " I/O threads)");
+            while (true) {
+                SocketChannel channel = serverChannel.accept(); // Accept incoming client connections
+                if (GroupChatServer.refuse(channel)) {
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length; // Wraps before it can overflow
+            }
+        }
+    }
+
+    // A selector and the thread that services it; other threads talk to it through its task queue
+    private static class EventLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER); // Shared by all connections on this loop
+        final ByteBuffer uploadBuffer = ByteBuffer.allocateDirect(UPLOAD_BUFFER); // Upload data on its way to a relay
+        final ByteBuffer zeros = ByteBuffer.allocateDirect(8192); // Padding for files whose upload failed
+        // Connections given frames by this loop's own thread; flushed once the current round of reads is
+        // done, so everything a burst of requests produces goes out in one write per connection
+        final List<Connection> pendingFlushes = new ArrayList<>();
+
+        EventLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+        }
+
+        // Hand a freshly accepted channel to this loop
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    GroupChatServer.register(connection);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+
+        // Run a task on the loop thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        public void run() {
+            BufferPool.cacheThreadBuffers(); // Read buffers and frames are acquired and released here all the time
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                    for (int i = 0; i < pendingFlushes.size(); i++) {
+                        pendingFlushes.get(i).flush(); // May queue more frames and add to the list
+                    }
+                    pendingFlushes.clear();
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace(); // Keep the loop alive; the failing connection is dropped by its own handler
+                }
+            }
+        }
+    }
+
+    // One client connection: frames are parsed out of the read buffer and replies are queued as encoded frames
+    private static class Connection extends GroupChatServer.Session {
+        // Stages of an incoming SendFile: group name, file name, size and then the raw contents
+        private static final int UPLOAD_NONE = 0, UPLOAD_GROUP = 1, UPLOAD_NAME = 2, UPLOAD_SIZE = 3, UPLOAD_DATA = 4;
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer inbound = BufferPool.acquire(INITIAL_READ_BUFFER); // Returned to the pool by cleanup
+        private final OutboundQueue outbound = new OutboundQueue(GroupChatServer.config.outboundQueue);
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(); // True while a flush task or OP_WRITE is pending
+        private ByteBuffer unwritten; // Bytes the socket did not accept on the last flush, in a pooled copy of the loop buffer
+        private Frame unwrittenFrame; // Frame backing unwritten when it was too large for the loop buffer
+        private boolean closed; // Only touched on the loop thread
+        private String pendingResume; // RESUME frame waiting for the old connection of its session to close
+
+        private int uploadStage = UPLOAD_NONE;
+        private String uploadGroup;
+        private String uploadName;
+        private long uploadRemaining;
+        private FileRelay uploadRelay; // Where the upload goes; null if it is being discarded
+        private IOException uploadError; // First error while storing the upload; the rest of the data is discarded
+
+        private Frame streaming; // File announcement whose contents are being streamed to this client
+        private long streamPosition; // Bytes of that file already written
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        // Called by the loop when the channel is readable
+        void read() {
+            if (uploadStage == UPLOAD_DATA && inbound.position() == 0) {
+                readFileData(); // Nothing else is buffered, so the next bytes belong to the upload
+                return;
+            }
+            int bytesRead;
+            try {
+                bytesRead = channel.read(inbound);
+            } catch (IOException e) {
+                System.out.println("Connection error with " + clientName); // Handle connection errors
+                cleanup();
+                return;
+            }
+            if (bytesRead == -1) {
+                System.out.println("Connection error with " + clientName);
+                cleanup();
+                return;
+            }
+
+            inbound.flip();
+            boolean open = process();
+            if (!open) {
+                cleanup(); // The client asked to quit
+                return;
+            }
+            inbound.compact();
+
+            int maxBuffer = Math.max(Frames.MAX_FRAME, 4 + GroupChatServer.config.maxFrame);
+            if (!inbound.hasRemaining() && inbound.capacity() < maxBuffer) {
+                // A frame larger than the buffer is still arriving
+                ByteBuffer larger = BufferPool.acquire((int) Math.min(maxBuffer, inbound.capacity() * 2L));
+                inbound.flip();
+                larger.put(inbound);
+                BufferPool.release(inbound);
+                inbound = larger;
+            } else if (inbound.position() == 0 && inbound.capacity() > INITIAL_READ_BUFFER) {
+                BufferPool.release(inbound); // Give memory back once the burst is over
+                inbound = BufferPool.acquire(INITIAL_READ_BUFFER);
+            }
+        }
+
+        // Consume every complete frame in the read buffer; returns false when the client asked to quit
+        private boolean process() {
+            while (pendingResume == null) {
+                if (uploadStage == UPLOAD_DATA) {
+                    if (!receiveFileData()) {
+                        return true;
+                    }
+                    continue;
+                }
+                if (uploadStage == UPLOAD_SIZE) {
+                    if (inbound.remaining() < 8) {
+                        return true;
+                    }
+                    startFileData(inbound.getLong());
+                    continue;
+                }
+
+                if (binary) {
+                    if (inbound.remaining() < 4) {
+                        return true;
+                    }
+                    int length = inbound.getInt(inbound.position());
+                    if (length < BinaryProtocol.HEADER || length > GroupChatServer.config.maxFrame) {
+                        System.out.println("Invalid binary frame from " + clientName);
+                        return false;
+                    }
+                    if (inbound.remaining() < 4 + length) {
+                        return true;
+                    }
+                    inbound.position(inbound.position() + 4);
+                    ByteBuffer frame = inbound.slice();
+                    frame.limit(length);
+                    inbound.position(inbound.position() + length);
+                    if (!handleBinary(frame)) {
+                        return false;
+                    }
+                    continue;
+                }
+
+                int frameLength = Frames.completeFrameLength(inbound);
+                if (frameLength < 0) {
+                    return true;
+                }
+                String message;
+                try {
+                    message = Frames.decode(inbound, frameLength);
+                } catch (IOException e) {
+                    error("Error: Malformed message.");
+                    continue;
+                }
+
+                if (clientName == null && message.startsWith(BinaryProtocol.RESUME)) {
+                    if (!resume(message)) {
+                        pendingResume = message; // Frames that follow wait until the session is taken over
+                        retryResumeLater();
+                    }
+                } else if (clientName == null) {
+                    handleHello(message); // The first frame is the client's nickname
+                } else if (uploadStage == UPLOAD_GROUP) {
+                    uploadGroup = message;
+                    uploadStage = UPLOAD_NAME;
+                } else if (uploadStage == UPLOAD_NAME) {
+                    uploadName = message;
+                    uploadStage = UPLOAD_SIZE;
+                } else if (!handleCommand(message)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Try the pending resume again shortly, on the loop thread
+        private void retryResumeLater() {
+            GroupChatServer.timer.schedule(() -> loop.execute(this::retryResume),
+                    GroupChatServer.RESUME_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        private void retryResume() {
+            if (closed) {
+                return;
+            }
+            if (!resume(pendingResume)) {
+                retryResumeLater();
+                return;
+            }
+            pendingResume = null;
+            inbound.flip(); // Handle anything the client sent in the meantime
+            boolean open = process();
+            inbound.compact();
+            if (!open) {
+                cleanup();
+            }
+        }
+
+        void handleSendFile() {
+            uploadStage = UPLOAD_GROUP;
+        }
+
+        void receiveFile(String groupName, String fileName, long fileSize) {
+            uploadGroup = groupName;
+            uploadName = fileName;
+            startFileData(fileSize);
+        }
+
+        // Announce the file to the group once the size of the upload is known
+        private void startFileData(long fileSize) {
+            uploadRemaining = fileSize;
+            uploadError = null;
+            uploadRelay = startFileRelay(uploadGroup, uploadName, fileSize); // Null: the contents are discarded
+            uploadStage = UPLOAD_DATA;
+            if (uploadRemaining <= 0) {
+                finishFileUpload();
+            }
+        }
+
+        // Relay whatever part of the upload is buffered; returns false when more data is needed
+        private boolean receiveFileData() {
+            int chunk = (int) Math.min(inbound.remaining(), uploadRemaining);
+            if (chunk == 0) {
+                return false;
+            }
+            ByteBuffer slice = inbound.slice();
+            slice.limit(chunk);
+            inbound.position(inbound.position() + chunk);
+            storeFileData(slice);
+            return true;
+        }
+
+        // Read upload data straight into the loop's direct buffer, never past the end of the file
+        private void readFileData() {
+            ByteBuffer buffer = loop.uploadBuffer;
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), uploadRemaining));
+            int bytesRead;
+            try {
+                bytesRead = channel.read(buffer);
+            } catch (IOException e) {
+                bytesRead = -1;
+            }
+            if (bytesRead == -1) {
+                System.out.println("Connection error with " + clientName);
+                cleanup();
+                return;
+            }
+            buffer.flip();
+            storeFileData(buffer);
+        }
+
+        private void storeFileData(ByteBuffer data) {
+            uploadRemaining -= data.remaining();
+            if (uploadRelay != null && uploadError == null) {
+                try {
+                    uploadRelay.receive(data);
+                } catch (IOException e) {
+                    uploadError = e; // The rest of the upload is read and discarded
+                }
+            }
+            if (uploadRemaining == 0) {
+                finishFileUpload();
+            }
+        }
+
+        private void finishFileUpload() {
+            uploadStage = UPLOAD_NONE;
+            if (uploadRelay != null) {
+                finishFileRelay(uploadGroup, uploadRelay, uploadError);
+                uploadRelay = null;
+            }
+        }
+
+        void send(Frame frame) {
+            if (!outbound.offer(frame.retain())) {
+                frame.release();
+                handleOverflow();
+                return;
+            }
+            // If the session was resumed, the queue passed the frame on to the new connection
+            Connection target = (Connection) current();
+            if (target.flushScheduled.compareAndSet(false, true)) {
+                if (target.loop.inLoop()) {
+                    target.loop.pendingFlushes.add(target);
+                } else {
+                    target.loop.execute(target::flush);
+                }
+            }
+        }
+
+        OutboundQueue outbound() {
+            return outbound;
+        }
+
+        void disconnect() {
+            loop.execute(this::cleanup);
+        }
+
+        // Write queued frames until the socket stops accepting data; runs on the loop thread.
+        // Frames are copied into the loop's direct buffer so several go out in one write call
+        void flush() {
+            if (closed) {
+                return; // A parked session keeps its frames queued for a resume
+            }
+            try {
+                flushing:
+                while (true) {
+                    if (unwritten != null) {
+                        channel.write(unwritten);
+                        writeCalls++;
+                        if (unwritten.hasRemaining()) {
+                            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE); // Resume when writable
+                            return;
+                        }
+                        dropUnwritten();
+                    }
+                    if (streaming != null && !streamFile()) {
+                        return; // Waiting for the socket or for more of the upload
+                    }
+                    ByteBuffer buffer = loop.writeBuffer;
+                    while (outbound.peek() != null) {
+                        buffer.clear();
+                        Frame frame;
+                        while ((frame = outbound.peek()) != null && frame.length() <= buffer.remaining()) {
+                            frame.copyTo(buffer);
+                            outbound.poll();
+                            record(frame);
+                            framesWritten++;
+                            if (frame.relay() != null) {
+                                streaming = frame; // The file contents follow before any other frame
+                                streamPosition = 0;
+                                break;
+                            }
+                            frame.release();
+                        }
+                        if (buffer.position() == 0) {
+                            // A frame larger than the loop buffer is written straight from its own bytes
+                            // (file announcements are small, so this is never one of them)
+                            unwrittenFrame = outbound.poll();
+                            record(unwrittenFrame);
+                            unwritten = unwrittenFrame.asBuffer();
+                            framesWritten++;
+                            continue flushing;
+                        }
+                        buffer.flip();
+                        channel.write(buffer);
+                        writeCalls++;
+                        if (buffer.hasRemaining()) {
+                            // Keep the rest for this connection; the loop buffer is needed by the others
+                            unwritten = BufferPool.acquire(buffer.remaining());
+                            unwritten.put(buffer).flip();
+                            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE); // Resume when writable
+                            return;
+                        }
+                        if (streaming != null) {
+                            continue flushing;
+                        }
+                    }
+                    if (key.isValid()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                    flushScheduled.set(false);
+                    // A sender may have queued a frame after the last peek but before the flag was cleared
+                    if (outbound.peek() == null || !flushScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+            } catch (IOException | CancelledKeyException e) {
+                cleanup();
+            }
+        }
+
+        // Send as much of the current file as the socket and the upload allow; returns false while waiting
+        private boolean streamFile() throws IOException {
+            FileRelay relay = streaming.relay();
+            while (streamPosition < relay.size) {
+                long available = relay.received();
+                long written;
+                if (available > streamPosition) {
+                    written = relay.transferTo(streamPosition, available - streamPosition, channel);
+                } else if (relay.failed()) {
+                    ByteBuffer zeros = loop.zeros;
+                    zeros.clear();
+                    zeros.limit((int) Math.min(zeros.capacity(), relay.size - streamPosition));
+                    written = channel.write(zeros);
+                } else {
+                    if (relay.onProgress(streamPosition, () -> loop.execute(this::flush))) {
+                        key.interestOps(SelectionKey.OP_READ); // Resumed by the relay, not by the socket
+                        return false;
+                    }
+                    continue; // More data arrived in the meantime
+                }
+                writeCalls++;
+                if (written == 0) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE); // Resume when writable
+                    return false;
+                }
+                streamPosition += written;
+            }
+            streaming.release();
+            streaming = null;
+            return true;
+        }
+
+        // Let go of what the last flush left unwritten: the frame it belongs to, or the pooled copy
+        private void dropUnwritten() {
+            if (unwrittenFrame != null) {
+                unwrittenFrame.release();
+                unwrittenFrame = null;
+            } else {
+                BufferPool.release(unwritten);
+            }
+            unwritten = null;
+        }
+
+        void closeConnection() throws IOException {
+            outbound.close();
+            outbound.releaseAll();
+            if (streaming != null) {
+                streaming.release();
+                streaming = null;
+            }
+            dropUnwritten();
+            key.cancel();
+            channel.close();
+        }
+
+        void suspendConnection() throws IOException {
+            // The frames being written are in the replay buffer and go out again after a resume
+            if (streaming != null) {
+                streaming.release();
+                streaming = null;
+            }
+            dropUnwritten();
+            key.cancel();
+            channel.close();
+        }
+
+        void cleanup() {
+            if (closed) {
+                return; // Already cleaned up
+            }
+            closed = true;
+            if (uploadRelay != null) {
+                finishFileRelay(uploadGroup, uploadRelay, new EOFException("Connection closed during upload"));
+                uploadRelay = null;
+            }
+            super.cleanup();
+            BufferPool.release(inbound); // Nothing reads from this connection again
+            inbound = null;
+        }
+    }
+}
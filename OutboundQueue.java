@@ -0,0 +1,287 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded queue of encoded frames waiting to be written to one client. Senders only enqueue, so a
+// broadcast never waits on a slow member; the member's writer drains the queue at its own pace.
+// Uses a ReentrantLock rather than a monitor so blocked virtual threads do not pin their carrier.
+// Bulk file data waits in a lane of its own that is only drained when nothing else is queued.
+public class OutboundQueue {
+    private final Lane urgent; // Chat, replies and notices, written first
+    private final Lane bulk; // File data that smaller frames may overtake, so chat is not stuck behind it
+    private Frame peeked; // Frame the last peek() returned; the next poll() removes that one
+    private boolean closed;
+    private boolean detached; // The writer has been stopped while the session waits to be resumed
+    private OutboundQueue forward; // Queue of the connection that resumed the session; takes every later item
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    // Lag metrics, updated under lock
+    private long delivered; // Items handed to the writer
+    private long dropped; // Items rejected because the queue was full
+    private long lastLagNanos; // Time the most recently delivered item spent queued
+    private long maxLagNanos; // Longest time any item spent queued
+
+    // Ring buffer of frames in the order they were queued; guarded by the queue's lock. Starts empty
+    // and grows by doubling up to its bound, so an idle connection holds no slots; once drained it
+    // goes back to INITIAL slots, keeping what a steady trickle of chat needs without regrowing
+    private static class Lane {
+        private static final int INITIAL = 16;
+        private static final Frame[] NO_ITEMS = new Frame[0];
+        private static final long[] NO_TIMES = new long[0];
+
+        private final int capacity; // Most items the lane may hold
+        private Frame[] items = NO_ITEMS;
+        private long[] enqueuedAt = NO_TIMES; // System.nanoTime() when each item was queued
+        private int head; // Index of the oldest item
+        private int size;
+
+        Lane(int capacity) {
+            this.capacity = capacity;
+        }
+
+        boolean add(Frame item) {
+            if (size == items.length) {
+                if (size >= capacity) {
+                    return false;
+                }
+                resize(Math.min(capacity, Math.max(INITIAL, items.length * 2)));
+            }
+            int tail = (head + size) % items.length;
+            items[tail] = item;
+            enqueuedAt[tail] = System.nanoTime();
+            size++;
+            return true;
+        }
+
+        Frame peek() {
+            return size == 0 ? null : items[head];
+        }
+
+        // Remove the oldest item and return how long it was queued
+        long remove() {
+            long lag = System.nanoTime() - enqueuedAt[head];
+            items[head] = null;
+            head = (head + 1) % items.length;
+            size--;
+            if (size == 0 && items.length > INITIAL) {
+                resize(INITIAL); // A burst is over; let its slots go
+            }
+            return lag;
+        }
+
+        // Move the items to arrays of the given length, oldest first
+        private void resize(int length) {
+            Frame[] movedItems = new Frame[length];
+            long[] movedTimes = new long[length];
+            for (int i = 0; i < size; i++) {
+                int from = (head + i) % items.length;
+                movedItems[i] = items[from];
+                movedTimes[i] = enqueuedAt[from];
+            }
+            items = movedItems;
+            enqueuedAt = movedTimes;
+            head = 0;
+        }
+    }
+
+    OutboundQueue(int capacity) {
+        urgent = new Lane(capacity);
+        bulk = new Lane(capacity);
+    }
+
+    // Queue an item; returns false if the queue is full. Items offered after close are released and discarded
+    boolean offer(Frame item) {
+        lock.lock();
+        try {
+            if (forward != null) {
+                return forward.offer(item);
+            }
+            if (closed) {
+                item.release();
+                return true;
+            }
+            if (!(item.bulk() ? bulk : urgent).add(item)) {
+                dropped++;
+                return false;
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Wait for the next item; returns null once the queue is closed and drained
+    Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (urgent.size == 0 && bulk.size == 0 && !closed && !detached) {
+                notEmpty.await();
+            }
+            return detached ? null : remove();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Remove the next item, waiting up to the timeout for one; returns null if none arrived or the queue was closed
+    Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (urgent.size == 0 && bulk.size == 0 && !closed && !detached && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return detached ? null : remove();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Next item without removing it, or null if the queue is empty. Only the writer may call this,
+    // and its next poll() removes the same item even if a more urgent one was queued in between
+    Frame peek() {
+        lock.lock();
+        try {
+            peeked = urgent.size > 0 ? urgent.peek() : bulk.peek();
+            return peeked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Remove the next item without waiting, or return null if the queue is empty
+    Frame poll() {
+        lock.lock();
+        try {
+            return remove();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Frame remove() {
+        Lane lane;
+        if (peeked != null) {
+            lane = peeked == urgent.peek() ? urgent : bulk;
+            peeked = null;
+        } else {
+            lane = urgent.size > 0 ? urgent : bulk;
+        }
+        Frame item = lane.peek();
+        if (item == null) {
+            return null;
+        }
+        long lag = lane.remove();
+        delivered++;
+        lastLagNanos = lag;
+        maxLagNanos = Math.max(maxLagNanos, lag);
+        return item;
+    }
+
+    // Stop accepting items; the writer still drains what is already queued
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Make the writer's take() return null without closing the queue, so items keep collecting for a
+    // session whose connection dropped until it is resumed or expires
+    void detach() {
+        lock.lock();
+        try {
+            detached = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Move everything queued to the queue of the connection that resumed the session, and pass it
+    // every item offered from now on, so nothing sent to the old connection is lost or reordered
+    void forwardTo(OutboundQueue target) {
+        lock.lock();
+        try {
+            for (Lane lane : new Lane[] {urgent, bulk}) {
+                while (lane.size > 0) {
+                    Frame item = lane.peek();
+                    lane.remove();
+                    if (!target.offer(item)) {
+                        item.release(); // The new connection's queue is full; counted as dropped there
+                    }
+                }
+            }
+            peeked = null;
+            forward = target;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drop everything still queued, releasing any frames
+    void releaseAll() {
+        lock.lock();
+        try {
+            for (Lane lane : new Lane[] {urgent, bulk}) {
+                while (lane.size > 0) {
+                    lane.peek().release();
+                    lane.remove();
+                }
+            }
+            peeked = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return urgent.size + bulk.size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long delivered() {
+        lock.lock();
+        try {
+            return delivered;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long lastLagNanos() {
+        lock.lock();
+        try {
+            return lastLagNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long maxLagNanos() {
+        lock.lock();
+        try {
+            return maxLagNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+// The last frames written to a resumable session, numbered in the order they went out. A client
+// that reconnects says how many frames it received, and everything from that number on is sent
+// again; frames can be lost in the socket buffers of a connection that dropped, so being written
+// is not the same as being received. Holds a reference to each frame it keeps; file contents are
+// counted but not kept (see Frame.forReplay), so a slot may be empty.
+public class ReplayBuffer {
+    private final Frame[] frames;
+    private final ReentrantLock lock = new ReentrantLock(); // The writer records while a resume may be reading
+    private long next; // Number of the next frame to be recorded; guarded by lock
+
+    ReplayBuffer(int capacity) {
+        frames = new Frame[Math.max(1, capacity)];
+    }
+
+    // Keep a frame the writer is about to write, dropping the oldest one if the buffer is full
+    void record(Frame frame) {
+        lock.lock();
+        try {
+            int slot = (int) (next % frames.length);
+            if (frames[slot] != null) {
+                frames[slot].release();
+            }
+            frames[slot] = frame.forReplay();
+            next++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Number of frames recorded so far
+    long next() {
+        lock.lock();
+        try {
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Number of the oldest frame still kept
+    long oldest() {
+        lock.lock();
+        try {
+            return Math.max(0, next - frames.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Hand over the frames numbered received and later that are still kept, oldest first, and start
+    // numbering again at received, since those frames are about to be written once more. The caller
+    // owns the returned references
+    List<Frame> rewind(long received) {
+        lock.lock();
+        try {
+            List<Frame> replay = new ArrayList<>();
+            for (long n = Math.max(received, next - frames.length); n < next; n++) {
+                int slot = (int) (n % frames.length);
+                if (frames[slot] != null) {
+                    replay.add(frames[slot]);
+                    frames[slot] = null;
+                }
+            }
+            releaseAll();
+            next = received;
+            return replay;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Release every frame kept, e.g. once the session has ended
+    void releaseAll() {
+        lock.lock();
+        try {
+            for (int i = 0; i < frames.length; i++) {
+                if (frames[i] != null) {
+                    frames[i].release();
+                    frames[i] = null;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
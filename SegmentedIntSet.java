@@ -0,0 +1,169 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+// Set of ints for sets that grow large, such as the members of a group: sorted chunks of at most
+// CHUNK values, each replaced rather than modified. A change copies one chunk and the array of
+// chunk references, so an add to a set of n values copies about CHUNK + n / CHUNK words instead of
+// n, and leaves that much garbage; filling a group of 100,000 members is no longer quadratic.
+// Readers search and iterate a snapshot without locking, as with CopyOnWriteIntSet, which still
+// holds the small sets such as the groups of one session.
+public class SegmentedIntSet {
+    static final int CHUNK = 512; // Largest chunk; one that would grow beyond it is split in two
+    private static final int[][] EMPTY = new int[0][];
+    private static final AtomicReferenceFieldUpdater<SegmentedIntSet, int[][]> CHUNKS =
+            AtomicReferenceFieldUpdater.newUpdater(SegmentedIntSet.class, int[][].class, "chunks");
+
+    private volatile int[][] chunks = EMPTY; // Non-empty sorted chunks, in ascending order of their values
+
+    boolean contains(int value) {
+        int[][] current = chunks;
+        int c = chunkFor(current, value);
+        return c >= 0 && Arrays.binarySearch(current[c], value) >= 0;
+    }
+
+    // Returns false if the value was already present
+    boolean add(int value) {
+        while (true) {
+            int[][] current = chunks;
+            int[][] next;
+            int c = chunkFor(current, value);
+            if (c < 0) {
+                next = new int[][] {{value}};
+            } else {
+                int[] chunk = current[c];
+                int index = Arrays.binarySearch(chunk, value);
+                if (index >= 0) {
+                    return false;
+                }
+                int insert = -index - 1;
+                int[] grown = new int[chunk.length + 1];
+                System.arraycopy(chunk, 0, grown, 0, insert);
+                grown[insert] = value;
+                System.arraycopy(chunk, insert, grown, insert + 1, chunk.length - insert);
+                if (grown.length <= CHUNK) {
+                    next = current.clone();
+                    next[c] = grown;
+                } else {
+                    next = new int[current.length + 1][];
+                    System.arraycopy(current, 0, next, 0, c);
+                    next[c] = Arrays.copyOfRange(grown, 0, grown.length / 2);
+                    next[c + 1] = Arrays.copyOfRange(grown, grown.length / 2, grown.length);
+                    System.arraycopy(current, c + 1, next, c + 2, current.length - c - 1);
+                }
+            }
+            if (CHUNKS.compareAndSet(this, current, next)) {
+                return true;
+            }
+        }
+    }
+
+    // Returns false if the value was not present. A chunk that shrinks to a quarter is merged with a
+    // neighbour, so removals cannot leave a long list of nearly empty chunks behind
+    boolean remove(int value) {
+        while (true) {
+            int[][] current = chunks;
+            int c = chunkFor(current, value);
+            int index = c < 0 ? -1 : Arrays.binarySearch(current[c], value);
+            if (index < 0) {
+                return false;
+            }
+            int[] chunk = current[c];
+            int[] shrunk = new int[chunk.length - 1];
+            System.arraycopy(chunk, 0, shrunk, 0, index);
+            System.arraycopy(chunk, index + 1, shrunk, index, chunk.length - index - 1);
+            int[][] next;
+            int neighbour = c + 1 < current.length ? c + 1 : c - 1;
+            if (shrunk.length == 0) {
+                next = without(current, c);
+            } else if (shrunk.length <= CHUNK / 4 && neighbour >= 0
+                    && shrunk.length + current[neighbour].length <= CHUNK / 2) {
+                int first = Math.min(c, neighbour);
+                int[] low = first == c ? shrunk : current[neighbour];
+                int[] high = first == c ? current[neighbour] : shrunk;
+                int[] merged = Arrays.copyOf(low, low.length + high.length);
+                System.arraycopy(high, 0, merged, low.length, high.length);
+                next = without(current, first + 1);
+                next[first] = merged;
+            } else {
+                next = current.clone();
+                next[c] = shrunk;
+            }
+            if (CHUNKS.compareAndSet(this, current, next)) {
+                return true;
+            }
+        }
+    }
+
+    // Add many values with a single rebuild, e.g. when restoring saved memberships; values must be
+    // ascending and distinct
+    void addAll(int[] sorted) {
+        while (true) {
+            int[][] current = chunks;
+            int[] values = new int[size(current) + sorted.length];
+            int n = 0;
+            int j = 0;
+            for (int[] chunk : current) {
+                for (int value : chunk) {
+                    while (j < sorted.length && sorted[j] < value) {
+                        values[n++] = sorted[j++];
+                    }
+                    if (j < sorted.length && sorted[j] == value) {
+                        j++; // Already present
+                    }
+                    values[n++] = value;
+                }
+            }
+            while (j < sorted.length) {
+                values[n++] = sorted[j++];
+            }
+            int fill = CHUNK * 3 / 4; // Room for some adds before the chunks split
+            int[][] next = new int[(n + fill - 1) / fill][];
+            for (int c = 0; c < next.length; c++) {
+                next[c] = Arrays.copyOfRange(values, c * fill, Math.min(n, (c + 1) * fill));
+            }
+            if (CHUNKS.compareAndSet(this, current, next)) {
+                return;
+            }
+        }
+    }
+
+    // The elements in ascending order at the time of the call, chunk by chunk; must not be modified
+    int[][] snapshot() {
+        return chunks;
+    }
+
+    int size() {
+        return size(chunks);
+    }
+
+    static int size(int[][] chunks) {
+        int size = 0;
+        for (int[] chunk : chunks) {
+            size += chunk.length;
+        }
+        return size;
+    }
+
+    // Index of the chunk a value belongs in: the last one starting at or below it, else the first;
+    // -1 if there are none
+    private static int chunkFor(int[][] chunks, int value) {
+        int low = 0;
+        int high = chunks.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (chunks[middle][0] <= value) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    private static int[][] without(int[][] chunks, int index) {
+        int[][] next = new int[chunks.length - 1][];
+        System.arraycopy(chunks, 0, next, 0, index);
+        System.arraycopy(chunks, index + 1, next, index, chunks.length - index - 1);
+        return next;
+    }
+}
@@ -0,0 +1,212 @@
+import java.util.Arrays;
+
+// Startup options for GroupChatServer, parsed from --name=value command line arguments
+public class ServerConfig {
+    int port = 7777; // Port the server listens on
+    String mode = "threaded"; // Connection handling mode: threaded, virtual or nio
+    int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors()); // Number of NIO event loops
+    int outboundQueue = 4096; // Frames that may wait for a slow client before the overflow policy applies
+    String overflowPolicy = "drop"; // What to do when a client's outbound queue is full: drop or disconnect
+    int maxFrame = 1024 * 1024; // Largest binary protocol frame accepted from a client, in bytes
+    int flushBytes = 64 * 1024; // Queued bytes a writer gathers into one write call
+    long flushDelayMicros = 0; // How long a writer waits for more frames before writing a batch smaller than flushBytes
+    int fanOutShard = 1000; // Members per shard of a large group's deliveries, which run in parallel; 0 delivers on the sender's thread
+    int fanOutThreads = Math.max(1, Runtime.getRuntime().availableProcessors()); // Threads delivering the shards
+    String blobDir = "blobs"; // Directory of the content-addressed file store
+    String logDir = "logs"; // Directory of the per-group message logs
+    long logSegmentBytes = 64L * 1024 * 1024; // Largest message log segment file; a group's first is 64 KB and each next one twice as large
+    long logRetentionBytes = 1024L * 1024 * 1024; // Oldest segments of a group's log are deleted beyond this size
+    long logFsyncMillis = 100; // Longest a logged message waits to be forced to disk; 0 forces every message
+    int logOpenGroups = 4096; // Group logs kept mapped at once; the least recently used beyond this are closed until needed
+    String stateDir = "state"; // Directory of the group and session snapshots and journals; empty keeps no state
+    long snapshotIntervalSeconds = 60; // Time between snapshots, each of which lets older journals be deleted
+    long sessionGraceMillis = 30_000; // How long a dropped client's session is kept for it to resume; 0 disables resuming
+    int replayFrames = 1024; // Frames written to each resumable session that are kept to send again after a resume
+    String clusterNodes; // Comma-separated bus addresses (host:port) of every node in the cluster, or null to run alone
+    String node; // This node's bus address; must be one of clusterNodes
+    int adminPort; // Loopback port serving metrics over HTTP; 0 disables it
+    boolean bufferPool = true; // Encode frames and read requests into pooled direct buffers; false uses the heap as before
+    long bufferPoolBytes = 64L * 1024 * 1024; // Idle pooled buffer memory kept for reuse; beyond it released buffers are left to the GC
+    boolean debugBuffers; // Track every pooled buffer and report frames that are never released
+    boolean compression = true; // Agree to DEFLATE when a binary client asks for it at handshake
+    int compressMinBytes = 512; // Smaller frames are never compressed
+    int compressLevel = 1; // DEFLATE level, 1 (fastest) to 9 (smallest)
+    // Admission control; 0 means no limit
+    int maxConnections; // Connections and sessions waiting to resume; more are refused at accept
+    int maxGroups; // Groups known to this server; AddGroup fails beyond it
+    long maxFileBytes; // Largest file a client may send or offer
+    int maxUploads; // Files being uploaded at once, across all clients
+    long clientMessageRate; // Messages per second each client may send
+    long clientByteRate; // Bytes of message text per second each client may send
+    long clientRequestRate; // Other requests per second each client may make (AddGroup, JoinGroup, History, files...)
+    long groupMessageRate; // Messages per second a group accepts from the senders on this server
+    long groupByteRate; // Bytes of message text per second a group accepts from the senders on this server
+    long shedQueuedFrames; // Shed load while this many frames wait in outbound queues
+    int shedHeapPercent; // Shed load while this much of the maximum heap is in use
+
+    static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Invalid option: " + arg + " (expected --name=value)");
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            config.set(name, value);
+        }
+        if (config.clusterNodes != null) {
+            if (config.node == null || !Arrays.asList(config.clusterNodes.split("\\s*,\\s*")).contains(config.node)) {
+                throw new IllegalArgumentException("--node must be one of the --cluster addresses");
+            }
+        } else if (config.node != null) {
+            throw new IllegalArgumentException("--node needs --cluster");
+        }
+        return config;
+    }
+
+    // Apply a single option; unknown names are rejected so typos don't go unnoticed
+    void set(String name, String value) {
+        switch (name) {
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "mode":
+                if (!value.equals("threaded") && !value.equals("virtual") && !value.equals("nio")) {
+                    throw new IllegalArgumentException("Unknown mode: " + value + " (expected threaded, virtual or nio)");
+                }
+                mode = value;
+                break;
+            case "io-threads":
+                ioThreads = Math.max(1, Integer.parseInt(value));
+                break;
+            case "outbound-queue":
+                outboundQueue = Math.max(1, Integer.parseInt(value));
+                break;
+            case "overflow-policy":
+                if (!value.equals("drop") && !value.equals("disconnect")) {
+                    throw new IllegalArgumentException("Unknown overflow policy: " + value + " (expected drop or disconnect)");
+                }
+                overflowPolicy = value;
+                break;
+            case "max-frame":
+                maxFrame = Math.max(BinaryProtocol.HEADER, Integer.parseInt(value));
+                break;
+            case "flush-bytes":
+                flushBytes = Math.max(1, Integer.parseInt(value));
+                break;
+            case "flush-delay-us":
+                flushDelayMicros = Math.max(0, Long.parseLong(value));
+                break;
+            case "fan-out-shard":
+                fanOutShard = Math.max(0, Integer.parseInt(value));
+                break;
+            case "fan-out-threads":
+                fanOutThreads = Math.max(1, Integer.parseInt(value));
+                break;
+            case "blob-dir":
+                blobDir = value;
+                break;
+            case "log-dir":
+                logDir = value;
+                break;
+            case "log-segment-bytes":
+                logSegmentBytes = Math.max(64 * 1024, Long.parseLong(value));
+                break;
+            case "log-retention-bytes":
+                logRetentionBytes = Long.parseLong(value);
+                break;
+            case "log-fsync-ms":
+                logFsyncMillis = Math.max(0, Long.parseLong(value));
+                break;
+            case "log-open-groups":
+                logOpenGroups = Math.max(1, Integer.parseInt(value));
+                break;
+            case "state-dir":
+                stateDir = value;
+                break;
+            case "snapshot-interval-s":
+                snapshotIntervalSeconds = Math.max(1, Long.parseLong(value));
+                break;
+            case "session-grace-ms":
+                sessionGraceMillis = Math.max(0, Long.parseLong(value));
+                break;
+            case "replay-frames":
+                replayFrames = Math.max(1, Integer.parseInt(value));
+                break;
+            case "cluster":
+                for (String address : value.split(",")) {
+                    if (address.trim().lastIndexOf(':') <= 0) {
+                        throw new IllegalArgumentException("Invalid cluster address: " + address + " (expected host:port)");
+                    }
+                }
+                clusterNodes = value;
+                break;
+            case "node":
+                node = value;
+                break;
+            case "admin-port":
+                adminPort = Integer.parseInt(value);
+                break;
+            case "buffer-pool":
+                bufferPool = parseBoolean(name, value);
+                break;
+            case "buffer-pool-bytes":
+                bufferPoolBytes = Math.max(0, Long.parseLong(value));
+                break;
+            case "debug-buffers":
+                debugBuffers = parseBoolean(name, value);
+                break;
+            case "compression":
+                compression = parseBoolean(name, value);
+                break;
+            case "compress-min-bytes":
+                compressMinBytes = Math.max(0, Integer.parseInt(value));
+                break;
+            case "compress-level":
+                compressLevel = Math.max(1, Math.min(9, Integer.parseInt(value)));
+                break;
+            case "max-connections":
+                maxConnections = Math.max(0, Integer.parseInt(value));
+                break;
+            case "max-groups":
+                maxGroups = Math.max(0, Integer.parseInt(value));
+                break;
+            case "max-file-bytes":
+                maxFileBytes = Math.max(0, Long.parseLong(value));
+                break;
+            case "max-uploads":
+                maxUploads = Math.max(0, Integer.parseInt(value));
+                break;
+            case "client-msg-rate":
+                clientMessageRate = Math.max(0, Long.parseLong(value));
+                break;
+            case "client-byte-rate":
+                clientByteRate = Math.max(0, Long.parseLong(value));
+                break;
+            case "client-request-rate":
+                clientRequestRate = Math.max(0, Long.parseLong(value));
+                break;
+            case "group-msg-rate":
+                groupMessageRate = Math.max(0, Long.parseLong(value));
+                break;
+            case "group-byte-rate":
+                groupByteRate = Math.max(0, Long.parseLong(value));
+                break;
+            case "shed-queued-frames":
+                shedQueuedFrames = Math.max(0, Long.parseLong(value));
+                break;
+            case "shed-heap-percent":
+                shedHeapPercent = Math.max(0, Math.min(100, Integer.parseInt(value)));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + name);
+        }
+    }
+
+    private static boolean parseBoolean(String name, String value) {
+        if (!value.equals("true") && !value.equals("false")) {
+            throw new IllegalArgumentException("Invalid value for --" + name + ": " + value + " (expected true or false)");
+        }
+        return Boolean.parseBoolean(value);
+    }
+}
@@ -0,0 +1,303 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server-wide counters and latency histograms, cheap enough to leave on: the hot paths only bump
+// LongAdders and LatencyHistograms, and gauges such as queue depths are computed when someone reads
+// them. Readable as text over HTTP on the loopback interface (--admin-port) and through JMX as
+// GroupChat:type=Server.
+public class ServerMetrics {
+    static final LongAdder connectionsOpened = new LongAdder();
+    static final LongAdder messagesIn = new LongAdder(); // Commands and binary requests from clients
+    static final LongAdder framesOut = new LongAdder(); // Frames written to clients
+    static final LongAdder bytesOut = new LongAdder(); // Bytes of those frames, not counting file contents
+    static final LongAdder framesDropped = new LongAdder(); // Frames a full outbound queue turned away
+    static final LongAdder fileBytesIn = new LongAdder(); // File contents received into relays
+    static final LongAdder fileBytesOut = new LongAdder(); // File contents sent from relays to members
+
+    // Time to queue one message or notice for every member, by the group's size in decades
+    private static final String[] FAN_OUT_SIZES = {"1-9", "10-99", "100-999", "1000-9999", "10000+"};
+    private static final LatencyHistogram[] fanOut = new LatencyHistogram[FAN_OUT_SIZES.length];
+    static final LatencyHistogram membershipLockHold = new LatencyHistogram(); // Join and leave, per group
+    static final LatencyHistogram messageLogLockHold = new LatencyHistogram(); // Appends, per group, including fsync
+
+    static {
+        for (int i = 0; i < fanOut.length; i++) {
+            fanOut[i] = new LatencyHistogram();
+        }
+    }
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    static void recordFanOut(int members, long nanos) {
+        int decade = 0;
+        for (int limit = 10; members >= limit && decade < fanOut.length - 1; limit *= 10) {
+            decade++;
+        }
+        fanOut[decade].record(nanos);
+    }
+
+    // Gauges, computed from the live sessions when read
+    static class Sessions {
+        int connected; // Sessions with a connection
+        int parked; // Sessions waiting to be resumed
+        long queuedFrames; // Frames waiting in outbound queues
+        int maxQueueDepth;
+        long maxQueueLagNanos; // Longest any frame has waited in a queue, over the current sessions
+
+        static Sessions read() {
+            Sessions stats = new Sessions();
+            GroupChatServer.forEachSession(session -> {
+                if (session.parked()) {
+                    stats.parked++;
+                } else {
+                    stats.connected++;
+                }
+                OutboundQueue queue = session.outbound();
+                if (queue != null) {
+                    int depth = queue.depth();
+                    stats.queuedFrames += depth;
+                    stats.maxQueueDepth = Math.max(stats.maxQueueDepth, depth);
+                    stats.maxQueueLagNanos = Math.max(stats.maxQueueLagNanos, queue.maxLagNanos());
+                }
+            });
+            return stats;
+        }
+    }
+
+    // Every metric in the Prometheus text format, durations in seconds
+    static String report() {
+        Sessions stats = Sessions.read();
+        StringBuilder out = new StringBuilder();
+        gauge(out, "groupchat_connections", stats.connected);
+        gauge(out, "groupchat_sessions_parked", stats.parked);
+        gauge(out, "groupchat_groups", GroupChatServer.groups.size());
+        gauge(out, "groupchat_outbound_queued_frames", stats.queuedFrames);
+        gauge(out, "groupchat_outbound_queue_depth_max", stats.maxQueueDepth);
+        gauge(out, "groupchat_outbound_queue_lag_max_seconds", stats.maxQueueLagNanos / 1e9);
+        counter(out, "groupchat_connections_opened_total", connectionsOpened);
+        counter(out, "groupchat_messages_in_total", messagesIn);
+        counter(out, "groupchat_frames_out_total", framesOut);
+        counter(out, "groupchat_bytes_out_total", bytesOut);
+        counter(out, "groupchat_frames_dropped_total", framesDropped);
+        counter(out, "groupchat_file_bytes_in_total", fileBytesIn);
+        counter(out, "groupchat_file_bytes_out_total", fileBytesOut);
+        gauge(out, "groupchat_uploads", AdmissionControl.uploads());
+        gauge(out, "groupchat_shedding_load", AdmissionControl.shedding() ? 1 : 0);
+        counter(out, "groupchat_connections_refused_total", AdmissionControl.connectionsRefused);
+        counter(out, "groupchat_requests_limited_total", AdmissionControl.requestsLimited);
+        counter(out, "groupchat_requests_shed_total", AdmissionControl.requestsShed);
+        out.append("# TYPE groupchat_fan_out_seconds summary\n");
+        for (int i = 0; i < fanOut.length; i++) {
+            summary(out, "groupchat_fan_out_seconds", "members=\"" + FAN_OUT_SIZES[i] + "\"", fanOut[i]);
+        }
+        out.append("# TYPE groupchat_lock_hold_seconds summary\n");
+        summary(out, "groupchat_lock_hold_seconds", "lock=\"group_membership\"", membershipLockHold);
+        summary(out, "groupchat_lock_hold_seconds", "lock=\"message_log\"", messageLogLockHold);
+        gauge(out, "groupchat_buffer_pool_idle_bytes", BufferPool.idleBytes.get());
+        counter(out, "groupchat_buffer_pool_acquired_total", BufferPool.acquisitions);
+        counter(out, "groupchat_buffer_pool_allocated_total", BufferPool.allocations);
+        gauge(out, "groupchat_buffers_outstanding", BufferPool.outstanding());
+        counter(out, "groupchat_buffer_leaks_total", BufferPool.leaks);
+        // What the pool is for: fewer and shorter collections for the same traffic
+        out.append("# TYPE jvm_gc_collection_seconds summary\n");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String labels = "{gc=\"" + gc.getName() + "\"} ";
+            out.append("jvm_gc_collection_seconds_count").append(labels).append(gc.getCollectionCount()).append('\n');
+            out.append("jvm_gc_collection_seconds_sum").append(labels).append(format(gc.getCollectionTime() / 1e3)).append('\n');
+        }
+        out.append("# TYPE jvm_buffer_pool_used_bytes gauge\n");
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            out.append("jvm_buffer_pool_used_bytes{pool=\"").append(pool.getName()).append("\"} ").append(pool.getMemoryUsed()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void gauge(StringBuilder out, String name, double value) {
+        out.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, LongAdder value) {
+        out.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value.sum()).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        if (histogram.count() > 0) {
+            for (double quantile : QUANTILES) {
+                out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                        .append(format(histogram.percentile(quantile * 100) / 1e9)).append('\n');
+            }
+        }
+        out.append(name).append("_sum{").append(labels).append("} ").append(format(histogram.sum() / 1e9)).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(histogram.count()).append('\n');
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    // Serve report() at /metrics on the loopback interface only; the numbers are for operators, not clients
+    static void startAdminServer(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = report().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "admin-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        System.out.println("Metrics at http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port + "/metrics");
+    }
+
+    // The attributes JConsole and other JMX clients see
+    public interface View {
+        int getConnections();
+
+        int getParkedSessions();
+
+        int getGroups();
+
+        long getOutboundQueuedFrames();
+
+        int getOutboundQueueDepthMax();
+
+        long getConnectionsOpened();
+
+        long getMessagesIn();
+
+        long getFramesOut();
+
+        long getBytesOut();
+
+        long getFramesDropped();
+
+        long getFileBytesIn();
+
+        long getFileBytesOut();
+
+        boolean isSheddingLoad();
+
+        long getConnectionsRefused();
+
+        long getRequestsLimited();
+
+        long getRequestsShed();
+
+        long getBufferPoolIdleBytes();
+
+        long getBufferPoolAllocated();
+
+        long getBufferLeaks();
+
+        // Everything, in the same text as the HTTP endpoint
+        String report();
+    }
+
+    static class Bean implements View {
+        public int getConnections() {
+            return Sessions.read().connected;
+        }
+
+        public int getParkedSessions() {
+            return Sessions.read().parked;
+        }
+
+        public int getGroups() {
+            return GroupChatServer.groups.size();
+        }
+
+        public long getOutboundQueuedFrames() {
+            return Sessions.read().queuedFrames;
+        }
+
+        public int getOutboundQueueDepthMax() {
+            return Sessions.read().maxQueueDepth;
+        }
+
+        public long getConnectionsOpened() {
+            return connectionsOpened.sum();
+        }
+
+        public long getMessagesIn() {
+            return messagesIn.sum();
+        }
+
+        public long getFramesOut() {
+            return framesOut.sum();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        public long getFramesDropped() {
+            return framesDropped.sum();
+        }
+
+        public long getFileBytesIn() {
+            return fileBytesIn.sum();
+        }
+
+        public long getFileBytesOut() {
+            return fileBytesOut.sum();
+        }
+
+        public boolean isSheddingLoad() {
+            return AdmissionControl.shedding();
+        }
+
+        public long getConnectionsRefused() {
+            return AdmissionControl.connectionsRefused.sum();
+        }
+
+        public long getRequestsLimited() {
+            return AdmissionControl.requestsLimited.sum();
+        }
+
+        public long getRequestsShed() {
+            return AdmissionControl.requestsShed.sum();
+        }
+
+        public long getBufferPoolIdleBytes() {
+            return BufferPool.idleBytes.get();
+        }
+
+        public long getBufferPoolAllocated() {
+            return BufferPool.allocations.sum();
+        }
+
+        public long getBufferLeaks() {
+            return BufferPool.leaks.sum();
+        }
+
+        public String report() {
+            return ServerMetrics.report();
+        }
+    }
+
+    static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(new Bean(), View.class),
+                    new ObjectName("GroupChat:type=Server"));
+        } catch (JMException e) {
+            System.out.println("Metrics not available over JMX: " + e.getMessage());
+        }
+    }
+}
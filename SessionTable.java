@@ -0,0 +1,141 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Every connected session under a small integer id, so groups can store their members as plain
+// ints. An id is a slot index plus a generation count in the high bits: a slot freed by a
+// disconnect is reused, but an id held by a group snapshot from before the reuse no longer
+// resolves, so a broadcast can never reach the session that took the slot over.
+//
+// The generation has only 8 bits, so it comes round again after 256 reuses of a slot. That is safe
+// because stale ids are short-lived: a session leaves every group before it is unregistered, so an
+// old id survives only in member snapshots taken just before, which are dropped once their message
+// or notice has been queued. Freed slots also wait in a FIFO queue behind QUARANTINE others, so for
+// a stale id to alias a new session, 256 * QUARANTINE (about a million) sessions would have to end
+// while one snapshot is being delivered.
+public class SessionTable {
+    private static final int SLOT_BITS = 23; // Up to 8 million concurrent sessions
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    private static final int GENERATIONS = 1 << (31 - SLOT_BITS); // Ids stay positive
+    private static final int QUARANTINE = 4096; // Freed slots not reused until this many more have been freed
+
+    private volatile AtomicReferenceArray<GroupChatServer.Session> slots = new AtomicReferenceArray<>(1024);
+    private final ReentrantLock lock = new ReentrantLock(); // Guards registration, growth and the fields below
+    private int[] generations = new int[1024]; // Generation of the id last handed out for each slot
+    private int[] free = new int[64]; // Ring of released slots, oldest first
+    private int freeHead; // Index of the oldest released slot
+    private int freeCount;
+    private int used; // Slots handed out at least once
+    private int size;
+
+    // Give the session an id; it stays valid until unregister
+    void register(GroupChatServer.Session session) {
+        lock.lock();
+        try {
+            int slot;
+            if (freeCount > QUARANTINE || (used > SLOT_MASK && freeCount > 0)) {
+                slot = free[freeHead];
+                freeHead = (freeHead + 1) % free.length;
+                freeCount--;
+            } else {
+                if (used > SLOT_MASK) {
+                    throw new IllegalStateException("Too many sessions");
+                }
+                slot = used++;
+                if (slot == slots.length()) {
+                    grow();
+                }
+            }
+            int generation = (generations[slot] + 1) % GENERATIONS;
+            generations[slot] = generation;
+            session.id = generation << SLOT_BITS | slot;
+            slots.set(slot, session);
+            size++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void unregister(GroupChatServer.Session session) {
+        lock.lock();
+        try {
+            int slot = session.id & SLOT_MASK;
+            if (session.id < 0 || slots.get(slot) != session) {
+                return; // Never registered, or already gone
+            }
+            release(slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Give a resuming connection the id of the session it takes over, freeing the connection's own
+    // id; groups list members by id, so they reach the new connection without being touched
+    void transfer(GroupChatServer.Session from, GroupChatServer.Session to) {
+        lock.lock();
+        try {
+            int slot = to.id & SLOT_MASK;
+            if (to.id >= 0 && slots.get(slot) == to) {
+                release(slot);
+            }
+            to.id = from.id;
+            slots.set(from.id & SLOT_MASK, to);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The session with this id, or null if it has disconnected since the id was read
+    GroupChatServer.Session get(int id) {
+        GroupChatServer.Session session = slots.get(id & SLOT_MASK);
+        return session != null && session.id == id ? session : null;
+    }
+
+    // Visit every registered session; sessions registered or unregistered meanwhile may be missed or seen
+    void forEach(Consumer<GroupChatServer.Session> action) {
+        AtomicReferenceArray<GroupChatServer.Session> table = slots;
+        for (int i = 0; i < table.length(); i++) {
+            GroupChatServer.Session session = table.get(i);
+            if (session != null) {
+                action.accept(session);
+            }
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Empty a slot and queue it for reuse; caller holds the lock
+    private void release(int slot) {
+        slots.set(slot, null);
+        if (freeCount == free.length) {
+            int[] larger = new int[free.length * 2];
+            for (int i = 0; i < freeCount; i++) {
+                larger[i] = free[(freeHead + i) % free.length];
+            }
+            free = larger;
+            freeHead = 0;
+        }
+        free[(freeHead + freeCount) % free.length] = slot;
+        freeCount++;
+        size--;
+    }
+
+    // Double the slot table; caller holds the lock. A reader still holding the old table can only have
+    // read ids registered before the copy, since a new id reaches other threads through a volatile write
+    private void grow() {
+        AtomicReferenceArray<GroupChatServer.Session> larger = new AtomicReferenceArray<>(slots.length() * 2);
+        for (int i = 0; i < slots.length(); i++) {
+            larger.set(i, slots.get(i));
+        }
+        slots = larger;
+        generations = Arrays.copyOf(generations, larger.length());
+    }
+}
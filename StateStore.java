@@ -0,0 +1,708 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+// The group registry and the resumable sessions kept on disk, so a restarted server comes back with
+// its groups under their old ids, and its clients resume their sessions instead of all re-creating
+// and re-joining at once.
+//
+// Every change is appended to a journal, which a background thread writes out and forces every
+// FLUSH_MILLIS. Every snapshot interval the whole state is written to a snapshot, after which the
+// journals and snapshots before it are deleted:
+//
+//   <dir>/snapshot-<n>.bin   the state when journal n was started, or a little later
+//   <dir>/journal-<n>.bin    the changes since journal n was started
+//
+// A snapshot starts its journal before it reads the state, so a change made while the snapshot is
+// written is in the journal, whether or not the snapshot caught it too. Replaying it twice does no
+// harm: records state outcomes ("t is a member of group 7", "group 7 is gone") keyed by session
+// tokens and by group ids, which are never reused. In a cluster, groups owned by other nodes are
+// not kept (they are learned again on resync) and their local ids mean nothing after a restart, so
+// memberships in them are kept by group name instead. Journal records are
+//
+//   int length | int crc | byte type | body
+//
+// where length counts the type and body, crc covers them, and strings are an int length and UTF-8.
+// A record cut short by a crash ends its journal. A snapshot is
+//
+//   header:   int magic | int version | int last group id
+//   groups:   sections of up to SECTION_GROUPS (int id | string name)
+//   sessions: int count | (string token | string name | byte flags | int count | int group id...
+//             | int count | string name of a group owned by another node...)...
+//   footer:   int section count | (long offset | int groups)... | long sessions offset
+//   trailer:  long footer offset | int magic
+//
+// and is loaded by memory-mapping the file and decoding its sections of groups on every core.
+public class StateStore {
+    private static final int MAGIC = 0x47435354;
+    private static final int VERSION = 2; // Version 1 had no names of groups owned by other nodes
+    private static final int SECTION_GROUPS = 64 * 1024; // Groups per snapshot section, the unit of parallel loading
+    private static final long FLUSH_MILLIS = 100; // Longest a change waits to be written to the journal
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final int[] NO_GROUPS = new int[0];
+    private static final String[] NO_NAMES = new String[0];
+
+    // Journal record types
+    private static final byte GROUP_ADDED = 1; // int id | string name
+    private static final byte GROUP_REMOVED = 2; // int id
+    private static final byte SESSION_STARTED = 3; // string token | string name | byte flags
+    private static final byte SESSION_ENDED = 4; // string token
+    private static final byte JOINED = 5; // string token | int group id
+    private static final byte LEFT = 6; // string token | int group id
+    private static final byte JOINED_REMOTE = 7; // string token | string group name; a group owned by another node
+    private static final byte LEFT_REMOTE = 8; // string token | string group name
+
+    // Session flags
+    private static final byte BINARY = 1;
+    private static final byte COMPRESS = 2;
+
+    private final Path dir;
+    private final ReentrantLock lock = new ReentrantLock(); // Guards the journal, the buffer and the fields below
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES); // Records not yet written to the journal
+    private final CRC32 crc = new CRC32();
+    private FileChannel journal; // Null until start
+    private long journalNumber; // Number of the current journal, or the highest on disk before start
+    private boolean unforced; // Records were written to the journal since it was last forced
+    private int recordStart; // Position of the record being appended
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "state-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // The saved state, as returned by load
+    static class State {
+        String[] groupNames;
+        int[] groupIds;
+        int groupCount;
+        int lastGroupId; // Highest group id ever handed out; new groups continue after it
+        final List<SavedSession> sessions = new ArrayList<>();
+    }
+
+    // A resumable session, the ids of the groups it was in, ascending, and the names of those owned
+    // by other nodes of a cluster, sorted
+    static class SavedSession {
+        final String token;
+        final String name;
+        final boolean binary;
+        final boolean compress;
+        int[] groups = NO_GROUPS;
+        String[] remoteGroups = NO_NAMES;
+
+        SavedSession(String token, String name, byte flags) {
+            this.token = token;
+            this.name = name;
+            this.binary = (flags & BINARY) != 0;
+            this.compress = (flags & COMPRESS) != 0;
+        }
+    }
+
+    StateStore(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    // Read the latest snapshot and replay the journals that follow it. Must be called before start
+    State load() throws IOException {
+        long snapshot = -1;
+        long firstJournal = Long.MAX_VALUE;
+        long lastJournal = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.deleteIfExists(file); // A snapshot that was being written when the server stopped
+                } else if (name.matches("snapshot-\\d+\\.bin")) {
+                    snapshot = Math.max(snapshot, number(name));
+                } else if (name.matches("journal-\\d+\\.bin")) {
+                    firstJournal = Math.min(firstJournal, number(name));
+                    lastJournal = Math.max(lastJournal, number(name));
+                }
+            }
+        }
+        State state = snapshot >= 0 ? readSnapshot(snapshotPath(snapshot)) : emptyState();
+
+        Map<String, SavedSession> sessions = new LinkedHashMap<>();
+        for (SavedSession session : state.sessions) {
+            sessions.put(session.token, session);
+        }
+        TreeMap<Integer, String> added = new TreeMap<>(); // Groups created since the snapshot
+        Set<Integer> removed = new HashSet<>(); // Groups removed since the snapshot
+        for (long n = snapshot >= 0 ? snapshot : firstJournal; n <= lastJournal; n++) {
+            Path path = journalPath(n);
+            if (Files.exists(path)) {
+                state.lastGroupId = Math.max(state.lastGroupId, replay(path, sessions, added, removed));
+            }
+        }
+        journalNumber = Math.max(snapshot, lastJournal);
+
+        // The snapshot's groups, less those removed since and plus those created since
+        int count = 0;
+        for (int i = 0; i < state.groupCount; i++) {
+            int id = state.groupIds[i];
+            if (removed.isEmpty() || !removed.contains(id)) {
+                state.groupIds[count] = id;
+                state.groupNames[count++] = state.groupNames[i];
+                if (!added.isEmpty()) {
+                    added.remove(id); // Created after the journal started, but in time for the snapshot
+                }
+            }
+        }
+        if (!added.isEmpty()) {
+            state.groupIds = Arrays.copyOf(state.groupIds, count + added.size());
+            state.groupNames = Arrays.copyOf(state.groupNames, count + added.size());
+            for (Map.Entry<Integer, String> group : added.entrySet()) {
+                state.groupIds[count] = group.getKey();
+                state.groupNames[count++] = group.getValue();
+            }
+        }
+        state.groupCount = count;
+
+        // Sessions keep only the groups that are still there. Whether the other nodes still have theirs
+        // is not known until they resync
+        BitSet existing = new BitSet(state.lastGroupId + 1);
+        for (int i = 0; i < count; i++) {
+            existing.set(state.groupIds[i]);
+        }
+        state.sessions.clear();
+        for (SavedSession session : sessions.values()) {
+            session.groups = Arrays.stream(session.groups).filter(existing::get).toArray();
+            state.sessions.add(session);
+        }
+        return state;
+    }
+
+    // Open a new journal and start writing snapshots, the first one right away so that the journals
+    // just replayed can go
+    void start(long snapshotIntervalSeconds) throws IOException {
+        lock.lock();
+        try {
+            journal = openJournal(++journalNumber);
+        } finally {
+            lock.unlock();
+        }
+        executor.scheduleWithFixedDelay(this::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::snapshot, 0, snapshotIntervalSeconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "state-store-shutdown"));
+    }
+
+    void groupAdded(GroupRegistry.Group group) {
+        byte[] name = utf8(group.name);
+        lock.lock();
+        try {
+            ByteBuffer record = begin(GROUP_ADDED, 4 + 4 + name.length);
+            record.putInt(group.id);
+            putString(record, name);
+            end(record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void groupRemoved(GroupRegistry.Group group) {
+        lock.lock();
+        try {
+            end(begin(GROUP_REMOVED, 4).putInt(group.id));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void sessionStarted(String token, String clientName, boolean binary, boolean compress) {
+        byte[] tokenBytes = utf8(token);
+        byte[] name = utf8(clientName);
+        lock.lock();
+        try {
+            ByteBuffer record = begin(SESSION_STARTED, 4 + tokenBytes.length + 4 + name.length + 1);
+            putString(record, tokenBytes);
+            putString(record, name);
+            record.put((byte) ((binary ? BINARY : 0) | (compress ? COMPRESS : 0)));
+            end(record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void sessionEnded(String token) {
+        byte[] tokenBytes = utf8(token);
+        lock.lock();
+        try {
+            ByteBuffer record = begin(SESSION_ENDED, 4 + tokenBytes.length);
+            putString(record, tokenBytes);
+            end(record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void joined(String token, GroupRegistry.Group group) {
+        if (GroupChatServer.persisted(group)) {
+            membership(JOINED, token, group);
+        } else {
+            remoteMembership(JOINED_REMOTE, token, group.name);
+        }
+    }
+
+    void left(String token, GroupRegistry.Group group) {
+        if (GroupChatServer.persisted(group)) {
+            membership(LEFT, token, group);
+        } else {
+            remoteMembership(LEFT_REMOTE, token, group.name);
+        }
+    }
+
+    private void membership(byte type, String token, GroupRegistry.Group group) {
+        byte[] tokenBytes = utf8(token);
+        lock.lock();
+        try {
+            ByteBuffer record = begin(type, 4 + tokenBytes.length + 4);
+            putString(record, tokenBytes);
+            record.putInt(group.id);
+            end(record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void remoteMembership(byte type, String token, String groupName) {
+        byte[] tokenBytes = utf8(token);
+        byte[] name = utf8(groupName);
+        lock.lock();
+        try {
+            ByteBuffer record = begin(type, 4 + tokenBytes.length + 4 + name.length);
+            putString(record, tokenBytes);
+            putString(record, name);
+            end(record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Start a record in the buffer, making room for it first; a record larger than the whole buffer
+    // gets a buffer of its own. Called with the lock held
+    private ByteBuffer begin(byte type, int bodyBytes) {
+        int size = 4 + 4 + 1 + bodyBytes;
+        if (buffer.remaining() < size) {
+            writeBuffer();
+        }
+        ByteBuffer target = size <= buffer.capacity() ? buffer : ByteBuffer.allocate(size);
+        recordStart = target.position();
+        return target.putInt(1 + bodyBytes).putInt(0).put(type);
+    }
+
+    // Fill in the checksum of the record started by begin. Called with the lock held
+    private void end(ByteBuffer target) {
+        crc.reset();
+        crc.update(target.array(), recordStart + 8, target.position() - recordStart - 8);
+        target.putInt(recordStart + 4, (int) crc.getValue());
+        if (target != buffer) {
+            write(target.flip());
+        }
+    }
+
+    // Called with the lock held
+    private void writeBuffer() {
+        write(buffer.flip());
+        buffer.clear();
+    }
+
+    // Called with the lock held
+    private void write(ByteBuffer records) {
+        if (journal == null || !records.hasRemaining()) {
+            return; // Nothing to write, or not started yet
+        }
+        try {
+            while (records.hasRemaining()) {
+                journal.write(records);
+            }
+            unforced = true;
+        } catch (IOException e) {
+            e.printStackTrace(); // The change is not kept; the next snapshot has it
+        }
+    }
+
+    // Write buffered records to the journal and force them to disk
+    private void flush() {
+        FileChannel channel;
+        lock.lock();
+        try {
+            writeBuffer();
+            if (!unforced) {
+                return;
+            }
+            unforced = false;
+            channel = journal;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            channel.force(false); // Outside the lock, so changes are not held up by the disk
+        } catch (ClosedChannelException e) {
+            // A snapshot started a new journal and forced this one as it closed it
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Write the state to a new snapshot, then delete the snapshots and journals it replaces
+    private void snapshot() {
+        try {
+            long start = System.nanoTime();
+            long number = rotate();
+            Path temp = dir.resolve("snapshot-" + number + ".tmp");
+            int groupCount;
+            int sessionCount;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1024 * 1024));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                int lastIdOffset = out.size();
+                out.writeInt(0); // Last group id, filled in once every group has been written
+
+                List<long[]> sections = new ArrayList<>(); // Offset and number of groups
+                groupCount = 0;
+                for (GroupRegistry.Group group : GroupChatServer.groups.all()) {
+                    if (!GroupChatServer.persisted(group)) {
+                        continue;
+                    }
+                    if (groupCount++ % SECTION_GROUPS == 0) {
+                        sections.add(new long[] {out.size(), 0});
+                    }
+                    sections.get(sections.size() - 1)[1]++;
+                    out.writeInt(group.id);
+                    writeString(out, group.name);
+                }
+                int lastGroupId = GroupChatServer.groups.lastId(); // Read after the groups, so it covers them
+
+                List<GroupChatServer.Session> saved = new ArrayList<>();
+                GroupChatServer.forEachSession(session -> {
+                    if (session.token != null && session.clientName != null) {
+                        saved.add(session);
+                    }
+                });
+                Map<String, List<String>> pending = new HashMap<>(); // Token -> groups of other nodes not yet rejoined
+                GroupChatServer.forEachPendingMember((groupName, token) ->
+                        pending.computeIfAbsent(token, t -> new ArrayList<>()).add(groupName));
+                long sessionsOffset = out.size();
+                out.writeInt(saved.size());
+                for (GroupChatServer.Session session : saved) {
+                    writeString(out, session.token);
+                    writeString(out, session.clientName);
+                    out.writeByte((session.binary ? BINARY : 0) | (session.compress ? COMPRESS : 0));
+                    int[] joined = session.joinedGroups.snapshot();
+                    int[] kept = new int[joined.length];
+                    int count = 0;
+                    Set<String> remote = new TreeSet<>(pending.getOrDefault(session.token, List.of()));
+                    for (int groupId : joined) {
+                        GroupRegistry.Group group = GroupChatServer.groups.get(groupId);
+                        if (group == null) {
+                            continue; // Removed while the snapshot is written
+                        }
+                        if (GroupChatServer.persisted(group)) {
+                            kept[count++] = groupId;
+                        } else {
+                            remote.add(group.name);
+                        }
+                    }
+                    out.writeInt(count);
+                    for (int i = 0; i < count; i++) {
+                        out.writeInt(kept[i]);
+                    }
+                    out.writeInt(remote.size());
+                    for (String groupName : remote) {
+                        writeString(out, groupName);
+                    }
+                }
+                sessionCount = saved.size();
+
+                long footer = out.size();
+                out.writeInt(sections.size());
+                for (long[] section : sections) {
+                    out.writeLong(section[0]);
+                    out.writeInt((int) section[1]);
+                }
+                out.writeLong(sessionsOffset);
+                out.writeLong(footer);
+                out.writeInt(MAGIC);
+                out.flush();
+                channel.write(ByteBuffer.allocate(4).putInt(0, lastGroupId), lastIdOffset);
+                channel.force(true);
+            }
+            Files.move(temp, snapshotPath(number), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            deleteBefore(number);
+            System.out.println("State snapshot " + number + ": " + groupCount + " groups, " + sessionCount
+                    + " sessions in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+        } catch (IOException e) {
+            System.out.println("State snapshot failed: " + e.getMessage());
+        }
+    }
+
+    // Continue in a new journal and return its number; the previous journal is forced and closed
+    private long rotate() throws IOException {
+        FileChannel previous;
+        long number;
+        lock.lock();
+        try {
+            writeBuffer();
+            number = journalNumber + 1;
+            FileChannel next = openJournal(number);
+            previous = journal;
+            journal = next;
+            journalNumber = number;
+            unforced = false;
+        } finally {
+            lock.unlock();
+        }
+        if (previous != null) {
+            previous.force(false);
+            previous.close();
+        }
+        return number;
+    }
+
+    private void deleteBefore(long number) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "{snapshot,journal}-*.bin")) {
+            for (Path file : files) {
+                if (number(file.getFileName().toString()) < number) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private State readSnapshot(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + path + " is too large");
+            }
+            ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size); // Stays valid after the channel closes
+            if (size < 24 || map.getInt(0) != MAGIC || map.getInt((int) size - 4) != MAGIC) {
+                throw new IOException("Snapshot " + path + " is incomplete");
+            }
+            int version = map.getInt(4);
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Snapshot " + path + " has unknown version " + version);
+            }
+            State state = new State();
+            state.lastGroupId = map.getInt(8);
+
+            ByteBuffer footer = map.duplicate().position((int) map.getLong((int) size - 12));
+            int sections = footer.getInt();
+            int[] offsets = new int[sections];
+            int[] firsts = new int[sections + 1]; // Index of each section's first group in the arrays
+            for (int i = 0; i < sections; i++) {
+                offsets[i] = (int) footer.getLong();
+                firsts[i + 1] = firsts[i] + footer.getInt();
+            }
+            int sessionsOffset = (int) footer.getLong();
+            state.groupCount = firsts[sections];
+            state.groupIds = new int[state.groupCount];
+            state.groupNames = new String[state.groupCount];
+            IntStream.range(0, sections).parallel().forEach(section -> {
+                ByteBuffer in = map.duplicate().position(offsets[section]);
+                for (int i = firsts[section]; i < firsts[section + 1]; i++) {
+                    state.groupIds[i] = in.getInt();
+                    state.groupNames[i] = getString(in);
+                }
+            });
+
+            ByteBuffer in = map.duplicate().position(sessionsOffset);
+            int sessions = in.getInt();
+            for (int i = 0; i < sessions; i++) {
+                SavedSession session = new SavedSession(getString(in), getString(in), in.get());
+                session.groups = new int[in.getInt()];
+                for (int j = 0; j < session.groups.length; j++) {
+                    session.groups[j] = in.getInt();
+                }
+                if (version > 1) {
+                    session.remoteGroups = new String[in.getInt()];
+                    for (int j = 0; j < session.remoteGroups.length; j++) {
+                        session.remoteGroups[j] = getString(in);
+                    }
+                }
+                state.sessions.add(session);
+            }
+            return state;
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Snapshot " + path + " is corrupt", e);
+        }
+    }
+
+    // Apply one journal's records; returns the highest group id it created
+    private static int replay(Path path, Map<String, SavedSession> sessions, Map<Integer, String> added,
+                              Set<Integer> removed) throws IOException {
+        int lastGroupId = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+            while (in.remaining() >= 9) {
+                int length = in.getInt();
+                int sum = in.getInt();
+                if (length < 1 || length > in.remaining()) {
+                    break; // Cut short by a crash
+                }
+                ByteBuffer record = in.slice(in.position(), length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != sum) {
+                    break;
+                }
+                in.position(in.position() + length);
+                byte type = record.get();
+                switch (type) {
+                    case GROUP_ADDED: {
+                        int id = record.getInt();
+                        added.put(id, getString(record));
+                        lastGroupId = Math.max(lastGroupId, id);
+                        break;
+                    }
+                    case GROUP_REMOVED: {
+                        int id = record.getInt();
+                        added.remove(id);
+                        removed.add(id);
+                        break;
+                    }
+                    case SESSION_STARTED: {
+                        String token = getString(record);
+                        sessions.put(token, new SavedSession(token, getString(record), record.get()));
+                        break;
+                    }
+                    case SESSION_ENDED:
+                        sessions.remove(getString(record));
+                        break;
+                    case JOINED:
+                    case LEFT: {
+                        SavedSession session = sessions.get(getString(record));
+                        int groupId = record.getInt();
+                        if (session != null) {
+                            session.groups = type == JOINED ? with(session.groups, groupId) : without(session.groups, groupId);
+                        }
+                        break;
+                    }
+                    case JOINED_REMOTE:
+                    case LEFT_REMOTE: {
+                        SavedSession session = sessions.get(getString(record));
+                        String groupName = getString(record);
+                        if (session != null) {
+                            session.remoteGroups = type == JOINED_REMOTE ? with(session.remoteGroups, groupName)
+                                    : without(session.remoteGroups, groupName);
+                        }
+                        break;
+                    }
+                    default:
+                        break; // Written by a later version
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Journal " + path + " is corrupt", e);
+        }
+        return lastGroupId;
+    }
+
+    private static State emptyState() {
+        State state = new State();
+        state.groupIds = new int[0];
+        state.groupNames = new String[0];
+        return state;
+    }
+
+    private static int[] with(int[] groups, int id) {
+        int index = Arrays.binarySearch(groups, id);
+        if (index >= 0) {
+            return groups;
+        }
+        int insert = -index - 1;
+        int[] next = new int[groups.length + 1];
+        System.arraycopy(groups, 0, next, 0, insert);
+        next[insert] = id;
+        System.arraycopy(groups, insert, next, insert + 1, groups.length - insert);
+        return next;
+    }
+
+    private static int[] without(int[] groups, int id) {
+        int index = Arrays.binarySearch(groups, id);
+        if (index < 0) {
+            return groups;
+        }
+        int[] next = new int[groups.length - 1];
+        System.arraycopy(groups, 0, next, 0, index);
+        System.arraycopy(groups, index + 1, next, index, groups.length - index - 1);
+        return next;
+    }
+
+    private static String[] with(String[] names, String name) {
+        int index = Arrays.binarySearch(names, name);
+        if (index >= 0) {
+            return names;
+        }
+        int insert = -index - 1;
+        String[] next = new String[names.length + 1];
+        System.arraycopy(names, 0, next, 0, insert);
+        next[insert] = name;
+        System.arraycopy(names, insert, next, insert + 1, names.length - insert);
+        return next;
+    }
+
+    private static String[] without(String[] names, String name) {
+        int index = Arrays.binarySearch(names, name);
+        if (index < 0) {
+            return names;
+        }
+        String[] next = new String[names.length - 1];
+        System.arraycopy(names, 0, next, 0, index);
+        System.arraycopy(names, index + 1, next, index, names.length - index - 1);
+        return next;
+    }
+
+    private FileChannel openJournal(long number) throws IOException {
+        return FileChannel.open(journalPath(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private Path journalPath(long number) {
+        return dir.resolve("journal-" + number + ".bin");
+    }
+
+    private Path snapshotPath(long number) {
+        return dir.resolve("snapshot-" + number + ".bin");
+    }
+
+    // The number in a snapshot or journal file name
+    private static long number(String fileName) {
+        return Long.parseLong(fileName.substring(fileName.indexOf('-') + 1, fileName.indexOf('.')));
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = utf8(text);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,37 @@
+import java.util.concurrent.locks.ReentrantLock;
+
+// A rate limit of ratePerSecond units per second on average, with bursts of up to one second's
+// worth. Tokens are added from System.nanoTime() when the bucket is used, so idle buckets cost
+// nothing.
+public class TokenBucket {
+    private final double perNano;
+    private final double capacity;
+    private final ReentrantLock lock = new ReentrantLock(); // Every sender to a group may use its bucket
+    private double tokens; // Guarded by lock; negative while an oversized take is paid off
+    private long refilled; // Guarded by lock
+
+    TokenBucket(double ratePerSecond) {
+        perNano = ratePerSecond / 1e9;
+        capacity = ratePerSecond;
+        tokens = capacity;
+        refilled = System.nanoTime();
+    }
+
+    // Take amount tokens, or nothing and return false if there are not enough. An amount larger than
+    // the bucket passes once the bucket is full, and nothing else passes until it has been paid off
+    boolean tryTake(double amount) {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilled) * perNano);
+            refilled = now;
+            if (tokens < Math.min(amount, capacity)) {
+                return false;
+            }
+            tokens -= amount;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
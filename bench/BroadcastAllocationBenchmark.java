@@ -0,0 +1,108 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+
+// Measures heap allocated per recipient when a SendMessage is fanned out, comparing the old path
+// (build the text and writeUTF it once per member) with Session.broadcast (encode once, queue the
+// same Frame for every member).
+//
+//   java -cp out BroadcastAllocationBenchmark [broadcasts per group size]
+public class BroadcastAllocationBenchmark {
+    private static final int[] GROUP_SIZES = {10, 1000, 5000};
+
+    // Member with a real outbound queue; the benchmark drains it in place of a writer
+    private static class QueueSession extends GroupChatServer.Session {
+        private final OutboundQueue outbound = new OutboundQueue(16);
+        private final DataOutputStream out = new DataOutputStream(OutputStream.nullOutputStream());
+
+        QueueSession() {
+            GroupChatServer.register(this); // Groups refer to members by session id
+        }
+
+        void send(Frame frame) {
+            if (!outbound.offer(frame.retain())) {
+                frame.release();
+            }
+        }
+
+        // What the writer does for each queued frame
+        void drain() {
+            Frame frame;
+            while ((frame = outbound.poll()) != null) {
+                frame.release();
+            }
+        }
+
+        void handleSendFile() {
+        }
+
+        void receiveFile(String groupName, String fileName, long fileSize) {
+        }
+
+        void closeConnection() {
+        }
+
+        void disconnect() {
+        }
+
+        void suspendConnection() {
+        }
+
+        OutboundQueue outbound() {
+            return outbound;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int broadcasts = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        FanOutPool.shardSize = 0; // Fan out on this thread, where the allocations are counted
+
+        System.out.printf("%8s %26s %26s%n", "members", "per-recipient (bytes/msg)", "encode-once (bytes/msg)");
+        for (int size : GROUP_SIZES) {
+            GroupRegistry registry = new GroupRegistry();
+            GroupRegistry.Group group = registry.create("group");
+            QueueSession[] members = new QueueSession[size];
+            for (int i = 0; i < size; i++) {
+                members[i] = new QueueSession();
+                group.join(members[i]);
+            }
+
+            // Warm up both paths so JIT compilation does not count towards either
+            perRecipient(members, broadcasts / 4);
+            encodeOnce(group, members, broadcasts / 4);
+
+            long before = threads.getThreadAllocatedBytes(thread);
+            perRecipient(members, broadcasts);
+            long perRecipientBytes = threads.getThreadAllocatedBytes(thread) - before;
+
+            before = threads.getThreadAllocatedBytes(thread);
+            encodeOnce(group, members, broadcasts);
+            long encodeOnceBytes = threads.getThreadAllocatedBytes(thread) - before;
+
+            long deliveries = (long) broadcasts * size;
+            System.out.printf("%8d %26.1f %26.1f%n", size,
+                    (double) perRecipientBytes / deliveries, (double) encodeOnceBytes / deliveries);
+        }
+    }
+
+    // The old fan-out: concatenate and writeUTF the text separately for every member
+    private static void perRecipient(QueueSession[] members, int broadcasts) throws IOException {
+        for (int i = 0; i < broadcasts; i++) {
+            String msg = "message " + (i & 7);
+            for (QueueSession member : members) {
+                member.out.writeUTF("sender" + " (" + "group" + "): " + msg);
+            }
+        }
+    }
+
+    private static void encodeOnce(GroupRegistry.Group group, QueueSession[] members, int broadcasts) {
+        for (int i = 0; i < broadcasts; i++) {
+            String msg = "message " + (i & 7);
+            GroupChatServer.Session.broadcast(group, "sender" + " (" + "group" + "): " + msg, null);
+            for (QueueSession member : members) {
+                member.drain();
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+// Delivery latency of group messages by group size: the time from handing a message to the group
+// until each member has it in its outbound queue, with every delivery on the sender's thread
+// (--fan-out-shard=0) and with large groups sharded over the fan-out pool. Messages are sent one at
+// a time, each once the previous one has reached everyone, so the figures show the fan-out itself
+// rather than a backlog. The sender column is how long the sender's thread is held per message.
+//
+//   java -cp out FanOutLatencyBenchmark [messages per group size] [shard size]
+public class FanOutLatencyBenchmark {
+    private static final int[] GROUP_SIZES = {100, 1_000, 10_000, 100_000};
+
+    // Member with a real outbound queue that notes when the last frame arrived
+    private static class TimedSession extends GroupChatServer.Session {
+        private final OutboundQueue outbound = new OutboundQueue(16);
+        private volatile long arrived;
+
+        TimedSession() {
+            GroupChatServer.register(this); // Groups refer to members by session id
+        }
+
+        void send(Frame frame) {
+            if (!outbound.offer(frame.retain())) {
+                frame.release();
+            }
+            arrived = System.nanoTime();
+        }
+
+        // What the writer does for each queued frame
+        void drain() {
+            Frame frame;
+            while ((frame = outbound.poll()) != null) {
+                frame.release();
+            }
+        }
+
+        void handleSendFile() {
+        }
+
+        void receiveFile(String groupName, String fileName, long fileSize) {
+        }
+
+        void closeConnection() {
+        }
+
+        void disconnect() {
+        }
+
+        void suspendConnection() {
+        }
+
+        OutboundQueue outbound() {
+            return outbound;
+        }
+    }
+
+    public static void main(String[] args) {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int shard = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        System.out.println(Runtime.getRuntime().availableProcessors() + " cores, shards of " + shard + " members");
+        System.out.printf("%8s %36s %36s%n", "", "sender's thread", "sharded");
+        System.out.printf("%8s %12s %12s %10s %12s %12s %10s%n", "members",
+                "p50 (us)", "p99 (us)", "sender", "p50 (us)", "p99 (us)", "sender");
+        for (int size : GROUP_SIZES) {
+            GroupRegistry registry = new GroupRegistry();
+            GroupRegistry.Group group = registry.create("group");
+            TimedSession[] members = new TimedSession[size];
+            for (int i = 0; i < size; i++) {
+                members[i] = new TimedSession();
+                group.join(members[i]);
+            }
+
+            // Warm up both paths so JIT compilation does not count towards either
+            run(group, members, 0, Math.max(10, messages / 4));
+            run(group, members, shard, Math.max(10, messages / 4));
+
+            long[] inline = run(group, members, 0, messages);
+            long[] sharded = run(group, members, shard, messages);
+            System.out.printf("%8d %12.1f %12.1f %10.1f %12.1f %12.1f %10.1f%n", size,
+                    inline[0] / 1e3, inline[1] / 1e3, inline[2] / 1e3, sharded[0] / 1e3, sharded[1] / 1e3, sharded[2] / 1e3);
+        }
+    }
+
+    // Send messages one at a time; returns the p50 and p99 delivery latency and the mean time the
+    // sender was held, in nanoseconds
+    private static long[] run(GroupRegistry.Group group, TimedSession[] members, int shard, int messages) {
+        FanOutPool.shardSize = shard;
+        LatencyHistogram latency = new LatencyHistogram();
+        long held = 0;
+        for (int i = 0; i < messages; i++) {
+            long sent = System.nanoTime();
+            GroupChatServer.Session.broadcastChat(group, "sender", "message " + (i & 7), i);
+            held += System.nanoTime() - sent;
+            while (group.fanningOut()) {
+                Thread.yield(); // Leave the cores to the pool
+            }
+            for (TimedSession member : members) {
+                latency.record(member.arrived - sent);
+                member.drain();
+            }
+        }
+        return new long[] {latency.percentile(50), latency.percentile(99), held / messages};
+    }
+}
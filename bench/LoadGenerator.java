@@ -0,0 +1,486 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Headless load generator for a running GroupChatServer. Opens many text-protocol connections,
+// spreads them over groups, sends messages (and optionally files) at a fixed total rate and reports
+// delivery throughput and end-to-end latency percentiles. Each send carries the time it was
+// scheduled for rather than the time it went out, so a generator or server that falls behind
+// shows up as latency instead of as a quietly lower send rate.
+//
+//   java -cp out LoadGenerator --clients=1000 --groups=50 --rate=5000 --duration-s=30
+//
+// Options are --name=value like the server's; see Options for the full list.
+public class LoadGenerator {
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(2); // Wait for in-flight deliveries after the last send
+    private static final long SETUP_SECONDS = 60; // Longest wait for connections, groups and joins
+    private static final int CONNECT_THREADS = 32;
+
+    static class Options {
+        String host = "localhost";
+        int port = 7777;
+        int clients = 100;
+        int groups = 10;
+        int groupsPerClient = 2; // Distinct groups each client joins
+        String distribution = "uniform"; // How clients pick groups: uniform, or zipf for a few very large groups
+        double zipfExponent = 1.0;
+        double rate = 1000; // Messages per second across all clients
+        int messageBytes = 64; // Size of each message's text
+        double fileRate = 0; // Files per second across all clients; 0 sends none
+        int fileBytes = 64 * 1024;
+        int senders = 4; // Threads sending messages; each owns a slice of the clients
+        long warmupSeconds = 5; // Sends before this are not measured
+        long durationSeconds = 30; // Measured time after the warm-up
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                if (!arg.startsWith("--") || !arg.contains("=")) {
+                    throw new IllegalArgumentException("Invalid option: " + arg + " (expected --name=value)");
+                }
+                options.set(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+            if (options.groupsPerClient > options.groups) {
+                throw new IllegalArgumentException("--groups-per-client cannot exceed --groups");
+            }
+            return options;
+        }
+
+        void set(String name, String value) {
+            switch (name) {
+                case "host":
+                    host = value;
+                    break;
+                case "port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "clients":
+                    clients = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "groups":
+                    groups = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "groups-per-client":
+                    groupsPerClient = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "distribution":
+                    if (!value.equals("uniform") && !value.equals("zipf")) {
+                        throw new IllegalArgumentException("Unknown distribution: " + value + " (expected uniform or zipf)");
+                    }
+                    distribution = value;
+                    break;
+                case "zipf-exponent":
+                    zipfExponent = Double.parseDouble(value);
+                    break;
+                case "rate":
+                    rate = Double.parseDouble(value);
+                    break;
+                case "message-bytes":
+                    messageBytes = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "file-rate":
+                    fileRate = Double.parseDouble(value);
+                    break;
+                case "file-bytes":
+                    fileBytes = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "senders":
+                    senders = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "warmup-s":
+                    warmupSeconds = Math.max(0, Long.parseLong(value));
+                    break;
+                case "duration-s":
+                    durationSeconds = Math.max(1, Long.parseLong(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+    }
+
+    // One simulated user: a connection, the groups it joined, and a reader thread recording what arrives
+    class Client implements Runnable {
+        final int index;
+        final int[] groups;
+        final Socket socket;
+        final DataOutputStream out;
+        final DataInputStream in;
+        private final ReentrantLock writeLock = new ReentrantLock(); // Message and file senders share the connection
+
+        Client(int index, int[] groups) throws IOException {
+            this.index = index;
+            this.groups = groups;
+            socket = new Socket(options.host, options.port);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            command("load" + index); // Nickname
+        }
+
+        void command(String command) throws IOException {
+            writeLock.lock();
+            try {
+                out.writeUTF(command);
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        // SendFile the way GroupChatClient does: command, group, file name, size, then the contents
+        void sendFile(String groupName, String fileName, byte[] contents) throws IOException {
+            writeLock.lock();
+            try {
+                out.writeUTF("SendFile");
+                out.writeUTF(groupName);
+                out.writeUTF(fileName);
+                out.writeLong(contents.length);
+                out.write(contents);
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    String message = in.readUTF();
+                    if (message.startsWith("ReceiveFile ")) {
+                        long size = in.readLong(); // The contents follow the notice
+                        in.skipNBytes(size);
+                        long now = System.nanoTime();
+                        long scheduled = parseTime(message, message.indexOf("load-") + "load-".length());
+                        if (scheduled >= measureStart) {
+                            fileLatency.record(now - scheduled);
+                        }
+                    } else if (message.startsWith("Joined group ") || message.startsWith("Error: You are already")) {
+                        joins.countDown();
+                    } else if (message.endsWith(" created.") || message.endsWith(" already exists.")) {
+                        created.countDown();
+                    } else if (message.indexOf("): ") > 0) {
+                        long now = System.nanoTime();
+                        long scheduled = parseTime(message, message.indexOf("): ") + 3);
+                        if (scheduled >= measureStart) {
+                            messageLatency.record(now - scheduled);
+                        }
+                    } else if (message.startsWith("Error") && !stopping) {
+                        errors.increment();
+                        if (errors.sum() <= 5) {
+                            System.out.println("load" + index + ": " + message);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (!stopping) {
+                    errors.increment();
+                    System.out.println("load" + index + " disconnected: " + e.getMessage());
+                }
+            }
+        }
+
+        void close() {
+            try {
+                command("quit");
+                socket.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+
+    private final Options options;
+    private final String prefix; // Group names of this run, so a rerun against the same server starts clean
+    private final int[] groupSizes;
+    private final List<Client> clients = new ArrayList<>();
+    private final LatencyHistogram messageLatency = new LatencyHistogram();
+    private final LatencyHistogram fileLatency = new LatencyHistogram();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder messagesExpected = new LongAdder(); // Deliveries the measured messages should cause
+    private final LongAdder filesSent = new LongAdder();
+    private final LongAdder filesExpected = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final CountDownLatch created;
+    private final CountDownLatch joins;
+    private volatile long origin; // Sends carry their scheduled time as nanoseconds since this
+    private volatile long measureStart = Long.MAX_VALUE; // Scheduled send times before this are warm-up
+    private volatile boolean stopping;
+
+    LoadGenerator(Options options) {
+        this.options = options;
+        prefix = "load" + Integer.toString(new Random().nextInt(1 << 20), 36) + "-";
+        groupSizes = new int[options.groups];
+        created = new CountDownLatch(options.groups);
+        joins = new CountDownLatch(options.clients * options.groupsPerClient);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator(Options.parse(args)).run();
+    }
+
+    void run() throws Exception {
+        connect();
+        if (clients.isEmpty()) {
+            return;
+        }
+        for (int g = 0; g < options.groups; g++) {
+            clients.get(0).command("AddGroup " + groupName(g));
+        }
+        await(created, "groups to be created");
+        for (Client client : clients) {
+            for (int g : client.groups) {
+                client.command("JoinGroup " + groupName(g));
+            }
+        }
+        await(joins, "clients to join their groups");
+        System.out.printf("%d clients in %d groups (%s, %d per client, largest %d members)%n", clients.size(),
+                options.groups, options.distribution, options.groupsPerClient, Arrays.stream(groupSizes).max().orElse(0));
+
+        long start = System.nanoTime();
+        origin = start;
+        measureStart = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        List<Thread> senders = new ArrayList<>();
+        for (int k = 0; k < options.senders && options.rate > 0; k++) {
+            int slice = k;
+            senders.add(start(() -> sendMessages(slice, start, end), "sender-" + k));
+        }
+        if (options.fileRate > 0) {
+            senders.add(start(() -> sendFiles(start, end), "file-sender"));
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(DRAIN_NANOS));
+        report();
+
+        stopping = true;
+        for (int g = 0; g < options.groups; g++) {
+            clients.get(0).command("RemoveGroup " + groupName(g));
+        }
+        for (Client client : clients) {
+            client.close();
+        }
+    }
+
+    private void connect() throws InterruptedException {
+        int[][] memberships = new int[options.clients][];
+        GroupPicker picker = new GroupPicker(options);
+        for (int i = 0; i < options.clients; i++) {
+            memberships[i] = picker.pick();
+            for (int g : memberships[i]) {
+                groupSizes[g]++;
+            }
+        }
+        Executor readers = readerExecutor();
+        ExecutorService connectors = Executors.newFixedThreadPool(CONNECT_THREADS);
+        Client[] connected = new Client[options.clients];
+        for (int i = 0; i < options.clients; i++) {
+            int index = i;
+            connectors.execute(() -> {
+                try {
+                    connected[index] = new Client(index, memberships[index]);
+                    readers.execute(connected[index]);
+                } catch (IOException e) {
+                    errors.increment();
+                    System.out.println("load" + index + " could not connect: " + e.getMessage());
+                }
+            });
+        }
+        connectors.shutdown();
+        connectors.awaitTermination(SETUP_SECONDS, TimeUnit.SECONDS);
+        for (Client client : connected) {
+            if (client == null) {
+                System.out.println("Not every client could connect; stopping.");
+                stopping = true;
+                for (Client other : connected) {
+                    if (other != null) {
+                        other.close();
+                    }
+                }
+                return;
+            }
+            clients.add(client);
+        }
+    }
+
+    // Open-loop sender for the clients whose index is slice modulo the number of senders
+    private void sendMessages(int slice, long start, long end) {
+        List<Client> own = new ArrayList<>();
+        for (int i = slice; i < clients.size(); i += options.senders) {
+            own.add(clients.get(i));
+        }
+        if (own.isEmpty()) {
+            return;
+        }
+        Random random = new Random(slice);
+        char[] padding = new char[Math.max(0, options.messageBytes - 20)]; // The scheduled time takes the first 20
+        Arrays.fill(padding, 'x');
+        String pad = new String(padding);
+        long interval = (long) (1e9 * options.senders / options.rate);
+        for (long next = start + interval * slice / options.senders; next < end; next += interval) {
+            pause(next);
+            Client client = own.get(random.nextInt(own.size()));
+            int group = client.groups[random.nextInt(client.groups.length)];
+            try {
+                client.command("SendMessage " + groupName(group) + " " + stamp(next) + " " + pad);
+            } catch (IOException e) {
+                errors.increment();
+                continue;
+            }
+            if (next >= measureStart) {
+                messagesSent.increment();
+                messagesExpected.add(groupSizes[group]); // Members, including the sender, get a copy
+            }
+        }
+    }
+
+    private void sendFiles(long start, long end) {
+        Random random = new Random(-1);
+        byte[] contents = new byte[options.fileBytes];
+        random.nextBytes(contents);
+        long interval = (long) (1e9 / options.fileRate);
+        for (long next = start; next < end; next += interval) {
+            pause(next);
+            Client client = clients.get(random.nextInt(clients.size()));
+            int group = client.groups[random.nextInt(client.groups.length)];
+            try {
+                client.sendFile(groupName(group), "load-" + stamp(next) + ".bin", contents);
+            } catch (IOException e) {
+                errors.increment();
+                continue;
+            }
+            if (next >= measureStart) {
+                filesSent.increment();
+                filesExpected.add(groupSizes[group] - 1); // The sender gets a confirmation, not a copy
+            }
+        }
+    }
+
+    private void report() {
+        double seconds = options.durationSeconds;
+        long delivered = messageLatency.count();
+        System.out.printf("Messages: %d sent (%.0f/s), %d of %d deliveries (%.2f%%), %.0f deliveries/s%n",
+                messagesSent.sum(), messagesSent.sum() / seconds, delivered, messagesExpected.sum(),
+                percent(delivered, messagesExpected.sum()), delivered / seconds);
+        printLatency(messageLatency);
+        if (options.fileRate > 0) {
+            long files = fileLatency.count();
+            System.out.printf("Files: %d sent, %d of %d deliveries (%.2f%%), %.1f MB/s delivered%n", filesSent.sum(),
+                    files, filesExpected.sum(), percent(files, filesExpected.sum()),
+                    files * (double) options.fileBytes / seconds / (1024 * 1024));
+            printLatency(fileLatency);
+        }
+        System.out.println("Errors: " + errors.sum());
+    }
+
+    private static void printLatency(LatencyHistogram histogram) {
+        if (histogram.count() == 0) {
+            return;
+        }
+        System.out.printf("  latency ms: p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+                millis(histogram.percentile(50)), millis(histogram.percentile(90)), millis(histogram.percentile(99)),
+                millis(histogram.percentile(99.9)), millis(histogram.max()));
+    }
+
+    // Picks the distinct groups each client joins
+    static class GroupPicker {
+        private final Random random = new Random(42);
+        private final double[] cumulative; // Zipf weights, summed; null for uniform
+        private final int groups;
+        private final int perClient;
+
+        GroupPicker(Options options) {
+            groups = options.groups;
+            perClient = options.groupsPerClient;
+            if (options.distribution.equals("zipf")) {
+                cumulative = new double[groups];
+                double sum = 0;
+                for (int g = 0; g < groups; g++) {
+                    sum += 1 / Math.pow(g + 1, options.zipfExponent);
+                    cumulative[g] = sum;
+                }
+            } else {
+                cumulative = null;
+            }
+        }
+
+        int[] pick() {
+            Set<Integer> chosen = new LinkedHashSet<>();
+            while (chosen.size() < perClient) {
+                chosen.add(next());
+            }
+            return chosen.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        private int next() {
+            if (cumulative == null) {
+                return random.nextInt(groups);
+            }
+            int index = Arrays.binarySearch(cumulative, random.nextDouble() * cumulative[groups - 1]);
+            return Math.min(groups - 1, index >= 0 ? index : -index - 1);
+        }
+    }
+
+    private String groupName(int group) {
+        return prefix + group;
+    }
+
+    private void await(CountDownLatch latch, String what) throws InterruptedException {
+        if (!latch.await(SETUP_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Timed out waiting for " + what);
+        }
+    }
+
+    private static void pause(long until) {
+        long delay;
+        while ((delay = until - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(delay);
+        }
+    }
+
+    // A scheduled send time as 19 digits, which is what parseTime reads back
+    private String stamp(long scheduled) {
+        return String.format("%019d", scheduled - origin);
+    }
+
+    private long parseTime(String message, int offset) {
+        try {
+            return origin + Long.parseLong(message.substring(offset, offset + 19));
+        } catch (RuntimeException e) {
+            return Long.MIN_VALUE; // Not one of ours
+        }
+    }
+
+    private static Thread start(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.start();
+        return thread;
+    }
+
+    // Thousands of readers: virtual threads where the JDK has them, else small-stack daemon threads
+    private static Executor readerExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return task -> {
+                Thread thread = new Thread(null, task, "reader", 256 * 1024);
+                thread.setDaemon(true);
+                thread.start();
+            };
+        }
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0 : 100.0 * part / whole;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
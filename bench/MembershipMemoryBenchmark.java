@@ -0,0 +1,81 @@
+import java.lang.ref.Reference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Measures retained heap per membership, comparing the old layout (a concurrent hash set of
+// sessions in every group plus a concurrent hash set of groups in every session) with session ids
+// in a SegmentedIntSet per group and group ids in a CopyOnWriteIntSet per session, as GroupRegistry
+// and Session now store them.
+//
+//   java -cp out MembershipMemoryBenchmark [sessions] [groups per session]
+public class MembershipMemoryBenchmark {
+    private static final int GROUPS = 1000;
+
+    public static void main(String[] args) {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int perSession = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long memberships = (long) sessions * perSession;
+
+        Object[] sessionObjects = new Object[sessions];
+        for (int i = 0; i < sessions; i++) {
+            sessionObjects[i] = new Object(); // Stands in for the session itself, which both layouts keep
+        }
+
+        long before = usedHeap();
+        List<Set<Object>> groupMembers = new ArrayList<>();
+        List<Set<Object>> groupObjects = new ArrayList<>();
+        for (int g = 0; g < GROUPS; g++) {
+            groupMembers.add(ConcurrentHashMap.newKeySet());
+            groupObjects.add(ConcurrentHashMap.newKeySet()); // Identity of group g, only its hash matters here
+        }
+        List<Set<Object>> joined = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            Set<Object> groups = ConcurrentHashMap.newKeySet();
+            for (int k = 0; k < perSession; k++) {
+                int g = (i * 31 + k * 97) % GROUPS;
+                groupMembers.get(g).add(sessionObjects[i]);
+                groups.add(groupObjects.get(g));
+            }
+            joined.add(groups);
+        }
+        long hashSetBytes = usedHeap() - before;
+        report("hash sets", hashSetBytes, memberships);
+        Reference.reachabilityFence(groupObjects);
+        groupMembers = null;
+        joined = null;
+
+        before = usedHeap();
+        SegmentedIntSet[] members = new SegmentedIntSet[GROUPS];
+        for (int g = 0; g < GROUPS; g++) {
+            members[g] = new SegmentedIntSet();
+        }
+        CopyOnWriteIntSet[] joinedIds = new CopyOnWriteIntSet[sessions];
+        for (int i = 0; i < sessions; i++) {
+            joinedIds[i] = new CopyOnWriteIntSet();
+            for (int k = 0; k < perSession; k++) {
+                int g = (i * 31 + k * 97) % GROUPS;
+                members[g].add(i);
+                joinedIds[i].add(g);
+            }
+        }
+        long intSetBytes = usedHeap() - before;
+        report("int sets", intSetBytes, memberships);
+        System.out.printf("%d sessions, %d memberships; int sets use %.1fx less heap%n",
+                sessions, memberships, (double) hashSetBytes / intSetBytes);
+        Reference.reachabilityFence(members); // Keep the structures alive until they have been measured
+        Reference.reachabilityFence(joinedIds);
+        Reference.reachabilityFence(sessionObjects);
+    }
+
+    private static void report(String layout, long bytes, long memberships) {
+        System.out.printf("%-10s %12d bytes %8.1f bytes/membership%n", layout, bytes, (double) bytes / memberships);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
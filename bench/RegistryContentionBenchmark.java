@@ -0,0 +1,182 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Measures group fan-out and membership churn throughput with 1 to 64 threads, comparing the
+// old single-lock HashMap registry with GroupRegistry.
+//
+//   java -cp out RegistryContentionBenchmark [seconds per run] [write nanos per member]
+//
+// The second argument makes every send spin for that long, standing in for a socket write.
+public class RegistryContentionBenchmark {
+    private static final int GROUPS = 64;
+    private static final int MEMBERS_PER_GROUP = 100;
+    private static final int CHURN_PERCENT = 5; // Share of operations that join and then leave a group
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+
+    // Member that only burns the configured write time
+    private static class StubSession extends GroupChatServer.Session {
+        private final long writeNanos;
+        private long sink;
+
+        StubSession(long writeNanos) {
+            this.writeNanos = writeNanos;
+            GroupChatServer.register(this); // Groups refer to members by session id
+        }
+
+        void send(Frame frame) {
+            long end = System.nanoTime() + writeNanos;
+            sink += frame.length();
+            while (System.nanoTime() < end) {
+                sink++;
+            }
+        }
+
+        void handleSendFile() {
+        }
+
+        void receiveFile(String groupName, String fileName, long fileSize) {
+        }
+
+        void closeConnection() {
+        }
+
+        void disconnect() {
+        }
+
+        void suspendConnection() {
+        }
+
+        OutboundQueue outbound() {
+            return null;
+        }
+    }
+
+    // The operations a worker performs, implemented once per registry
+    private interface Registry {
+        void fanOut(int group, Frame frame);
+
+        void churn(int group, GroupChatServer.Session member);
+    }
+
+    // The registry as it was: one map and one lock held across every write
+    private static class GlobalLockRegistry implements Registry {
+        private final Map<String, Set<GroupChatServer.Session>> groups = new HashMap<>();
+        private final ReentrantLock lock = new ReentrantLock();
+
+        GlobalLockRegistry(long writeNanos) {
+            for (int g = 0; g < GROUPS; g++) {
+                Set<GroupChatServer.Session> members = new HashSet<>();
+                for (int m = 0; m < MEMBERS_PER_GROUP; m++) {
+                    members.add(new StubSession(writeNanos));
+                }
+                groups.put("group" + g, members);
+            }
+        }
+
+        public void fanOut(int group, Frame frame) {
+            lock.lock();
+            try {
+                for (GroupChatServer.Session member : groups.get("group" + group)) {
+                    member.send(frame);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void churn(int group, GroupChatServer.Session member) {
+            lock.lock();
+            try {
+                groups.get("group" + group).add(member);
+            } finally {
+                lock.unlock();
+            }
+            lock.lock();
+            try {
+                groups.get("group" + group).remove(member);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class ConcurrentRegistry implements Registry {
+        private final GroupRegistry groups = new GroupRegistry();
+
+        ConcurrentRegistry(long writeNanos) {
+            for (int g = 0; g < GROUPS; g++) {
+                GroupRegistry.Group group = groups.create("group" + g);
+                for (int m = 0; m < MEMBERS_PER_GROUP; m++) {
+                    group.join(new StubSession(writeNanos));
+                }
+            }
+        }
+
+        public void fanOut(int group, Frame frame) {
+            for (int[] chunk : groups.get("group" + group).memberIds()) {
+                for (int id : chunk) {
+                    GroupChatServer.session(id).send(frame);
+                }
+            }
+        }
+
+        public void churn(int group, GroupChatServer.Session member) {
+            GroupRegistry.Group target = groups.get("group" + group);
+            target.join(member);
+            target.leave(member);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2;
+        long writeNanos = args.length > 1 ? Long.parseLong(args[1]) : 0;
+
+        System.out.println("cores available: " + Runtime.getRuntime().availableProcessors()
+                + ", groups: " + GROUPS + ", members per group: " + MEMBERS_PER_GROUP);
+        System.out.printf("%8s %22s %22s%n", "threads", "global lock (ops/s)", "GroupRegistry (ops/s)");
+        for (int threads : THREAD_COUNTS) {
+            double global = run(new GlobalLockRegistry(writeNanos), threads, seconds, writeNanos);
+            double concurrent = run(new ConcurrentRegistry(writeNanos), threads, seconds, writeNanos);
+            System.out.printf("%8d %22.0f %22.0f%n", threads, global, concurrent);
+        }
+    }
+
+    // Run the mixed workload on the given number of threads and return completed operations per second
+    private static double run(Registry registry, int threads, double seconds, long writeNanos)
+            throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long durationNanos = (long) (seconds * 1_000_000_000L);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                Frame frame = Frame.of("benchmark message");
+                StubSession self = new StubSession(writeNanos);
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long end = System.nanoTime() + durationNanos;
+                while (System.nanoTime() < end) {
+                    int group = random.nextInt(GROUPS);
+                    if (random.nextInt(100) < CHURN_PERCENT) {
+                        registry.churn(group, self);
+                    } else {
+                        registry.fanOut(group, frame);
+                    }
+                    operations.increment();
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum() / seconds;
+    }
+}
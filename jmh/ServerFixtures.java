@@ -0,0 +1,216 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// The server side of benchmarks.Fixtures. Lives in the server's package so it can reach the
+// package-private code the benchmarks measure; the benchmarks load it by name.
+public class ServerFixtures {
+    // Member with a real outbound queue; the benchmark drains it in place of a writer
+    static class QueueSession extends GroupChatServer.Session {
+        private final OutboundQueue outbound = new OutboundQueue(16); // Drained after every operation
+
+        QueueSession(String name) {
+            clientName = name;
+            GroupChatServer.register(this); // Groups refer to members by session id
+        }
+
+        void send(Frame frame) {
+            if (!outbound.offer(frame.retain())) {
+                frame.release();
+            }
+        }
+
+        // What the writer does for each queued frame
+        void drain() {
+            Frame frame;
+            while ((frame = outbound.poll()) != null) {
+                frame.release();
+            }
+        }
+
+        void handleSendFile() {
+        }
+
+        void receiveFile(String groupName, String fileName, long fileSize) {
+        }
+
+        void closeConnection() {
+        }
+
+        void disconnect() {
+        }
+
+        void suspendConnection() {
+        }
+
+        OutboundQueue outbound() {
+            return outbound;
+        }
+    }
+
+    // Member that drops everything it is sent, for sessions no benchmark thread drains
+    static class DiscardSession extends GroupChatServer.Session {
+        DiscardSession(String name) {
+            clientName = name;
+            GroupChatServer.register(this);
+        }
+
+        void send(Frame frame) {
+        }
+
+        void handleSendFile() {
+        }
+
+        void receiveFile(String groupName, String fileName, long fileSize) {
+        }
+
+        void closeConnection() {
+        }
+
+        void disconnect() {
+        }
+
+        void suspendConnection() {
+        }
+
+        OutboundQueue outbound() {
+            return null;
+        }
+    }
+
+    // Add a member without the join notice, which would cost a broadcast per member while setting up
+    private static void addMember(GroupRegistry.Group group, GroupChatServer.Session member) {
+        group.join(member);
+        member.joinedGroups.add(group.id);
+    }
+
+    public static class CommandParsing implements benchmarks.Fixtures.CommandParsing {
+        private QueueSession session;
+        private ByteArrayInputStream bytes;
+        private DataInputStream in;
+
+        public void setUp(String command) {
+            session = new QueueSession("parser");
+            addMember(GroupChatServer.addGroup("bench"), session);
+            bytes = new ByteArrayInputStream(Frames.encode(command));
+            in = new DataInputStream(bytes);
+        }
+
+        public void handle() throws IOException {
+            bytes.reset();
+            session.handleCommand(in.readUTF());
+            session.drain();
+        }
+
+        public void tearDown() {
+            GroupChatServer.removeGroup("bench");
+        }
+    }
+
+    public static class FanOut implements benchmarks.Fixtures.FanOut {
+        private GroupRegistry.Group group;
+        private QueueSession[] members;
+
+        public void setUp(int size, int shardSize) {
+            FanOutPool.shardSize = shardSize;
+            group = GroupChatServer.addGroup("fanout");
+            members = new QueueSession[size];
+            for (int i = 0; i < size; i++) {
+                members[i] = new QueueSession("member" + i);
+                addMember(group, members[i]);
+            }
+        }
+
+        public void send() {
+            members[0].handleSendMessage("SendMessage fanout hello everyone");
+            while (group.fanningOut()) {
+                Thread.onSpinWait(); // Sharded deliveries finish on the fan-out pool
+            }
+            for (QueueSession member : members) {
+                member.drain();
+            }
+        }
+
+        public void tearDown() {
+            GroupChatServer.removeGroup("fanout");
+        }
+    }
+
+    public static class Churn implements benchmarks.Fixtures.Churn {
+        private String[] joins;
+        private String[] leaves;
+
+        public void setUp(int groups, int idleMembers) {
+            joins = new String[groups];
+            leaves = new String[groups];
+            for (int g = 0; g < groups; g++) {
+                String name = "churn" + g;
+                GroupRegistry.Group group = GroupChatServer.addGroup(name);
+                for (int i = 0; i < idleMembers; i++) {
+                    addMember(group, new DiscardSession(name + "-idle" + i));
+                }
+                joins[g] = "JoinGroup " + name;
+                leaves[g] = "LeaveGroup " + name;
+            }
+        }
+
+        public Member member() {
+            DiscardSession session = new DiscardSession("churner-" + Thread.currentThread().getId());
+            return group -> {
+                session.handleJoinGroup(joins[group]);
+                session.handleLeaveGroup(leaves[group]);
+            };
+        }
+
+        public void tearDown() {
+            for (int g = 0; g < joins.length; g++) {
+                GroupChatServer.removeGroup("churn" + g);
+            }
+        }
+    }
+
+    public static class Relay implements benchmarks.Fixtures.Relay {
+        private int fileBytes;
+        private int members;
+        private ByteBuffer chunk;
+        private FileChannel sink; // Stands in for the members' sockets, which FileChannel.transferTo also reaches directly
+
+        public void setUp(int fileBytes, int members) throws IOException {
+            this.fileBytes = fileBytes;
+            this.members = members;
+            chunk = ByteBuffer.allocateDirect(BinaryProtocol.FILE_CHUNK);
+            while (chunk.hasRemaining()) {
+                chunk.put((byte) chunk.position());
+            }
+            String nullDevice = System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null";
+            sink = FileChannel.open(Paths.get(nullDevice), StandardOpenOption.WRITE);
+        }
+
+        public long relay() throws IOException {
+            FileRelay relay = FileRelay.create("bench.bin", fileBytes);
+            try {
+                for (long uploaded = 0; uploaded < fileBytes; ) {
+                    chunk.clear().limit((int) Math.min(chunk.capacity(), fileBytes - uploaded));
+                    uploaded += chunk.remaining();
+                    relay.receive(chunk);
+                }
+                long delivered = 0;
+                for (int m = 0; m < members; m++) {
+                    for (long position = 0; position < fileBytes; ) {
+                        position += relay.transferTo(position, fileBytes - position, sink);
+                    }
+                    delivered += fileBytes;
+                }
+                return delivered;
+            } finally {
+                relay.release();
+            }
+        }
+
+        public void tearDown() throws IOException {
+            sink.close();
+        }
+    }
+}
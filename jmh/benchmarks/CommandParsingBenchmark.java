@@ -0,0 +1,38 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Reading one text command and dispatching it, as ClientHandler.run does for every frame, for a
+// session that is the only member of its group: a message it receives back, a command that fails
+// validation, and one the server does not know.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParsingBenchmark {
+    @Param({"SendMessage bench hello there", "JoinGroup bench", "Whois bench"})
+    public String command;
+
+    private Fixtures.CommandParsing fixture;
+
+    @Setup
+    public void setUp() {
+        fixture = Fixtures.load(Fixtures.CommandParsing.class);
+        fixture.setUp(command);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.tearDown();
+    }
+
+    @Benchmark
+    public void handleCommand() throws IOException {
+        fixture.handle();
+    }
+}
@@ -0,0 +1,41 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// handleSendMessage to a group of the given size: the message is encoded once and queued for every
+// member, and each copy is then taken off its queue and released, which the members' writers would
+// otherwise do on their own threads. Groups larger than shardSize are delivered in parallel on the
+// fan-out pool; -p shardSize=0 measures delivery on the sender's thread alone.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int members;
+
+    @Param({"1000"})
+    public int shardSize;
+
+    private Fixtures.FanOut fixture;
+
+    @Setup
+    public void setUp() {
+        fixture = Fixtures.load(Fixtures.FanOut.class);
+        fixture.setUp(members, shardSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.tearDown();
+    }
+
+    @Benchmark
+    public void sendMessage() {
+        fixture.send();
+    }
+}
@@ -0,0 +1,41 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// One file through a FileRelay: uploaded into a spool file in FILE_CHUNK pieces, then streamed to
+// each member with FileChannel.transferTo. Each operation moves fileBytes in and fileBytes per
+// member out, so bytes per second is fileBytes * (members + 1) times the score.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileRelayBenchmark {
+    @Param({"1048576", "67108864"})
+    public int fileBytes;
+
+    @Param({"1", "10"})
+    public int members;
+
+    private Fixtures.Relay fixture;
+
+    @Setup
+    public void setUp() throws IOException {
+        fixture = Fixtures.load(Fixtures.Relay.class);
+        fixture.setUp(fileBytes, members);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        fixture.tearDown();
+    }
+
+    @Benchmark
+    public long relay() throws IOException {
+        return fixture.relay();
+    }
+}
@@ -0,0 +1,65 @@
+package benchmarks;
+
+import java.io.IOException;
+
+// JMH only accepts benchmarks in a named package, and code in a named package cannot refer to the
+// server's classes in the default package. Each benchmark therefore drives the server through one
+// of these interfaces, implemented next to the server by ServerFixtures and loaded by name once per
+// trial, so the measured calls are ordinary interface calls.
+public final class Fixtures {
+    private Fixtures() {
+    }
+
+    // A session reading text commands, as ClientHandler.run does
+    public interface CommandParsing {
+        void setUp(String command);
+
+        // Read the encoded command off the stream, dispatch it, and drain what it queued
+        void handle() throws IOException;
+
+        void tearDown();
+    }
+
+    // SendMessage from one member of a group
+    public interface FanOut {
+        void setUp(int members, int shardSize);
+
+        // Send one message and take every queued copy off the members' queues, as their writers would
+        void send();
+
+        void tearDown();
+    }
+
+    // Groups that sessions keep joining and leaving from several threads
+    public interface Churn {
+        void setUp(int groups, int idleMembers);
+
+        // A new session for one benchmark thread
+        Member member();
+
+        void tearDown();
+
+        interface Member {
+            void joinAndLeave(int group);
+        }
+    }
+
+    // One file through a FileRelay: uploaded into the spool, then streamed out to every member
+    public interface Relay {
+        void setUp(int fileBytes, int members) throws IOException;
+
+        // Returns the bytes delivered to members
+        long relay() throws IOException;
+
+        void tearDown() throws IOException;
+    }
+
+    static <T> T load(Class<T> type) {
+        try {
+            Class<?> implementation = Class.forName("ServerFixtures$" + type.getSimpleName());
+            return type.cast(implementation.getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No fixture for " + type.getSimpleName(), e);
+        }
+    }
+}
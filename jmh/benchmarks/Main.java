@@ -0,0 +1,27 @@
+package benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Entry point of benchmarks.jar: the usual JMH command line, with the GC profiler always on so
+// every result also reports the bytes allocated per operation (gc.alloc.rate.norm).
+public class Main {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.shouldHelp() || options.shouldList() || options.shouldListWithParams()
+                || options.shouldListProfilers() || options.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        boolean profiled = options.getProfilers().stream()
+                .anyMatch(profiler -> profiler.getKlass().equals("gc") || profiler.getKlass().equals(GCProfiler.class.getName()));
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(options);
+        if (!profiled) {
+            builder.addProfiler(GCProfiler.class);
+        }
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,52 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// JoinGroup followed by LeaveGroup on a random group, from several threads at once (change the
+// count with -t). Every join and leave copies the group's member set and broadcasts a notice to
+// its idle members.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class MembershipChurnBenchmark {
+    @Param({"16"})
+    public int groups;
+
+    @Param({"100"})
+    public int idleMembers;
+
+    private Fixtures.Churn fixture;
+
+    @State(Scope.Thread)
+    public static class Churner {
+        Fixtures.Churn.Member member;
+
+        @Setup
+        public void setUp(MembershipChurnBenchmark benchmark) {
+            member = benchmark.fixture.member();
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        fixture = Fixtures.load(Fixtures.Churn.class);
+        fixture.setUp(groups, idleMembers);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.tearDown();
+    }
+
+    @Benchmark
+    public void joinAndLeave(Churner churner) {
+        churner.member.joinAndLeave(ThreadLocalRandom.current().nextInt(groups));
+    }
+}